@@ -13,6 +13,7 @@ import java.util.Map;
 public class ConnectionConfig {
 
     public static final String httpUserAgent = "smtp-agent-http-client";
+    public static final String smileContentType = "application/x-jackson-smile";
 
     private String clientVersion = SmtpAgentClient.class.getPackage().getImplementationVersion();
     private final String httpAuth;
@@ -20,6 +21,8 @@ public class ConnectionConfig {
     private final int port;
     private final int connectionTimeout;
     private final int readTimeout;
+    private boolean binaryFormat;
+    private boolean compression = true;
 
     private Map<String, String> headers = new LinkedHashMap<String, String>();
 
@@ -69,8 +72,36 @@ public class ConnectionConfig {
         return readTimeout;
     }
 
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    /**
+     * @param binaryFormat true if responses should be requested in binary Smile format which is more compact and faster to decode than JSON
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression false if responses should not be requested gzip or deflate encoded, it saves cpu on fast networks
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     public URLConnection configure(URLConnection conn) {
         conn.setRequestProperty("User-Agent", httpUserAgent);
+        if (binaryFormat) {
+            conn.setRequestProperty("Accept", smileContentType);
+        }
+        if (compression) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
         conn.setRequestProperty("client-version", clientVersion);
         conn.setRequestProperty("Authorization", httpAuth);
         for (Map.Entry<String, String> entry : headers.entrySet()) {
@@ -89,6 +120,8 @@ public class ConnectionConfig {
                 ", clientVersion='" + clientVersion + '\'' +
                 ", connectionTimeout=" + connectionTimeout +
                 ", readTimeout=" + readTimeout +
+                ", binaryFormat=" + binaryFormat +
+                ", compression=" + compression +
                 '}';
     }
 }
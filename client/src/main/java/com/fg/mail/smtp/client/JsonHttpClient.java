@@ -3,18 +3,28 @@ package com.fg.mail.smtp.client;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fg.mail.smtp.client.model.AgentResponse;
 import com.fg.mail.smtp.client.model.ResponseStatus;
+import com.fg.mail.smtp.client.model.SmtpLogEntry;
 import com.fg.mail.smtp.client.request.factory.AgentReq;
 import com.fg.mail.smtp.client.request.factory.BatchAgentReq;
 import com.fg.mail.smtp.client.request.factory.IndexQuery;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
@@ -24,6 +34,7 @@ public class JsonHttpClient {
     private static final Log log = LogFactory.getLog(JsonHttpClient.class);
 
     private ObjectMapper mapper = new ObjectMapper();
+    private ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
 
     private ConnectionConfig conCfg;
 
@@ -38,6 +49,55 @@ public class JsonHttpClient {
         }
     }
 
+    /**
+     * Jobs are resolved by executor while at most parallelism of them are in flight, callback is supplied on caller thread
+     * either in order of jobs or in order of their completion. The first failure cancels jobs in flight and it is rethrown.
+     */
+    protected <T> void processBatch(BatchAgentReq<T> request, JobCallback<T> callback, Executor executor, int parallelism, boolean inOrder) throws ClientNotAvailableException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, it is " + parallelism);
+        }
+        if (callback == null || executor == null) {
+            throw new IllegalArgumentException("Please provide both callback and executor for batch processing !");
+        }
+        BlockingQueue<Job<T>> completed = new LinkedBlockingQueue<Job<T>>();
+        LinkedList<Job<T>> inFlight = new LinkedList<Job<T>>();
+        Iterator<AgentReq<T>> requests = request.getRequests().iterator();
+        try {
+            while (requests.hasNext() || !inFlight.isEmpty()) {
+                while (requests.hasNext() && inFlight.size() < parallelism) {
+                    Job<T> job = newJob(requests.next(), inOrder ? null : completed);
+                    inFlight.add(job);
+                    executor.execute(job);
+                }
+                Job<T> job = inOrder ? inFlight.getFirst() : completed.take();
+                T result = job.getResult();
+                inFlight.remove(job);
+                IndexQuery query = job.request.getQuery();
+                callback.execute(result, query.getFrom(), query.getTo());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientNotAvailableException("Batch processing was interrupted", e);
+        } finally {
+            for (Job<T> job : inFlight) {
+                job.cancel(true);
+            }
+        }
+    }
+
+    private <T> Job<T> newJob(final AgentReq<T> request, @Nullable Queue<Job<T>> completed) {
+        return new Job<T>(
+                request,
+                new Callable<T>() {
+                    public T call() throws ClientNotAvailableException {
+                        return resolveResult(request);
+                    }
+                },
+                completed
+        );
+    }
+
     protected <T> T resolveResult(AgentReq<T> request) throws ClientNotAvailableException {
         AgentResponse<T> response = resolve(request);
         ResponseStatus status = response.getStatus();
@@ -53,14 +113,36 @@ public class JsonHttpClient {
         AgentUrl url = new AgentUrl(conCfg.getHost(), conCfg.getPort(), request);
         long start = System.currentTimeMillis();
         URLConnection urlConn = openConnection(url.getURL());
-        AgentResponse<T> result = deserialize(getInputStream(urlConn), request);
+        AgentResponse<T> result = deserialize(getInputStream(urlConn), mapperOf(urlConn), request);
         log.info("Response retrieved and deserialized in " + (System.currentTimeMillis() - start) + " ms");
         return result;
     }
 
-    protected <T> AgentResponse<T> deserialize(InputStream inputStream, AgentReq<T> request) throws ClientNotAvailableException {
+    /**
+     * @return iterator of entries that are decoded while they are read from connection, it must be closed
+     */
+    protected SmtpLogEntryIterator resolveIterator(AgentReq<TreeSet<SmtpLogEntry>> request) throws ClientNotAvailableException {
+        AgentUrl url = new AgentUrl(conCfg.getHost(), conCfg.getPort(), request);
+        URLConnection urlConn = openConnection(url.getURL());
+        InputStream inputStream = getInputStream(urlConn);
         try {
-            return mapper.readValue(new InputStreamReader(inputStream), request.getTypeRef());
+            return new SmtpLogEntryIterator(mapperOf(urlConn).getFactory().createParser(inputStream));
+        } catch (IOException e) {
+            throw new ClientNotAvailableException("Connection to remote server failed, unable to read the stream", e);
+        }
+    }
+
+    /**
+     * @return mapper of format that server responded with, it is JSON unless binary format was requested and server supports it
+     */
+    private ObjectMapper mapperOf(URLConnection urlConn) {
+        String contentType = urlConn.getContentType();
+        return contentType != null && contentType.startsWith(ConnectionConfig.smileContentType) ? smileMapper : mapper;
+    }
+
+    protected <T> AgentResponse<T> deserialize(InputStream inputStream, ObjectMapper mapper, AgentReq<T> request) throws ClientNotAvailableException {
+        try {
+            return mapper.readValue(inputStream, request.getTypeRef());
         } catch (JsonMappingException e) {
             throw new IllegalStateException("Unexpected JSON mapping error occurred during deserialization", e);
         } catch (JsonParseException e) {
@@ -79,14 +161,18 @@ public class JsonHttpClient {
         }
     }
 
+    /**
+     * @return response body that is transparently decompressed if it is encoded
+     */
     private InputStream getInputStream(URLConnection urlConn) throws ClientNotAvailableException {
+        InputStream inputStream;
         try {
-            return urlConn.getInputStream();
+            inputStream = urlConn.getInputStream();
         } catch (IOException e) {
             if (urlConn instanceof HttpURLConnection) {
                 try {
                     int responseCode = ((HttpURLConnection) urlConn).getResponseCode();
-                    InputStream errorStream = ((HttpURLConnection) urlConn).getErrorStream();
+                    InputStream errorStream = decode(urlConn, ((HttpURLConnection) urlConn).getErrorStream());
                     ByteArrayOutputStream os = new ByteArrayOutputStream();
                     byte[] buf = new byte[4096];
                     try {
@@ -105,6 +191,62 @@ public class JsonHttpClient {
                 throw new ClientNotAvailableException("Connection to remote server failed, unable to read the stream", e);
             }
         }
+        try {
+            return decode(urlConn, inputStream);
+        } catch (IOException e) {
+            throw new ClientNotAvailableException("Connection to remote server failed, unable to read the stream", e);
+        }
+    }
+
+    private InputStream decode(URLConnection urlConn, InputStream inputStream) throws IOException {
+        String encoding = urlConn.getContentEncoding();
+        if (inputStream == null || encoding == null) {
+            return inputStream;
+        } else if (encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(inputStream);
+        } else if (encoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(inputStream);
+        } else {
+            return inputStream;
+        }
+    }
+
+    /**
+     * Job of a batch that enqueues itself to completed jobs when it is done, if queue is provided
+     */
+    private static class Job<T> extends FutureTask<T> {
+        private final AgentReq<T> request;
+        private final Queue<Job<T>> completed;
+
+        private Job(AgentReq<T> request, Callable<T> callable, @Nullable Queue<Job<T>> completed) {
+            super(callable);
+            this.request = request;
+            this.completed = completed;
+        }
+
+        @Override
+        protected void done() {
+            if (completed != null) {
+                completed.add(this);
+            }
+        }
+
+        private T getResult() throws ClientNotAvailableException, InterruptedException {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ClientNotAvailableException) {
+                    throw (ClientNotAvailableException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException("Unexpected failure of batch job", cause);
+                }
+            }
+        }
     }
 
     /**
@@ -114,7 +256,7 @@ public class JsonHttpClient {
     public String resolveWithoutDeserialization(AgentReq request) {
         try {
             URLConnection urlConn = conCfg.configure(new AgentUrl(conCfg.getHost(), conCfg.getPort(), request).getURL().openConnection());
-            BufferedReader reader = new BufferedReader(new InputStreamReader(urlConn.getInputStream()));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(decode(urlConn, urlConn.getInputStream())));
             String line = "";
             StringBuilder sb = new StringBuilder();
             do {
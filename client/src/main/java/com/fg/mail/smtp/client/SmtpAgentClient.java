@@ -3,10 +3,17 @@ package com.fg.mail.smtp.client;
 import com.fg.mail.smtp.client.model.SmtpLogEntry;
 import com.fg.mail.smtp.client.request.factory.AgentReq;
 import com.fg.mail.smtp.client.request.factory.BatchAgentReq;
+import com.fg.mail.smtp.client.request.factory.PageAgentReq;
 import com.fg.mail.smtp.client.request.factory.SingleReqFactory;
+import com.fg.mail.smtp.client.request.query.Aggregating.Dimension;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Http client for accessing restful interface of Smtp Agent
@@ -41,6 +48,36 @@ public class SmtpAgentClient {
         return jsonHttpClient.resolveResult(reqFactory.forRcptAddressCounts());
     }
 
+    /**
+     * @return map of estimated recipient email address counts by client id, it is cheaper than exact counts but with about 1.6% error
+     */
+    public Map<String, Integer> pullApproximateRcptAddressCounts() throws ClientNotAvailableException {
+        return jsonHttpClient.resolveResult(reqFactory.forApproximateRcptAddressCounts());
+    }
+
+    /**
+     * @return map of record counts by state by client id
+     */
+    public Map<String, Map<Integer, Long>> pullStateCounts() throws ClientNotAvailableException {
+        return jsonHttpClient.resolveResult(reqFactory.forStateCounts());
+    }
+
+    /**
+     * @return count of client's log entries by dimension (eq. state) counted by agent, only counts are transferred.
+     * Sent entries of state 3 that are never pulled as entries are counted too
+     */
+    public Map<String, Long> pullCountsBy(String clientId, @Nullable Long from, @Nullable Long to, Dimension by) throws ClientNotAvailableException {
+        return jsonHttpClient.resolveResult(reqFactory.forCountsBy(clientId, from, to, by));
+    }
+
+    /**
+     * @return count of client's log entries by outer and inner dimension (eq. state and day) counted by agent, only counts are transferred.
+     * Sent entries of state 3 that are never pulled as entries are counted too
+     */
+    public Map<String, Map<String, Long>> pullCountsBy(String clientId, @Nullable Long from, @Nullable Long to, Dimension outer, Dimension inner) throws ClientNotAvailableException {
+        return jsonHttpClient.resolveResult(reqFactory.forCountsBy(clientId, from, to, outer, inner));
+    }
+
     /**
      * @return map of recipient email addresses by client id
      */
@@ -63,6 +100,27 @@ public class SmtpAgentClient {
         return jsonHttpClient.resolveResult(request);
     }
 
+    /**
+     * Log entries are decoded one at a time while they are read from connection so that heap usage doesn't grow with result size,
+     * use it for pulling large amount of entries that would not fit in memory
+     *
+     * @param request with filter (narrow down the result set by mandatory clientId and optional rcptEmail, queueId or msgId) and query that neither groups nor constrains for last entry
+     * @return iterator of log entries sorted by date, it must be closed unless it is iterated to the end
+     */
+    public SmtpLogEntryIterator stream(AgentReq<TreeSet<SmtpLogEntry>> request) throws ClientNotAvailableException {
+        return jsonHttpClient.resolveIterator(request);
+    }
+
+    /**
+     * Log entries are requested page by page while they are iterated, use it for pulling large amount of entries in short requests
+     *
+     * @param request of the first page with filter (narrow down the result set by mandatory clientId and optional rcptEmail, queueId or msgId)
+     * @return iterator of log entries sorted by date
+     */
+    public SmtpLogEntryPageIterator pullPages(PageAgentReq request) {
+        return new SmtpLogEntryPageIterator(jsonHttpClient, request);
+    }
+
     /**
      * @param request with filter (narrow down the result set by mandatory clientId and optional rcptEmail, queueId or msgId) and query (result can be grouped and constrained by time and last entry)
      * @param callback to be supplied with 2 - x jobs from a batch based on provided timeframe
@@ -71,4 +129,30 @@ public class SmtpAgentClient {
         jsonHttpClient.processBatch(request, callback);
     }
 
+    /**
+     * Jobs of a batch are pulled concurrently so that the whole batch takes roughly as long as the slowest job.
+     * Connections are kept alive between jobs, note that jdk keeps at most 'http.maxConnections' (5 by default) idle connections per host
+     *
+     * @param request with filter (narrow down the result set by mandatory clientId and optional rcptEmail, queueId or msgId) and query (result can be grouped and constrained by time and last entry)
+     * @param callback to be supplied with 2 - x jobs from a batch based on provided timeframe, it is always invoked on caller thread
+     * @param executor that resolves jobs, it is not shut down
+     * @param parallelism maximum count of jobs in flight
+     * @param inOrder true if callback should be supplied with jobs in chronological order, false if in order of their completion
+     */
+    public <T> void pull(BatchAgentReq<T> request, JobCallback<T> callback, Executor executor, int parallelism, boolean inOrder) throws ClientNotAvailableException {
+        jsonHttpClient.processBatch(request, callback, executor, parallelism, inOrder);
+    }
+
+    /**
+     * The same as {@link #pull(BatchAgentReq, JobCallback, Executor, int, boolean)} with a thread pool of parallelism size that is created for this batch only
+     */
+    public <T> void pull(BatchAgentReq<T> request, JobCallback<T> callback, int parallelism, boolean inOrder) throws ClientNotAvailableException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            jsonHttpClient.processBatch(request, callback, executor, parallelism, inOrder);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
 }
@@ -0,0 +1,123 @@
+package com.fg.mail.smtp.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fg.mail.smtp.client.model.ResponseStatus;
+import com.fg.mail.smtp.client.model.SmtpLogEntry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator of log entries that are decoded one at a time by Jackson streaming parser while they are read from http input stream,
+ * so that heap usage doesn't grow with result size. Response status is checked whenever it is encountered, agent writes it after result
+ * when it streams records. Failure that is reported after some entries were already iterated is thrown as IllegalStateException.
+ *
+ * Iterator is closed automatically when it is exhausted or when it fails, otherwise it must be closed so that connection is released.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/20/14 10:15 AM u_jli Exp $
+ */
+public class SmtpLogEntryIterator implements Iterator<SmtpLogEntry>, Closeable {
+    private static final Log log = LogFactory.getLog(SmtpLogEntryIterator.class);
+
+    private final JsonParser parser;
+    private SmtpLogEntry next;
+    private boolean inResult;
+    private boolean closed;
+    private int count;
+
+    protected SmtpLogEntryIterator(JsonParser parser) throws ClientNotAvailableException {
+        this.parser = parser;
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalStateException("Unexpected JSON response, it should be an object");
+            }
+            seekResult();
+        } catch (IOException e) {
+            close();
+            throw new ClientNotAvailableException("Connection to remote server failed, unable to read the stream", e);
+        } catch (ClientNotAvailableException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * reads fields of response until result array starts or response ends
+     */
+    private void seekResult() throws IOException, ClientNotAvailableException {
+        while (!inResult && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("result".equals(field) && value == JsonToken.START_ARRAY) {
+                inResult = true;
+            } else if ("status".equals(field) && value == JsonToken.START_OBJECT) {
+                ResponseStatus status = parser.readValueAs(ResponseStatus.class);
+                if (!status.getSucceeded()) {
+                    throw new ClientNotAvailableException(status.getMessage());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private SmtpLogEntry fetch() throws IOException, ClientNotAvailableException {
+        while (inResult) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                count++;
+                return parser.readValueAs(SmtpLogEntry.class);
+            } else {
+                inResult = false;
+                seekResult();
+            }
+        }
+        log.info(count + " entries were streamed");
+        close();
+        return null;
+    }
+
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = fetch();
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException("Connection to remote server failed, unable to read the stream", e);
+            } catch (ClientNotAvailableException e) {
+                close();
+                throw new IllegalStateException("Agent failed to serve all entries", e);
+            }
+        }
+        return next != null;
+    }
+
+    public SmtpLogEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SmtpLogEntry result = next;
+        next = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Log entries are read only");
+    }
+
+    public void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                parser.close();
+            } catch (IOException e) {
+                log.warn("Unable to close connection", e);
+            }
+        }
+    }
+}
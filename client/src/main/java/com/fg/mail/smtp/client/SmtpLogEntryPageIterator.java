@@ -0,0 +1,61 @@
+package com.fg.mail.smtp.client;
+
+import com.fg.mail.smtp.client.model.SmtpLogEntry;
+import com.fg.mail.smtp.client.model.SmtpLogEntryPage;
+import com.fg.mail.smtp.client.request.factory.PageAgentReq;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator of log entries that are requested page by page, the next page is requested only when the previous one is iterated.
+ * Unlike streaming, each page is a short request that holds no connection, so iteration can be paused and resumed at will.
+ * Failure of a page request is thrown as IllegalStateException.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/21/14 4:00 PM u_jli Exp $
+ */
+public class SmtpLogEntryPageIterator implements Iterator<SmtpLogEntry> {
+
+    private final JsonHttpClient jsonHttpClient;
+    private PageAgentReq nextRequest;
+    private Iterator<SmtpLogEntry> page = Collections.<SmtpLogEntry>emptyList().iterator();
+
+    protected SmtpLogEntryPageIterator(JsonHttpClient jsonHttpClient, PageAgentReq request) {
+        this.jsonHttpClient = jsonHttpClient;
+        this.nextRequest = request;
+    }
+
+    public boolean hasNext() {
+        while (!page.hasNext() && nextRequest != null) {
+            SmtpLogEntryPage result;
+            try {
+                result = jsonHttpClient.resolveResult(nextRequest);
+            } catch (ClientNotAvailableException e) {
+                throw new IllegalStateException("Agent failed to serve page " + nextRequest.getQuery(), e);
+            }
+            page = result.getEntries().iterator();
+            nextRequest = result.getCursor() == null ? null : nextRequest.nextPage(result.getCursor());
+        }
+        return page.hasNext();
+    }
+
+    public SmtpLogEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Log entries are read only");
+    }
+
+    /**
+     * @return request of the following page or null if the last page was already fetched, it can be used to resume iteration later
+     */
+    public PageAgentReq getNextRequest() {
+        return nextRequest;
+    }
+}
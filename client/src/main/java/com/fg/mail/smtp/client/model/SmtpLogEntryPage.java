@@ -0,0 +1,29 @@
+package com.fg.mail.smtp.client.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of log entries ordered by date, cursor is null if it is the last page
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/21/14 3:50 PM u_jli Exp $
+ */
+public class SmtpLogEntryPage {
+    private List<SmtpLogEntry> entries;
+    private String cursor;
+
+    @JsonCreator
+    public SmtpLogEntryPage(@JsonProperty("entries") List<SmtpLogEntry> entries, @JsonProperty("cursor") String cursor) {
+        this.entries = entries;
+        this.cursor = cursor;
+    }
+    public List<SmtpLogEntry> getEntries() {
+        return entries;
+    }
+    public String getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,49 @@
+package com.fg.mail.smtp.client.request.factory;
+
+import com.fg.mail.smtp.client.request.query.Aggregating;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/22/14 11:05 AM u_jli Exp $
+ */
+public class AggregateQuery extends IndexQuery implements Aggregating {
+
+    protected List<Dimension> dimensions;
+
+    protected AggregateQuery(@Nullable Long from, @Nullable Long to, List<Dimension> dimensions) {
+        super(from, to, null, null);
+        assert dimensions != null;
+        this.dimensions = dimensions;
+    }
+
+    public List<Dimension> getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public AggregateQuery copy(@Nullable Long from, @Nullable Long to) {
+        return new AggregateQuery(from, to, dimensions);
+    }
+
+    @Override
+    public String print() {
+        String query = super.print();
+        if (dimensions.isEmpty()) {
+            return query;
+        }
+        StringBuilder by = new StringBuilder(Aggregating.P_NAME).append("=");
+        Iterator<Dimension> itr = dimensions.iterator();
+        while (itr.hasNext()) {
+            by.append(itr.next().name());
+            if (itr.hasNext()) {
+                by.append(",");
+            }
+        }
+        return query.length() == 0 ? "?" + by : query + "&" + by;
+    }
+
+}
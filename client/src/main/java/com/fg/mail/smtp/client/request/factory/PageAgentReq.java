@@ -0,0 +1,31 @@
+package com.fg.mail.smtp.client.request.factory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fg.mail.smtp.client.model.AgentResponse;
+import com.fg.mail.smtp.client.model.SmtpLogEntryPage;
+import com.fg.mail.smtp.client.request.filter.AgentUrlPath;
+
+/**
+ * Request for a page of log entries, the following page is requested with cursor of the previous one
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/21/14 3:45 PM u_jli Exp $
+ */
+public class PageAgentReq extends AgentReq<SmtpLogEntryPage> {
+
+    public PageAgentReq(AgentUrlPath path, PageQuery query, TypeReference<AgentResponse<SmtpLogEntryPage>> typeRef) {
+        super(path, query, typeRef);
+        assert query != null;
+    }
+
+    @Override
+    public PageQuery getQuery() {
+        return (PageQuery) query;
+    }
+
+    public PageAgentReq nextPage(String cursor) {
+        assert cursor != null;
+        return new PageAgentReq(path, getQuery().after(cursor), typeRef);
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.fg.mail.smtp.client.request.factory;
+
+import javax.annotation.Nullable;
+
+/**
+ * Query for a page of at most limit entries ordered by date that follow after the entry of opaque cursor returned with previous page
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/21/14 3:40 PM u_jli Exp $
+ */
+public class PageQuery extends IndexQuery {
+
+    public static final String P_NAME_LIMIT = "limit";
+    public static final String P_NAME_CURSOR = "cursor";
+
+    protected int limit;
+    protected String cursor;
+
+    protected PageQuery(@Nullable Long from, @Nullable Long to, int limit, @Nullable String cursor) {
+        super(from, to, null, null);
+        assert limit > 0;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public PageQuery copy(@Nullable Long from, @Nullable Long to) {
+        return new PageQuery(from, to, limit, cursor);
+    }
+
+    public PageQuery after(String cursor) {
+        return new PageQuery(from, to, limit, cursor);
+    }
+
+    @Override
+    public String print() {
+        String query = super.print();
+        String paging = P_NAME_LIMIT + "=" + limit + (cursor == null ? "" : "&" + P_NAME_CURSOR + "=" + cursor);
+        return query.length() == 0 ? "?" + paging : query + "&" + paging;
+    }
+
+}
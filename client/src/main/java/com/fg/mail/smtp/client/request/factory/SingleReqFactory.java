@@ -3,13 +3,17 @@ package com.fg.mail.smtp.client.request.factory;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fg.mail.smtp.client.model.AgentResponse;
 import com.fg.mail.smtp.client.model.SmtpLogEntry;
+import com.fg.mail.smtp.client.model.SmtpLogEntryPage;
 import com.fg.mail.smtp.client.request.filter.AppendablePath;
 import com.fg.mail.smtp.client.request.filter.Eq;
+import com.fg.mail.smtp.client.request.query.Aggregating.Dimension;
 import com.fg.mail.smtp.client.request.query.BySingle;
 import com.fg.mail.smtp.client.request.query.ByTuple;
 import com.fg.mail.smtp.client.request.query.QueryFactory;
 
 import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -32,6 +36,14 @@ public class SingleReqFactory implements RequestFactory {
         return new AgentReq<Map<String, Integer>>(new AppendablePath("agent-status").appendSegment("rcpt-address-counts"), new TypeReference<AgentResponse<Map<String, Integer>>>() {});
     }
 
+    public AgentReq<Map<String, Integer>> forApproximateRcptAddressCounts() {
+        return new AgentReq<Map<String, Integer>>(new AppendablePath("agent-status").appendSegment("rcpt-address-counts").appendSegment("approximate"), new TypeReference<AgentResponse<Map<String, Integer>>>() {});
+    }
+
+    public AgentReq<Map<String, Map<Integer, Long>>> forStateCounts() {
+        return new AgentReq<Map<String, Map<Integer, Long>>>(new AppendablePath("agent-status").appendSegment("state-counts"), new TypeReference<AgentResponse<Map<String, Map<Integer, Long>>>>() {});
+    }
+
     public AgentReq<String> forAgentShutdown() {
         return new AgentReq<String>(new AppendablePath("agent-shutdown"), new TypeReference<AgentResponse<String>>() {});
     }
@@ -44,6 +56,23 @@ public class SingleReqFactory implements RequestFactory {
         return new AgentReq<Map<String, Set<SmtpLogEntry>>>(new AppendablePath("agent-status").appendSegment("unknown-bounces"), new TypeReference<AgentResponse<Map<String, Set<SmtpLogEntry>>>>() {});
     }
 
+    public AgentReq<Long> forCount(String clientId, @Nullable Long from, @Nullable Long to) {
+        AggregateQuery query = new AggregateQuery(from, to, Collections.<Dimension>emptyList());
+        return new AgentReq<Long>(new AppendablePath("agent-aggregate").appendSegment(clientId), query, new TypeReference<AgentResponse<Long>>() {});
+    }
+
+    public AgentReq<Map<String, Long>> forCountsBy(String clientId, @Nullable Long from, @Nullable Long to, Dimension by) {
+        assert by != null;
+        AggregateQuery query = new AggregateQuery(from, to, Arrays.asList(by));
+        return new AgentReq<Map<String, Long>>(new AppendablePath("agent-aggregate").appendSegment(clientId), query, new TypeReference<AgentResponse<Map<String, Long>>>() {});
+    }
+
+    public AgentReq<Map<String, Map<String, Long>>> forCountsBy(String clientId, @Nullable Long from, @Nullable Long to, Dimension outer, Dimension inner) {
+        assert outer != null && inner != null && outer != inner;
+        AggregateQuery query = new AggregateQuery(from, to, Arrays.asList(outer, inner));
+        return new AgentReq<Map<String, Map<String, Long>>>(new AppendablePath("agent-aggregate").appendSegment(clientId), query, new TypeReference<AgentResponse<Map<String, Map<String, Long>>>>() {});
+    }
+
     public static class SingleQueryFactory implements QueryFactory {
 
         private IndexFiltering filtering;
@@ -89,6 +118,15 @@ public class SingleReqFactory implements RequestFactory {
             return new AgentReq<Map<String, SmtpLogEntry>>(filtering, query, new TypeReference<AgentResponse<Map<String, SmtpLogEntry>>>() {});
         }
 
+        /**
+         * @param limit maximum count of entries of a page
+         */
+        public PageAgentReq forPaging(@Nullable Long from, @Nullable Long to, int limit) {
+            assert limit > 0;
+            PageQuery query = new PageQuery(from, to, limit, null);
+            return new PageAgentReq(filtering, query, new TypeReference<AgentResponse<SmtpLogEntryPage>>() {});
+        }
+
         public AgentReq<TreeSet<SmtpLogEntry>> queryLess() {
             return new AgentReq<TreeSet<SmtpLogEntry>>(filtering, null, new TypeReference<AgentResponse<TreeSet<SmtpLogEntry>>>() {});
         }
@@ -0,0 +1,24 @@
+package com.fg.mail.smtp.client.request.query;
+
+import java.util.List;
+
+/**
+ * Counting of log entries by dimensions on agent side, result is a map nested by dimensions in their order with counts as leaves
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/22/14 11:00 AM u_jli Exp $
+ */
+public interface Aggregating {
+
+    public static final String P_NAME = "by";
+
+    public enum Dimension {
+        /** state number, see {@link com.fg.mail.smtp.client.model.SmtpLogEntry#getState()} */
+        state,
+        status,
+        /** yyyy-MM-dd in agent's time zone */
+        day
+    }
+
+    List<Dimension> getDimensions();
+}
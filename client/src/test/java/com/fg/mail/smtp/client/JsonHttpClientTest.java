@@ -0,0 +1,172 @@
+package com.fg.mail.smtp.client;
+
+import com.fg.mail.smtp.client.model.SmtpLogEntry;
+import com.fg.mail.smtp.client.request.factory.AgentReq;
+import com.fg.mail.smtp.client.request.factory.BatchAgentReq;
+import com.fg.mail.smtp.client.request.factory.BatchReqFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parallel batch processing with jobs resolved by stub executors on caller thread so that order of their completion is deterministic
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/28/14 3:10 PM u_jli Exp $
+ */
+public class JsonHttpClientTest {
+    private static final Log log = LogFactory.getLog("JsonHttpClientTest");
+
+    private ConnectionConfig cfg = new ConnectionConfig("host", 1523, "user:password", 2*1000, 4*1000);
+
+    /** 4 jobs starting at 0, 1, 2 and 3 */
+    private BatchAgentReq<TreeSet<SmtpLogEntry>> batch = new BatchReqFactory(1, TimeUnit.MILLISECONDS).forClientId("cid").forTimeConstraining(0L, 4L);
+
+    @Test
+    public void callbackShouldBeSuppliedInOrderOfJobs() throws ClientNotAvailableException {
+        StubClient client = new StubClient(null);
+        RecordingCallback callback = new RecordingCallback();
+        client.processBatch(batch, callback, new ReversingExecutor(2), 2, true);
+        assertEquals(Arrays.asList(1L, 0L, 3L, 2L), client.resolved);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), callback.froms);
+    }
+
+    @Test
+    public void callbackShouldBeSuppliedInOrderOfCompletion() throws ClientNotAvailableException {
+        StubClient client = new StubClient(null);
+        RecordingCallback callback = new RecordingCallback();
+        client.processBatch(batch, callback, new ReversingExecutor(2), 2, false);
+        assertEquals(Arrays.asList(1L, 0L, 3L, 2L), client.resolved);
+        assertEquals(Arrays.asList(1L, 0L, 3L, 2L), callback.froms);
+    }
+
+    @Test
+    public void firstFailureShouldCancelJobsInFlightInOrder() {
+        StubClient client = new StubClient(0L);
+        RecordingCallback callback = new RecordingCallback();
+        HoldingExecutor executor = new HoldingExecutor(1);
+        try {
+            client.processBatch(batch, callback, executor, 2, true);
+            fail("Failure of a job should be rethrown");
+        } catch (ClientNotAvailableException e) {
+            assertEquals("job 0 failed", e.getMessage());
+        }
+        assertTrue(callback.froms.isEmpty());
+        assertCancelled(executor, client, 2);
+    }
+
+    @Test
+    public void firstFailureShouldCancelJobsInFlightInOrderOfCompletion() {
+        StubClient client = new StubClient(1L);
+        RecordingCallback callback = new RecordingCallback();
+        HoldingExecutor executor = new HoldingExecutor(0);
+        try {
+            client.processBatch(batch, callback, executor, 2, false);
+            fail("Failure of a job should be rethrown");
+        } catch (ClientNotAvailableException e) {
+            assertEquals("job 1 failed", e.getMessage());
+        }
+        assertTrue(callback.froms.isEmpty());
+        assertCancelled(executor, client, 2);
+    }
+
+    /** held job was cancelled so that it does not resolve anything even if it is run afterwards, no other job was submitted */
+    private void assertCancelled(HoldingExecutor executor, StubClient client, int parallelism) {
+        assertEquals(parallelism, executor.submitted);
+        assertTrue(((Future<?>) executor.held).isCancelled());
+        executor.held.run();
+        assertEquals(Arrays.asList(client.failingFrom), client.resolved);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parallelismShouldBePositive() throws ClientNotAvailableException {
+        new StubClient(null).processBatch(batch, new RecordingCallback(), new ReversingExecutor(1), 0, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void executorShouldBeProvided() throws ClientNotAvailableException {
+        new StubClient(null).processBatch(batch, new RecordingCallback(), null, 2, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void callbackShouldBeProvided() throws ClientNotAvailableException {
+        new StubClient(null).processBatch(batch, null, new ReversingExecutor(2), 2, true);
+    }
+
+    /** resolves jobs without connecting to server, a job fails if it starts at failingFrom */
+    private class StubClient extends JsonHttpClient {
+        private final Long failingFrom;
+        private final List<Long> resolved = Collections.synchronizedList(new ArrayList<Long>());
+
+        private StubClient(@Nullable Long failingFrom) {
+            super(cfg);
+            this.failingFrom = failingFrom;
+        }
+
+        @Override
+        protected <T> T resolveResult(AgentReq<T> request) throws ClientNotAvailableException {
+            Long from = request.getQuery().getFrom();
+            resolved.add(from);
+            if (from.equals(failingFrom)) {
+                throw new ClientNotAvailableException("job " + from + " failed");
+            }
+            return null;
+        }
+    }
+
+    private static class RecordingCallback implements JobCallback<TreeSet<SmtpLogEntry>> {
+        private final List<Long> froms = new ArrayList<Long>();
+
+        public void execute(TreeSet<SmtpLogEntry> job, @Nullable Long from, @Nullable Long to) {
+            log.info("Job " + from + " - " + to + " completed");
+            froms.add(from);
+        }
+    }
+
+    /** runs jobs on caller thread in reverse order of their submission whenever batchSize of them is submitted */
+    private static class ReversingExecutor implements Executor {
+        private final int batchSize;
+        private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+
+        private ReversingExecutor(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public void execute(Runnable job) {
+            pending.push(job);
+            if (pending.size() == batchSize) {
+                while (!pending.isEmpty()) {
+                    pending.pop().run();
+                }
+            }
+        }
+    }
+
+    /** runs jobs on caller thread immediately except for the one of heldIndex in order of submission */
+    private static class HoldingExecutor implements Executor {
+        private final int heldIndex;
+        private int submitted;
+        private Runnable held;
+
+        private HoldingExecutor(int heldIndex) {
+            this.heldIndex = heldIndex;
+        }
+
+        public void execute(Runnable job) {
+            if (submitted++ == heldIndex) {
+                held = job;
+            } else {
+                job.run();
+            }
+        }
+    }
+
+}
@@ -1,7 +1,8 @@
 package com.fg.mail.smtp
 
-import java.io.{File, BufferedReader}
-import com.fg.mail.smtp.index.ClientIndexRecord
+import java.io.File
+import com.fg.mail.smtp.tail.FileTailer
+import com.fg.mail.smtp.index.{Checkpoint, Dimension, IndexRecord, ClientIndexRecord}
 
 /**
  * A bunch of Akka messages
@@ -10,29 +11,52 @@ import com.fg.mail.smtp.index.ClientIndexRecord
  * @version $Id: 6/24/13 8:55 AM u_jli Exp $
  */
 trait Request { def ctx: ReqCtx }
+/** read-only request that is served by querier pool */
+trait Query extends Request
 case class ReqCtx(underlying: Map[String, String])
 
 case class ShutdownAgent(ctx: ReqCtx) extends Request
 case class ReindexAgent(ctx: ReqCtx) extends Request
 case class RestartAgent(ctx: ReqCtx) extends Request
 case class RefreshBounceList(ctx: ReqCtx) extends Request
-case class MemoryUsage(ctx: ReqCtx) extends Request
-case class IndexMemoryFootprint(ctx: ReqCtx) extends Request
-case class IndexedLogFiles(ctx: ReqCtx) extends Request
-case class RcptAddressCounts(ctx: ReqCtx) extends Request
-case class RcptAddresses(ctx: ReqCtx) extends Request
-case class UnknownBounces(ctx: ReqCtx) extends Request
-case class IndexAge(ctx: ReqCtx) extends Request
-case class GetDisposableRecordsByClientId(ctx: ReqCtx) extends Request
+case class MemoryUsage(ctx: ReqCtx) extends Query
+case class IndexMemoryFootprint(ctx: ReqCtx) extends Query
+case class IndexedLogFiles(ctx: ReqCtx) extends Query
+case class RcptAddressCounts(ctx: ReqCtx, approximate: Boolean = false) extends Query
+case class RcptAddresses(ctx: ReqCtx) extends Query
+case class UnknownBounces(ctx: ReqCtx) extends Query
+case class StateCounts(ctx: ReqCtx) extends Query
+case class IndexAge(ctx: ReqCtx) extends Query
+case class ClientSummaries(ctx: ReqCtx) extends Query
+case class GetDisposableRecordsByClientId(ctx: ReqCtx) extends Query
 case class GetQueue(ctx: ReqCtx) extends Request
+/** latencies of processing stages and counters in Prometheus text format */
+case class AgentMetrics(ctx: ReqCtx) extends Query
 
 case class Html(body: String)
+case class PrometheusText(body: String)
 object ContentType {
   val json = "application/json;charset=utf-8"
   val html = "text/html;charset=utf-8"
+  val smile = "application/x-jackson-smile"
+  val prometheus = "text/plain; version=0.0.4; charset=utf-8"
 }
 
-case class Client(filter: IndexFilter, query: Option[IndexQuery])(implicit reqCtx: ReqCtx) extends Request {
+case class Client(filter: IndexFilter, query: Option[IndexQuery])(implicit reqCtx: ReqCtx) extends Query {
+  def ctx: ReqCtx = reqCtx
+}
+
+/**
+ * Request for at most limit records ordered by date that follow after the record of cursor, the first page if there is no cursor
+ */
+case class ClientPage(filter: IndexFilter, from: Option[Long], to: Option[Long], limit: Int, after: Option[IndexRecord])(implicit reqCtx: ReqCtx) extends Query {
+  def ctx: ReqCtx = reqCtx
+}
+
+/**
+ * Request for counts of client's records by dimensions, in their order
+ */
+case class ClientAggregate(clientId: String, from: Option[Long], to: Option[Long], by: Seq[Dimension])(implicit reqCtx: ReqCtx) extends Query {
   def ctx: ReqCtx = reqCtx
 }
 
@@ -40,9 +64,9 @@ case class IndexFilter(clientId: String, email: Option[String], queue: Option[St
 case class IndexQuery(from: Option[Long], to: Option[Long], lastOrFirst: Option[Boolean], groupBy: Option[String])
 
 sealed trait View
-case class HomePage(ctx: ReqCtx) extends Request with View
-case class QueryPage(ctx: ReqCtx) extends Request with View
-case class ServerInfo(ctx: ReqCtx) extends Request with View
+case class HomePage(ctx: ReqCtx) extends Query with View
+case class QueryPage(ctx: ReqCtx) extends Query with View
+case class ServerInfo(ctx: ReqCtx) extends Query with View
 
 sealed trait Message
 case class ShutSystemDown(why: String, ex: Option[Throwable] = None) extends Message
@@ -53,17 +77,21 @@ case object GetIndexer extends Message
 sealed trait Indexing
 case object GetTailer extends Message with Indexing
 case object GetCouter extends Message with Indexing
+case object GetQuerier extends Message with Indexing
 case class RestartIndexer(why: String, ex: Option[Throwable] = None) extends Message with Indexing
 case object ParsingBackupFinished extends Message with Indexing
 case class IndexTailedRecords(records: Iterable[ClientIndexRecord]) extends Message with Indexing
 case class IndexBackupRecords(records: Iterable[ClientIndexRecord], file: File, digest: Option[String], last: Boolean) extends Message with Indexing
 case object LogFileRotated extends Message with Indexing
 case object IndexingTailFinished extends Message with Indexing
+case object CommitIndex extends Message with Indexing
+case class CheckpointTail(checkpoint: Checkpoint) extends Message with Indexing
 
 sealed trait Tailing
-case class ReadLines(reader: BufferedReader, batchSize: Int) extends Message with Tailing
-case class ReadBackup(digests: collection.mutable.Set[String]) extends Message with Tailing
+case class ReadLines(tailer: FileTailer) extends Message with Tailing
+case class ReadBackup(digests: collection.mutable.Set[String], checkpoint: Option[Checkpoint]) extends Message with Tailing
 case object StartTailing extends Message with Tailing
+case class TailedRecordsIndexed(count: Int, millis: Long) extends Message with Tailing
 
 sealed trait Line
 case class MessageLine(queueId: String, msgId: String) extends Line
@@ -58,7 +58,19 @@ object Settings {
         c.getString("app.db.auth"),
         c.getInt("app.timing.re-open-tries"),
         sleep(c.getInt("app.timing.re-open-sleep")),
-        sleep(c.getInt("app.timing.eof-wait-for-new-input-sleep"))
+        c.getInt("app.timing.eof-watch-timeout"),
+        c.getInt("app.db.unknown-bounces-limit"),
+        c.getInt("app.logs.backup-parsing-parallelism"),
+        c.getInt("app.bounce-regex-list.cache-size"),
+        c.getBoolean("app.bounce-regex-list.cache-masking"),
+        c.getInt("app.http-server.compression-threshold"),
+        c.getInt("app.http-server.query-parallelism"),
+        c.getInt("app.db.partition-days"),
+        c.getInt("app.db.retention-days"),
+        c.getInt("app.db.commit-records"),
+        c.getInt("app.db.commit-interval"),
+        c.getInt("app.logs.tailing-batch-size"),
+        c.getInt("app.timing.tailing-max-delay")
       )
     ) match {
       case Success(o) =>
@@ -72,7 +84,7 @@ object Settings {
 }
 
 /**
- * @param profilingEnabled profiling has some overhead so you can turn it off
+ * @param profilingEnabled slow calls of profiled methods and their overall latencies are logged, latencies are recorded for agent-metrics anyway
  * @param hostName http server is running on
  * @param notifRcpts email addresses that are to be sent notifications about warnings, errors, unknown bunces etc.
  * @param askTimeout how much time an actor thread is given for answering a request (eq. requesting indexer) before it fails
@@ -91,9 +103,22 @@ object Settings {
  * @param dbAuth encryption key
  * @param reOpenTries number of attempts to re-open a log file after it is moved during log rotation
  * @param reOpenSleep how many miliseconds to wait between re-open tries
- * @param eofNewInputSleep how many miliseconds to wait after reaching log file EOF before reading next line
+ * @param eofWatchTimeout how many miliseconds to wait for a modification event of tailed log file after reaching its EOF before it is read anyway
  * @param rotatedPatternFn backup file name matching constraint so that only backup files in a directory are read (regex for matching backup log files that has been rotated)
  * @param tailedLogFileName name of the log file that is being written to by postfix and tailed by agent
+ * @param unknownBouncesLimit how many of the newest unknown bounces (state 2) are kept in rollups for each client
+ * @param backupParsingParallelism how many backup log files are gunzipped and parsed concurrently on startup, 1 means sequentially
+ * @param bounceCacheSize how many classifications of distinct bounce messages are cached, 0 disables cache
+ * @param bounceCacheMasking whether email addresses, IP addresses and long numbers are masked in bounce cache keys
+ * @param compressionThreshold minimal size in bytes of buffered response to be compressed if client accepts gzip or deflate encoding,
+ *                             streamed responses are always compressed, negative value disables compression
+ * @param queryParallelism how many queries are served concurrently, it is the size of querier pool and of http server thread pool
+ * @param partitionDays how many days of records are stored in an index partition (a db of its own), 0 means that index is not partitioned
+ * @param retentionDays how many days records are kept in partitioned index, whole partitions are dropped when they expire, 0 means forever
+ * @param commitRecords how many indexed records are committed together in a transaction at most
+ * @param commitInterval how many miliseconds indexed records may wait for being committed at most
+ * @param tailingBatchSize how many tailed records are sent to be indexed in a batch at most, actual batch size adapts to indexing time
+ * @param tailingMaxDelay how many miliseconds a tailed record may wait for its batch to be sent to be indexed
  */
 case class Options(
             profilingEnabled: Boolean,
@@ -116,5 +141,17 @@ case class Options(
             dbAuth: String,
             reOpenTries: Int,
             reOpenSleep: () => Unit,
-            eofNewInputSleep: () => Unit
+            eofWatchTimeout: Int,
+            unknownBouncesLimit: Int,
+            backupParsingParallelism: Int,
+            bounceCacheSize: Int,
+            bounceCacheMasking: Boolean,
+            compressionThreshold: Int,
+            queryParallelism: Int,
+            partitionDays: Int,
+            retentionDays: Int,
+            commitRecords: Int,
+            commitInterval: Int,
+            tailingBatchSize: Int,
+            tailingMaxDelay: Int
          )
\ No newline at end of file
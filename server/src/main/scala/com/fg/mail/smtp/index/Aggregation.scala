@@ -0,0 +1,155 @@
+package com.fg.mail.smtp.index
+
+import java.util.{Calendar, GregorianCalendar, Locale, TimeZone}
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.immutable.TreeMap
+
+/**
+ * Dimension that records are counted by
+ */
+sealed abstract class Dimension(val name: String)
+
+object Dimension {
+  case object State extends Dimension("state")
+  case object Status extends Dimension("status")
+  case object Day extends Dimension("day")
+
+  val all = Seq(State, Status, Day)
+
+  def apply(name: String): Option[Dimension] = all.find(_.name == name)
+}
+
+/**
+ * Counts of records by one or more dimensions computed in a single pass, records are not retained.
+ * Each dimension value has a small ordinal (states and statuses known to index are preallocated, day has the ordinal of the order it
+ * was first seen in and it is cached for as long as records fall into the same day, which is almost always because records are iterated by date).
+ * Combination of ordinals is an index of a flat array of counters, so that counting a record does not allocate anything.
+ * Array is laid out again with a larger capacity of a dimension when an ordinal does not fit in it, which is rare.
+ *
+ * Result is a map nested by dimensions in their order with counts as leaves, just count if there are no dimensions.
+ * Every record added is counted, records of state 3 (sent without being deferred) are not filtered out as they are when entries are read.
+ *
+ * @param timeZone that days are delimited in, it should be the zone of log timestamps
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/22/14 10:20 AM u_jli Exp $
+ */
+class Aggregation(dimensions: Seq[Dimension], timeZone: TimeZone) {
+  import Dimension._
+
+  private val dims = dimensions.toArray
+  /** ordinal -> value and value -> ordinal of each dimension */
+  private val labels = Array.fill(dims.length)(new ArrayBuffer[String]())
+  private val ordinals = Array.fill(dims.length)(new java.util.HashMap[String, Integer]())
+  private val capacities = Array.fill(dims.length)(Aggregation.initialCapacity)
+  private var counts = new Array[Long](capacities.product)
+
+  private val calendar = new GregorianCalendar(timeZone, Locale.US)
+  private var dayStart = 0L
+  private var dayEnd = 0L
+  private var dayOrdinal = -1
+
+  dims.indices.foreach { i =>
+    dims(i) match {
+      case State => (0 until ClientRollup.stateCount).foreach(state => ordinalOf(i, state.toString))
+      case Status => Aggregation.statuses.foreach(ordinalOf(i, _))
+      case Day =>
+    }
+  }
+
+  def add(r: IndexRecord) {
+    var index = 0
+    var i = 0
+    while (i < dims.length) {
+      val ordinal = dims(i) match {
+        case State => if (r.state >= 0 && r.state < ClientRollup.stateCount) r.state else ordinalOf(i, r.state.toString)
+        case Status => statusOrdinal(i, r.status)
+        case Day => dayOf(i, r.date)
+      }
+      if (ordinal >= capacities(i))
+        grow(i, ordinal)
+      index = index * capacities(i) + ordinal
+      i += 1
+    }
+    counts(index) += 1
+  }
+
+  /** known statuses are compared in a loop over array, scala collections would allocate an iterator */
+  private def statusOrdinal(i: Int, status: String): Int = {
+    var ordinal = 0
+    while (ordinal < Aggregation.statuses.length && Aggregation.statuses(ordinal) != status)
+      ordinal += 1
+    if (ordinal < Aggregation.statuses.length) ordinal else ordinalOf(i, status)
+  }
+
+  private def ordinalOf(i: Int, label: String): Int = {
+    val ordinal = ordinals(i).get(label)
+    if (ordinal ne null) {
+      ordinal
+    } else {
+      ordinals(i).put(label, labels(i).size)
+      labels(i) += label
+      labels(i).size - 1
+    }
+  }
+
+  private def dayOf(i: Int, date: Long): Int = {
+    if (date < dayStart || date >= dayEnd) {
+      calendar.setTimeInMillis(date)
+      calendar.set(Calendar.HOUR_OF_DAY, 0)
+      calendar.set(Calendar.MINUTE, 0)
+      calendar.set(Calendar.SECOND, 0)
+      calendar.set(Calendar.MILLISECOND, 0)
+      dayStart = calendar.getTimeInMillis
+      dayOrdinal = ordinalOf(i, f"${calendar.get(Calendar.YEAR)}%04d-${calendar.get(Calendar.MONTH) + 1}%02d-${calendar.get(Calendar.DAY_OF_MONTH)}%02d")
+      calendar.add(Calendar.DAY_OF_MONTH, 1)
+      dayEnd = calendar.getTimeInMillis
+    }
+    dayOrdinal
+  }
+
+  /** @return ordinals of dimensions that counter of index counts */
+  private def ordinalsOf(index: Int): Array[Int] = {
+    val result = new Array[Int](dims.length)
+    var rest = index
+    var i = dims.length - 1
+    while (i >= 0) {
+      result(i) = rest % capacities(i)
+      rest /= capacities(i)
+      i -= 1
+    }
+    result
+  }
+
+  /** capacity of dimension is doubled until ordinal fits in it, non-zero counters are moved to their index in the new layout */
+  private def grow(dimension: Int, ordinal: Int) {
+    val cells = counts.indices.filter(counts(_) > 0).map(index => (ordinalsOf(index), counts(index)))
+    while (capacities(dimension) <= ordinal)
+      capacities(dimension) *= 2
+    counts = new Array[Long](capacities.product)
+    cells.foreach { case (cellOrdinals, count) =>
+      counts(cellOrdinals.indices.foldLeft(0)((index, i) => index * capacities(i) + cellOrdinals(i))) = count
+    }
+  }
+
+  def result: Any =
+    if (dims.isEmpty)
+      counts(0)
+    else
+      nest(counts.indices.filter(counts(_) > 0).map { index =>
+        (ordinalsOf(index).zipWithIndex.map { case (ordinal, i) => labels(i)(ordinal) }.toList, counts(index))
+      })
+
+  private def nest(entries: Seq[(List[String], Long)]): Map[String, Any] =
+    entries.groupBy(_._1.head).foldLeft(TreeMap[String, Any]()) { case (acc, (value, group)) =>
+      acc + (value -> (if (group.head._1.tail.isEmpty) group.map(_._2).sum else nest(group.map { case (key, count) => (key.tail, count) })))
+    }
+}
+
+object Aggregation {
+
+  /** how many values of a dimension fit in counters before they are laid out again */
+  val initialCapacity = 8
+
+  private val statuses = IndexKeySerializer.statuses.toArray
+}
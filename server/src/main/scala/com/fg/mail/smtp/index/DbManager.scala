@@ -5,8 +5,18 @@ import java.io.File
 import com.fg.mail.smtp.Options
 import org.slf4j.LoggerFactory
 import com.fg.mail.smtp.util.Profilable
+import java.util.concurrent.ConcurrentSkipListMap
+import java.text.SimpleDateFormat
+import java.util.{Date, TimeZone}
+import scala.collection.JavaConverters._
 
 /**
+ * Index partitions are dbs of their own named by the day their period starts at (UTC), eq. smtpLogDb-partition-20140120,
+ * so that dropping a partition is just deleting its files. Partition that is removed from index is dropped only after its removal is committed
+ * in index db (at the next expiration or start), so that a crash cannot leave client catalog counting records that are gone
+ * and queries that were reading the partition are not cut off.
+ * Dbs cannot be committed atomically, each transaction therefore stores its sequence number to every db so that partitions
+ * committed in a transaction that index db was not (client catalog and rollups of index db do not count their new records) are detected on start.
  *
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 10/28/13 7:35 PM u_jli Exp $
@@ -16,14 +26,109 @@ class DbManager(val o: Options) extends Profilable {
 
   lazy val indexDb: DB = buildIndexDb
 
-  lazy val queueDb = DBMaker.newFileDB(new File(o.dbDir + "/queue"))
-            .commitFileSyncDisable()
-            .closeOnJvmShutdown()
-            .make()
+  lazy val queue: PackedQueue = buildQueue
 
-  def buildIndexDb = {
+  private val day = 24 * 60 * 60 * 1000L
+
+  val partitionPeriod: Long = o.partitionDays * day
+
+  val retentionPeriod: Long = o.retentionDays * day
+
+  private val partitionDbs = new ConcurrentSkipListMap[Long, DB]()
+
+  /** starts of partitions that were removed from index and are to be dropped */
+  private lazy val removedPartitions = indexDb.createTreeSet("removedPartitions").makeOrGet[java.lang.Long]()
+
+  /** name of Atomic.Long with sequence number of the last transaction in every db */
+  val commitSequence = "commitSequence"
+
+  private val partitionNameRegex = ("""\Q""" + o.dbName + """-partition-\E(\d{8})""").r
+
+  private def dayFormat = {
+    val format = new SimpleDateFormat("yyyyMMdd")
+    format.setTimeZone(TimeZone.getTimeZone("UTC"))
+    format
+  }
+
+  def partitionName(start: Long) = s"${o.dbName}-partition-${dayFormat.format(new Date(start))}"
+
+  /**
+   * @return starts of partitions that exist in db directory and were not removed
+   */
+  def partitionStarts: Seq[Long] =
+    Option(new File(o.dbDir).listFiles).fold(Seq[Long]())(_.toSeq.map(_.getName).collect {
+      case partitionNameRegex(d) => dayFormat.parse(d).getTime
+    }.filterNot(start => removedPartitions.contains(start)).sorted)
+
+  /**
+   * @return db of partition that is opened or created if it doesn't exist
+   */
+  def partitionDb(start: Long): DB = synchronized {
+    Option(partitionDbs.get(start)).getOrElse {
+      val db = buildPartitionDb(new File(o.dbDir + "/" + partitionName(start)))
+      partitionDbs.put(start, db)
+      db
+    }
+  }
+
+  /**
+   * Partition is removed in the current transaction, its db is dropped by dropRemovedPartitions after the transaction is committed
+   */
+  def removePartition(start: Long) {
+    removedPartitions.add(start)
+  }
+
+  /**
+   * It must not be called between removePartition and commit, removal would not be durable by then
+   *
+   * @return starts of partitions that were removed and whose dbs were dropped now, their removal is to be committed
+   */
+  def dropRemovedPartitions(): Seq[Long] = {
+    val removed = removedPartitions.asScala.toList.map(_.longValue)
+    removed.foreach { start =>
+      dropPartition(start)
+      removedPartitions.remove(start)
+    }
+    removed
+  }
+
+  /**
+   * Partition db is closed and its files are deleted
+   */
+  private def dropPartition(start: Long) {
+    synchronized {
+      Option(partitionDbs.remove(start)).foreach(_.close())
+    }
+    val name = partitionName(start)
+    Option(new File(o.dbDir).listFiles).foreach(_.filter(f => f.getName == name || f.getName.startsWith(name + ".")).foreach(_.delete()))
+  }
+
+  /**
+   * Queue is journaled to a file of its own, entries of the former queue db are moved to it and the former queue db is deleted.
+   * Journal is replayed to the checkpoint of tailed log file that was committed with index db
+   */
+  def buildQueue: PackedQueue = {
+    val queue = PackedQueue(new File(o.dbDir + "/" + o.dbName + "-queue"), Digestor.getCheckpoint(indexDb, Digestor.name))
+    val legacy = new File(o.dbDir + "/queue")
+    if (legacy.exists()) {
+      val db = DBMaker.newFileDB(legacy).make()
+      val records = Queue(db).records
+      log.info(s"Moving ${records.size} entries of former queue db to queue journal...")
+      records.asScala.foreach { case (qid, qr) => queue.insert(qid, qr) }
+      queue.commit()
+      db.close()
+      Option(new File(o.dbDir).listFiles).foreach(_.filter(f => f.getName == "queue" || f.getName.startsWith("queue.")).foreach(_.delete()))
+    }
+    queue
+  }
+
+  def buildIndexDb: DB = buildDb(new File(o.dbDir + "/" + o.dbName))
+
+  def buildPartitionDb(file: File): DB = buildDb(file)
+
+  private def buildDb(file: File): DB = {
     val dbMaker = DBMaker
-                      .newFileDB(new File(o.dbDir + "/" + o.dbName))
+                      .newFileDB(file)
                       .mmapFileEnablePartial()
                       .commitFileSyncDisable()
                       .asyncWriteFlushDelay(5000)
@@ -34,15 +139,35 @@ class DbManager(val o: Options) extends Profilable {
     dbMaker.make()
   }
 
+  /** index db is committed the last because its checkpoint of tailed log file must not point beyond committed records and queue */
   def commit() = profile(700, "Committing transaction") {
+      val sequence = indexDb.getAtomicLong(commitSequence).incrementAndGet()
+      partitionDbs.values.asScala.foreach { db =>
+        db.getAtomicLong(commitSequence).set(sequence)
+        db.commit()
+      }
+      queue.commit()
       indexDb.commit()
-      queueDb.commit()
+    }
+
+  /**
+   * It must be called before the first commit, which aligns sequence numbers of all dbs
+   *
+   * @return starts of partitions that were committed in a transaction that index db was not committed in
+   */
+  def partitionsAheadOfIndexDb: Seq[Long] =
+    if (partitionPeriod <= 0) {
+      Nil
+    } else {
+      val sequence = indexDb.getAtomicLong(commitSequence).get
+      partitionStarts.filter(start => partitionDb(start).getAtomicLong(commitSequence).get > sequence)
     }
 
   def close() {
     log.info("Closing database")
     indexDb.close()
-    queueDb.close()
+    queue.close()
+    partitionDbs.values.asScala.foreach(_.close())
     log.info("Database closed")
   }
 
@@ -0,0 +1,77 @@
+package com.fg.mail.smtp.index
+
+import org.mapdb.{Serializer, BTreeKeySerializer, DB}
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentNavigableMap}
+import scala.collection.JavaConverters._
+
+/**
+ * Persistent dictionary of strings that are repeated over and over in records (eq. stateInfo that is one of a few dozen bounce categories)
+ * so that records store just their small int ids. Values are only added and ids are never reused, record serialized with an id can always be read.
+ *
+ * Serializers are persisted in db catalog, thus they cannot hold a reference to dictionary. They hold its unique id instead
+ * and dictionary is looked up in registry by it.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/19/14 4:10 PM u_jli Exp $
+ */
+class Dictionary(val id: String, entries: ConcurrentNavigableMap[String, Integer]) {
+
+  private val ids = new ConcurrentHashMap[String, Integer](entries)
+
+  @volatile private var values: Array[String] = {
+    val result = new Array[String](entries.size)
+    entries.asScala.foreach { case (value, i) => result(i) = value }
+    result
+  }
+
+  /**
+   * @return id of value, value is added to dictionary if it is not there yet
+   */
+  def intern(value: String): Int = {
+    val i = ids.get(value)
+    if (i ne null) i else add(value)
+  }
+
+  private def add(value: String): Int = synchronized {
+    val existing = ids.get(value)
+    if (existing ne null) {
+      existing
+    } else {
+      val i = values.length
+      entries.put(value, i)
+      values = values :+ value
+      ids.put(value, i)
+      i
+    }
+  }
+
+  /**
+   * @return id of value or -1 if value is not in dictionary
+   */
+  def idOf(value: String): Int = {
+    val i = if (value eq null) null else ids.get(value)
+    if (i eq null) -1 else i
+  }
+
+  def valueOf(id: Int): String = values(id)
+
+  def size: Int = values.length
+}
+
+object Dictionary {
+
+  private val registry = new ConcurrentHashMap[String, Dictionary]()
+
+  def apply(db: DB, name: String): Dictionary = {
+    val idName = name + "Id"
+    val id = if (db.exists(idName)) db.getAtomicString(idName).get else db.createAtomicString(idName, UUID.randomUUID.toString).get
+    val dictionary = new Dictionary(id, db.createTreeMap(name).keySerializer(BTreeKeySerializer.STRING).valueSerializer(Serializer.INTEGER).makeOrGet())
+    registry.put(id, dictionary)
+    dictionary
+  }
+
+  def registered(id: String): Dictionary =
+    Option(registry.get(id)).getOrElse(throw new IllegalStateException(s"Dictionary $id is not loaded, db must be opened through Index"))
+
+}
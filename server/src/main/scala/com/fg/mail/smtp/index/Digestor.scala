@@ -9,11 +9,13 @@ import com.fg.mail.smtp.util.{Profilable, Commons}
 import org.slf4j.LoggerFactory
 
 /**
+ * Keeps md5 digests of the first lines of rotated log files that were indexed and a checkpoint of the tailed log file
+ * so that neither of them is indexed again after restart
  *
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 10/29/13 5:53 PM u_jli Exp $
  */
-class Digestor(digests: NavigableSet[String], val o: Options) extends Profilable {
+class Digestor(digests: NavigableSet[String], checkpoints: java.util.Map[String, java.lang.Long], val o: Options) extends Profilable {
 
   val log = LoggerFactory.getLogger(getClass)
 
@@ -44,12 +46,39 @@ class Digestor(digests: NavigableSet[String], val o: Options) extends Profilable
     else
       log.warn(s"md5 digest for file $fileName already existed !")
   }
+
+  /** @return the last checkpoint of tailed log file */
+  def getCheckpoint: Option[Checkpoint] = Digestor.checkpointOf(checkpoints)
+
+  /** checkpoint replaces the former one, it is persisted by the next commit of index db */
+  def checkpoint(c: Checkpoint) {
+    checkpoints.clear()
+    checkpoints.put(c.digest, c.offset)
+  }
 }
 
 object Digestor {
 
+  val name = "digests"
+
   def apply(db: DB, name: String, o: Options): Digestor = {
-    new Digestor(db.createTreeSet(name).serializer(BTreeKeySerializer.STRING).makeOrGet(), o)
+    new Digestor(db.createTreeSet(name).serializer(BTreeKeySerializer.STRING).makeOrGet(), checkpoints(db, name), o)
   }
 
+  /** checkpoint is needed before digestor is created, for loading queue as it was at checkpoint */
+  def getCheckpoint(db: DB, name: String): Option[Checkpoint] = checkpointOf(checkpoints(db, name))
+
+  private def checkpointOf(checkpoints: java.util.Map[String, java.lang.Long]): Option[Checkpoint] =
+    checkpoints.asScala.headOption.map { case (md5, offset) => Checkpoint(md5, offset) }
+
+  private def checkpoints(db: DB, name: String): java.util.Map[String, java.lang.Long] = db.getTreeMap[String, java.lang.Long](s"$name-checkpoint")
+
 }
+
+/**
+ * Position in tailed log file that everything before was indexed, queue journal contains a mark of it too
+ *
+ * @param digest md5 digest of the first line of tailed log file
+ * @param offset of the first byte that was not read yet
+ */
+case class Checkpoint(digest: String, offset: Long)
@@ -1,143 +1,260 @@
 package com.fg.mail.smtp.index
 
 import scala.collection.IterableView
-import java.util
 import org.mapdb._
-import java.util.{Comparator, NavigableSet}
+import java.util.concurrent.{ConcurrentSkipListMap, ConcurrentNavigableMap}
 import java.io.{DataInput, DataOutput}
+import java.util.Comparator
 import scala.collection.JavaConverters._
+import org.slf4j.LoggerFactory
 
 /**
  * Index is a set of [clientId, date, indexRecord]
  * Client id log entry is preceding following log entries with the same queue id
  *
+ * Records are stored in partitions of a period of time, each of them in a db of its own (see IndexPartition) so that
+ * queries constrained by time only read partitions that overlap the interval and expired records are dropped with their whole partition.
+ * If index is not partitioned, all records are in a single partition in index db.
+ *
+ * It also keeps a catalog of clients [clientId, ClientSummary] so that clients can be enumerated without touching records.
+ *
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 6/24/13 7:18 PM u_jli Exp $
  */
-class Index(val records: NavigableSet[Fun.Tuple3[String, Long, IndexRecord]]) {
+class Index(val clients: ConcurrentNavigableMap[String, ClientSummary],
+            val partitions: ConcurrentNavigableMap[Long, IndexPartition],
+            val dictionary: Dictionary,
+            partitioning: Option[Partitioning]) {
+  val log = LoggerFactory.getLogger(getClass)
+
+  def isEmpty = partitions.values.asScala.forall(_.isEmpty)
+
+  def size: Long = partitions.values.asScala.map(_.size).sum
 
-  def isEmpty = records.isEmpty
+  /** @return start of partition that records of date belong to, remainder is not negative even for dates before epoch */
+  def startOf(date: Long): Long = partitioning.fold(0L)(p => date - ((date % p.period) + p.period) % p.period)
+
+  /** @return date that older records are expired by retention policy before */
+  def horizon: Long = partitioning.filter(_.retention > 0).fold(Long.MinValue)(System.currentTimeMillis() - _.retention)
+
+  private def partitionFor(date: Long): IndexPartition = {
+    val start = startOf(date)
+    Option(partitions.get(start)).getOrElse {
+      synchronized {
+        Option(partitions.get(start)).getOrElse {
+          log.info(s"Creating partition of ${new java.util.Date(start)}")
+          val partition = partitioning.get.open(start)
+          partitions.put(start, partition)
+          partition
+        }
+      }
+    }
+  }
 
-/*
-  def sizeFor(clientId: String): Int =
-    profile(500, "Counting db records for clientId", "clientId") {
-      records.subSet(Fun.t3(clientId, 0L, null), Fun.t3(clientId, Fun.HI[Long], Fun.HI[IndexRecord])).size()
+  /**
+   * @return partitions that overlap interval in order of time
+   */
+  private def overlapping(from: Option[Long], to: Option[Long], reverse: Boolean): Iterator[IndexPartition] = {
+    val (lo, hi) = (from.fold(Long.MinValue)(startOf), to.fold(Long.MaxValue)(startOf))
+    if (lo > hi) {
+      Iterator.empty
+    } else {
+      val selected = partitions.subMap(lo, true, hi, true)
+      (if (reverse) selected.descendingMap() else selected).values.iterator.asScala
     }
-*/
+  }
+
+  /** records of partitions are concatenated lazily, partitions are selected when iteration starts */
+  private def across[T](from: Option[Long], to: Option[Long], reverse: Boolean)(partitionView: IndexPartition => Iterable[T]): IterableView[T, Iterable[T]] =
+    new Iterable[T] {
+      def iterator: Iterator[T] = overlapping(from, to, reverse).flatMap(partitionView(_).iterator)
+    }.view
 
-  def addRecord(cir: ClientIndexRecord) = {
+  /**
+   * Records older than retention horizon are not indexed at all, they would be dropped anyway
+   *
+   * @return true if record was not indexed yet, client catalog is updated only in that case
+   */
+  def addRecord(cir: ClientIndexRecord): Boolean = {
     val clientId = cir.clientId
     val r = cir.ir
-    records.add(Fun.t3(clientId, r.date, r))
+    val added = r.date >= horizon && partitionFor(r.date).addRecord(clientId, r)
+    if (added)
+      clients.put(clientId, Option(clients.get(clientId)).fold(ClientSummary(1, r.date, r.date))(_.including(r.date)))
+    added
   }
 
   /**
-   * @return lazy view of records by clientId
-   * @note that you can iterate Map values only once because iteration over millions takes more than a few seconds on a single-core machine with NFS
+   * Batch of records is inserted in order of partition, client and date so that consecutive inserts descend to the same BTree nodes
+   * which are cached and already modified in the current transaction
+   *
+   * @return records that were not indexed yet in the order they were inserted
    */
-  def getAsMapWithDisposableValues(interval: Interval): Map[String, IterableView[IndexRecord, Iterable[IndexRecord]]] = {
-    new Iterable[(String, IterableView[IndexRecord, Iterable[IndexRecord]])] {
-      def iterator: Iterator[(String, IterableView[IndexRecord, Iterable[IndexRecord]])] =
-        new Iterator[(String, IterableView[IndexRecord, Iterable[IndexRecord]])] {
-          val clientIt = getClientIds.iterator
-          def hasNext: Boolean = clientIt.hasNext
-          def next(): (String, IterableView[IndexRecord, Iterable[IndexRecord]]) = {
-            val next = clientIt.next()
-            val subIter = records.subSet(
-                                    Fun.t3(next, interval.from.getOrElse(0L), null),
-                                    Fun.t3(next, if (interval.to.isEmpty) Fun.HI[Long] else interval.to.get, Fun.HI[IndexRecord])
-                                  ).iterator()
-            (
-              next,
-              new Iterable[IndexRecord] {
-                def iterator: Iterator[IndexRecord] = {
-                  new Iterator[IndexRecord] {
-                    def hasNext: Boolean = subIter.hasNext
-                    def next(): IndexRecord = subIter.next().c
-                  }
-                }
-              }.view
-            )
-          }
-        }
-    }.toMap
+  def addRecords(records: Iterable[ClientIndexRecord]): Seq[ClientIndexRecord] = inKeyOrder(records).filter(addRecord)
+
+  private def inKeyOrder(records: Iterable[ClientIndexRecord]): Seq[ClientIndexRecord] =
+    records.toArray.sortBy(cir => (startOf(cir.ir.date), cir.clientId, cir.ir.date))
+
+  /**
+   * Client catalog is derived from records, it is built in one pass if index was created before it existed
+   */
+  def backfill() {
+    if (clients.isEmpty && !isEmpty) {
+      log.info("Client catalog is empty, building it from indexed records...")
+      val start = System.currentTimeMillis()
+      val summaries = getClientIdRecordTuples.foldLeft(Map[String, ClientSummary]()) {
+        case (acc, (clientId, r)) => acc.updated(clientId, acc.get(clientId).fold(ClientSummary(1, r.date, r.date))(_.including(r.date)))
+      }
+      clients.putAll(summaries.asJava)
+      log.info(s"Client catalog of ${summaries.size} clients built in ${System.currentTimeMillis() - start} ms")
+    }
   }
 
   /**
-   * @return lazy view of all tuple[clientId, record] - in case it would be really necessary to iterate through possibly tens of millions of records, it better be lazy (such an iteration takes more than a few seconds on a single-core machine with NFS)
-   * @note that you can iterate it only once because iteration over millions takes more than a few seconds on a single-core machine with NFS
+   * Partitions that ended before retention horizon are removed as a whole, client catalog is adjusted by counts of their records.
+   * Their dbs are dropped later (see DbManager.removePartition), only after removal is committed with the adjusted catalog
+   * and queries that started reading them before are over
+   *
+   * @return removed partitions
    */
-  def getClientIdRecordTuples: IterableView[(String, IndexRecord), Iterable[(String, IndexRecord)]] = {
-    new Iterable[(String, IndexRecord)] {
-      def iterator: Iterator[(String, IndexRecord)] = {
-        new Iterator[(String, IndexRecord)] {
-          val iter = records.iterator
-          def hasNext: Boolean = iter.hasNext
-          def next(): (String, IndexRecord) = {
-            val next = iter.next()
-            (next.a, next.c)
+  def expire(): Seq[IndexPartition] = partitioning match {
+    case Some(p) if p.retention > 0 =>
+      val expired = partitions.headMap(horizon - p.period, true).asScala.toList
+      expired.map { case (start, partition) =>
+        val counts = partition.countsByClient
+        partitions.remove(start)
+        p.remove(start)
+        counts.foreach { case (clientId, count) =>
+          Option(clients.get(clientId)).foreach { s =>
+            if (s.count <= count)
+              clients.remove(clientId)
+            else
+              clients.put(clientId, ClientSummary(s.count - count, firstDateOf(clientId).getOrElse(s.firstDate), s.lastDate))
           }
         }
+        log.info(s"Partition of ${new java.util.Date(start)} with ${counts.values.sum} records expired and was removed")
+        partition
       }
-    }.view
+    case _ =>
+      Nil
   }
 
+  /** @return true if client has a record of recipient in any partition, it is looked up by secondary indexes */
+  def hasRcptEmail(clientId: String, rcptEmail: String): Boolean = partitions.values.asScala.exists(_.hasRcptEmail(clientId, rcptEmail))
+
+  private def firstDateOf(clientId: String): Option[Long] =
+    partitions.values.iterator.asScala.flatMap(_.firstDateOf(clientId)).toStream.headOption
+
+  /** @return date of the oldest record */
+  def firstDate: Option[Long] = clients.values.asScala.map(_.firstDate).reduceOption(_ min _)
+
+  /**
+   * @return lazy view of records by clientId
+   * @note that you can iterate Map values only once because iteration over millions takes more than a few seconds on a single-core machine with NFS
+   */
+  def getAsMapWithDisposableValues(interval: Interval): Map[String, IterableView[IndexRecord, Iterable[IndexRecord]]] =
+    getClientIds.map(clientId => clientId -> getRecordsFor(clientId, interval)).toMap
+
+  /**
+   * @return lazy view of all tuple[clientId, record] - in case it would be really necessary to iterate through possibly tens of millions of records, it better be lazy (such an iteration takes more than a few seconds on a single-core machine with NFS)
+   * @note that you can iterate it only once because iteration over millions takes more than a few seconds on a single-core machine with NFS
+   */
+  def getClientIdRecordTuples: IterableView[(String, IndexRecord), Iterable[(String, IndexRecord)]] =
+    across(None, None, reverse = false)(_.getClientIdRecordTuples)
+
   /**
    * @return lazy view of records - in case it would be really necessary to iterate through possibly tens of millions of records, it better be lazy (such an iteration takes more than a few seconds on a single-core machine with NFS)
    * @note that you can iterate it only once because iteration over millions takes more than a few seconds on a single-core machine with NFS
    */
-  def getRecords: IterableView[IndexRecord, Iterable[IndexRecord]] = {
-    new Iterable[IndexRecord] {
-      def iterator: Iterator[IndexRecord] = {
-        new Iterator[IndexRecord] {
-          val iter = records.iterator
-          def hasNext: Boolean = iter.hasNext
-          def next(): IndexRecord = iter.next().c
-        }
-      }
-    }.view
-  }
+  def getRecords: IterableView[IndexRecord, Iterable[IndexRecord]] =
+    across(None, None, reverse = false)(_.getClientIdRecordTuples.map(_._2))
 
   /**
    * @param interval time constraint - if it contains None values, it means the interval is open
    * @param reverse true means descending order, false ascending
+   * @param after record of a cursor that records follow after in ascending order, it supersedes lower bound of interval
    * @return lazy view of all records for particular clientId constrained by specified interval
    * @note that you can iterate it only once because iteration over millions takes more than a few seconds on a single-core machine with NFS
    */
-  def getRecordsFor(clientId: String, interval: Interval, reverse: Boolean = false): IterableView[IndexRecord, Iterable[IndexRecord]] = {
-    new Iterable[IndexRecord] {
-      def iterator: Iterator[IndexRecord] = {
-        new Iterator[IndexRecord] {
-          val iter = records.subSet(
-                              Fun.t3(clientId, interval.from.getOrElse(0L), null),
-                              Fun.t3(clientId, if (interval.to.isEmpty) Fun.HI[Long] else interval.to.get, Fun.HI[IndexRecord])
-                          ) match {
-                              case ss: util.NavigableSet[Fun.Tuple3[String, Long, IndexRecord]] if reverse => ss.descendingIterator()
-                              case ss: util.NavigableSet[Fun.Tuple3[String, Long, IndexRecord]] if !reverse => ss.iterator()
-                              case _ => throw new IllegalStateException("BTreeMap KeySet's subset ain't NavigableSet")
-                          }
-          def hasNext: Boolean = iter.hasNext
-          def next(): IndexRecord = iter.next.c
-        }
-      }
-    }.view
-  }
+  def getRecordsFor(clientId: String, interval: Interval, reverse: Boolean = false, after: Option[IndexRecord] = None): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    across(after.fold(interval.from)(r => Some(r.date)), interval.to, reverse)(_.getRecordsFor(clientId, interval, reverse, after))
+
+  /**
+   * @return lazy view of records for particular clientId and recipient email address constrained by specified interval, looked up by secondary index
+   * @note that you can iterate it only once
+   */
+  def getRecordsByRcptEmail(clientId: String, rcptEmail: String, interval: Interval, reverse: Boolean = false, after: Option[IndexRecord] = None): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    across(after.fold(interval.from)(r => Some(r.date)), interval.to, reverse)(_.getRecordsByRcptEmail(clientId, rcptEmail, interval, reverse, after))
+
+  /**
+   * @return lazy view of records for particular clientId and queue id constrained by specified interval, looked up by secondary index
+   * @note that you can iterate it only once
+   */
+  def getRecordsByQueueId(clientId: String, queueId: String, interval: Interval, reverse: Boolean = false, after: Option[IndexRecord] = None): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    across(after.fold(interval.from)(r => Some(r.date)), interval.to, reverse)(_.getRecordsByQueueId(clientId, queueId, interval, reverse, after))
+
+  /**
+   * @return lazy view of records for particular clientId and message id constrained by specified interval, looked up by secondary index
+   * @note that you can iterate it only once
+   */
+  def getRecordsByMsgId(clientId: String, msgId: String, interval: Interval, reverse: Boolean = false, after: Option[IndexRecord] = None): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    across(after.fold(interval.from)(r => Some(r.date)), interval.to, reverse)(_.getRecordsByMsgId(clientId, msgId, interval, reverse, after))
+
+  /** serializer of records with stateInfo dictionary of index db */
+  def keySerializer = new IndexKeySerializer(dictionary.id)
+
+  /**
+   * @return tuple (estimated size of records in current format, estimated size of records in former format) in bytes, summed over partitions
+   */
+  def estimateSerializedSize(sampleSize: Int): (Long, Long) =
+    partitions.values.asScala.map(_.estimateSerializedSize(sampleSize)).foldLeft((0L, 0L)) { case ((c, l), (pc, pl)) => (c + pc, l + pl) }
+
+  /** Resolving client ids from records would have O(n) complexity which is deadly for millions of records, client catalog has O(#clients) */
+  def getClientIds: Iterable[String] = clients.keySet.asScala
+
+  def getClientSummaries: Map[String, ClientSummary] = clients.asScala.toMap
+
+  def getClientSummary(clientId: String): Option[ClientSummary] = Option(clients.get(clientId))
+}
+
+/**
+ * @param period length of partitions in milliseconds
+ * @param retention how long records are kept in milliseconds, 0 means forever
+ * @param open opens or creates partition of start
+ * @param remove marks partition of start to be dropped with its db once its removal is committed
+ */
+case class Partitioning(period: Long, retention: Long, open: Long => IndexPartition, remove: Long => Unit)
+
+/**
+ * Statistics of a client that are maintained along with records
+ *
+ * @param count of records indexed for the client
+ * @param firstDate the oldest record date
+ * @param lastDate the newest record date
+ */
+case class ClientSummary(count: Long, firstDate: Long, lastDate: Long) {
+
+  def including(date: Long) = ClientSummary(count + 1, math.min(firstDate, date), math.max(lastDate, date))
+
+}
 
-  /** Resolving client ids from MapDb would have O(n) complexity which is deadly for millions of records (such an iteration takes more than a few seconds on a single-core machine with NFS) */
-  def getClientIds: Iterable[String] = {
-    val s = new java.util.TreeSet[Fun.Tuple3[String, Long, IndexRecord]](
-                new Comparator[Fun.Tuple3[String, Long, IndexRecord]] {
-                      def compare(o1: Fun.Tuple3[String, Long, IndexRecord], o2: Fun.Tuple3[String, Long, IndexRecord]): Int = o1.a.compare(o2.a)
-                }
-            )
-    s.addAll(records)
-    s.asScala.map(_.a)
+class ClientSummarySerializer extends Serializer[ClientSummary] with Serializable {
+
+  def serialize(out: DataOutput, s: ClientSummary) {
+    out.writeLong(s.count)
+    out.writeLong(s.firstDate)
+    out.writeLong(s.lastDate)
   }
+
+  def deserialize(in: DataInput, available: Int): ClientSummary = ClientSummary(in.readLong(), in.readLong(), in.readLong())
+
+  def fixedSize(): Int = 24
 }
 
 
 /**
- * It tells MapDb how to serialize IndexRecord for it to perform better
+ * It tells MapDb how to serialize IndexRecord for it to perform better. It is the former format of records, databases created with it
+ * are migrated to IndexKeySerializer on startup
  */
 class IndexRecordSerializer extends Serializer[IndexRecord] with Serializable {
 
@@ -160,16 +277,185 @@ class IndexRecordSerializer extends Serializer[IndexRecord] with Serializable {
   def fixedSize(): Int = -1
 }
 
+/**
+ * Compact format of [clientId, date, IndexRecord] keys. Keys of a BTree node are serialized together so that clientId, queueId and msgId
+ * equal to the previous key's ones are just flagged (recipients of a message are mostly in the same node) and dates are packed deltas.
+ * Status is a small int, the most common sender 'unknown' is a flag and stateInfo is an id in persistent dictionary.
+ * Values that are not known (a new status, stateInfo that was not interned) are stored inline.
+ *
+ * @param dictionaryId id of Dictionary of stateInfo values, dictionary itself cannot be referenced because serializer is persisted in db catalog
+ */
+class IndexKeySerializer(val dictionaryId: String) extends BTreeKeySerializer[Fun.Tuple3[String, java.lang.Long, IndexRecord]] with Serializable {
+  import IndexKeySerializer._
+
+  def serialize(out: DataOutput, start: Int, end: Int, keys: Array[AnyRef]) {
+    val dictionary = Dictionary.registered(dictionaryId)
+    var previous: Fun.Tuple3[String, java.lang.Long, IndexRecord] = null
+    var i = start
+    while (i < end) {
+      val key = keys(i).asInstanceOf[Fun.Tuple3[String, java.lang.Long, IndexRecord]]
+      val r = key.c
+      val date: Long = key.b
+      val status = statuses.indexOf(r.status)
+      val stateInfo = dictionary.idOf(r.stateInfo)
+
+      var flags = 0
+      if ((previous ne null) && previous.a == key.a) flags |= SameClient
+      if ((previous ne null) && previous.c.queueId == r.queueId) flags |= SameQueueId
+      if ((previous ne null) && previous.c.msgId == r.msgId) flags |= SameMsgId
+      if (r.senderEmail == unknownSender) flags |= UnknownSender
+      if (r.date == date) flags |= DateOfKey
+      if (status < 0) flags |= InlineStatus
+      if (stateInfo < 0) flags |= InlineStateInfo
+      out.writeByte(flags)
+
+      if ((flags & SameClient) == 0) {
+        out.writeUTF(key.a)
+        DataOutput2.packLong(out, date)
+      } else {
+        DataOutput2.packLong(out, date - previous.b.longValue)
+      }
+      if ((flags & DateOfKey) == 0) out.writeLong(r.date)
+      if ((flags & SameQueueId) == 0) out.writeUTF(r.queueId)
+      if ((flags & SameMsgId) == 0) out.writeUTF(r.msgId)
+      out.writeUTF(r.rcptEmail)
+      if ((flags & UnknownSender) == 0) out.writeUTF(r.senderEmail)
+      if (status < 0) out.writeUTF(r.status) else out.writeByte(status)
+      out.writeUTF(r.info)
+      DataOutput2.packInt(out, r.state)
+      if (stateInfo < 0) out.writeUTF(r.stateInfo) else DataOutput2.packInt(out, stateInfo)
+
+      previous = key
+      i += 1
+    }
+  }
+
+  def deserialize(in: DataInput, start: Int, end: Int, size: Int): Array[AnyRef] = {
+    val dictionary = Dictionary.registered(dictionaryId)
+    val result = new Array[AnyRef](size)
+    var clientId: String = null
+    var date = 0L
+    var queueId: String = null
+    var msgId: String = null
+    var i = start
+    while (i < end) {
+      val flags = in.readUnsignedByte()
+      if ((flags & SameClient) == 0) {
+        clientId = in.readUTF()
+        date = DataInput2.unpackLong(in)
+      } else {
+        date += DataInput2.unpackLong(in)
+      }
+      val recordDate = if ((flags & DateOfKey) == 0) in.readLong() else date
+      if ((flags & SameQueueId) == 0) queueId = in.readUTF()
+      if ((flags & SameMsgId) == 0) msgId = in.readUTF()
+      val rcptEmail = in.readUTF()
+      val senderEmail = if ((flags & UnknownSender) == 0) in.readUTF() else unknownSender
+      val status = if ((flags & InlineStatus) == 0) statuses(in.readUnsignedByte()) else in.readUTF()
+      val info = in.readUTF()
+      val state = DataInput2.unpackInt(in)
+      val stateInfo = if ((flags & InlineStateInfo) == 0) dictionary.valueOf(DataInput2.unpackInt(in)) else in.readUTF()
+
+      result(i) = Fun.t3(clientId, date, IndexRecord(recordDate, queueId, msgId, rcptEmail, senderEmail, status, info, state, stateInfo))
+      i += 1
+    }
+    result
+  }
+
+  def getComparator(): Comparator[Fun.Tuple3[String, java.lang.Long, IndexRecord]] =
+    BTreeMap.COMPARABLE_COMPARATOR.asInstanceOf[Comparator[Fun.Tuple3[String, java.lang.Long, IndexRecord]]]
+
+}
+
+object IndexKeySerializer {
+
+  val statuses = IndexedSeq("sent", "deferred", "bounced", "expired")
+
+  val unknownSender = "unknown"
+
+  private val SameClient = 1
+  private val SameQueueId = 2
+  private val SameMsgId = 4
+  private val UnknownSender = 8
+  private val DateOfKey = 16
+  private val InlineStatus = 32
+  private val InlineStateInfo = 64
+}
+
 /** Time constraint for getting records that occurred at a period of time 'from - to'. None means the interval is open. */
 case class Interval(from: Option[Long], to: Option[Long])
 
 object Index {
+  val log = LoggerFactory.getLogger(getClass)
+
+  /** Node size 6 proved to be the most optimal value for IndexRecord persistence */
+  val nodeSize = 6
+
+  /** how many records are moved into partitions in a transaction */
+  val migrationBatchSize = 100000
+
+  /** how many keys are sorted in memory at once when a collection is bulk loaded from keys that are not in order */
+  val pumpPresortSize = 100000
+
+  /** the former format of records */
+  val legacySerializer = new BTreeKeySerializer.Tuple3KeySerializer[String, java.lang.Long, IndexRecord](null, null, Serializer.STRING, Serializer.LONG, new IndexRecordSerializer)
 
-  val serializer = new BTreeKeySerializer.Tuple3KeySerializer[String, java.lang.Long, IndexRecord](null, null, Serializer.STRING, Serializer.LONG, new IndexRecordSerializer)
+  /** [clientId, property value, date] */
+  val secondarySerializer = new BTreeKeySerializer.Tuple3KeySerializer[String, String, java.lang.Long](null, null, Serializer.STRING, Serializer.STRING, Serializer.LONG)
 
-  def apply(db: DB, name: String) = {
-    /** Node size 6 proved to be the most optimal value for IndexRecord persistence */
-    new Index(db.createTreeSet(name).counterEnable().nodeSize(6).serializer(serializer).makeOrGet())
+  /**
+   * @param rebuild client catalog is built again from records, it doesn't count records of partitions that were committed without index db
+   * @return index partitioned as configured in options of dbManager
+   */
+  def apply(dbManager: DbManager, name: String, rebuild: Boolean = false): Index = {
+    val db = dbManager.indexDb
+    if (dbManager.partitionPeriod <= 0) {
+      apply(db, name)
+    } else {
+      val partitioning = Partitioning(dbManager.partitionPeriod, dbManager.retentionPeriod, start => IndexPartition(dbManager.partitionDb(start), name), dbManager.removePartition)
+      val partitions = new ConcurrentSkipListMap[Long, IndexPartition]()
+      dbManager.partitionStarts.foreach(start => partitions.put(start, partitioning.open(start)))
+      val index = new Index(clientsOf(db, name), partitions, Dictionary(db, name + "StateInfos"), Some(partitioning))
+      repartition(db, name, index, dbManager)
+      if (rebuild)
+        index.clients.clear()
+      index.backfill()
+      index
+    }
+  }
+
+  /**
+   * @return index that is not partitioned, all records are in a single partition in db
+   */
+  def apply(db: DB, name: String): Index = {
+    val dictionary = Dictionary(db, name + "StateInfos")
+    val partitions = new ConcurrentSkipListMap[Long, IndexPartition]()
+    partitions.put(0L, IndexPartition(db, name, dictionary))
+    val index = new Index(clientsOf(db, name), partitions, dictionary, None)
+    index.backfill()
+    index
   }
 
-}
\ No newline at end of file
+  private def clientsOf(db: DB, name: String) =
+    db.createTreeMap(name + "Clients").keySerializer(BTreeKeySerializer.STRING).valueSerializer(new ClientSummarySerializer).makeOrGet[String, ClientSummary]()
+
+  /**
+   * Records of index that was not partitioned are moved to partitions, client catalog stays as it is. Moving that was interrupted
+   * is started over because records already moved are not added twice and the former collections are deleted only after all records were moved.
+   */
+  private def repartition(db: DB, name: String, index: Index, dbManager: DbManager) {
+    if (db.exists(name)) {
+      val start = System.currentTimeMillis()
+      val legacy = IndexPartition(db, name, index.dictionary)
+      log.info(s"Moving ${legacy.size} records into partitions...")
+      legacy.getClientIdRecordTuples.grouped(migrationBatchSize).foreach { batch =>
+        index.inKeyOrder(batch.map { case (clientId, r) => ClientIndexRecord(clientId, r, false) }).foreach(cir => index.partitionFor(cir.ir.date).addRecord(cir.clientId, cir.ir))
+        dbManager.commit()
+      }
+      IndexPartition.collectionNames(name).filter(db.exists).foreach(db.delete)
+      db.commit()
+      log.info(s"Records moved into ${index.partitions.size} partitions in ${System.currentTimeMillis() - start} ms")
+    }
+  }
+
+}
@@ -0,0 +1,224 @@
+package com.fg.mail.smtp.index
+
+import scala.collection.IterableView
+import org.mapdb._
+import java.util.NavigableSet
+import scala.collection.JavaConverters._
+import org.slf4j.LoggerFactory
+
+/**
+ * Store of records of a period of time (all records if index is not partitioned). It is a set of [clientId, date, indexRecord]
+ * with secondary indexes [clientId, rcptEmail | queueId | msgId, date] so that records can be looked up by these properties without a full scan.
+ * Records are stored in compact format of IndexKeySerializer, stateInfo values are interned in a persistent dictionary.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/22/14 2:30 PM u_jli Exp $
+ */
+class IndexPartition(val records: NavigableSet[Fun.Tuple3[String, Long, IndexRecord]],
+                     val byRcptEmail: NavigableSet[Fun.Tuple3[String, String, Long]],
+                     val byQueueId: NavigableSet[Fun.Tuple3[String, String, Long]],
+                     val byMsgId: NavigableSet[Fun.Tuple3[String, String, Long]],
+                     val dictionary: Dictionary) {
+  val log = LoggerFactory.getLogger(getClass)
+
+  private val secondaries = List[(NavigableSet[Fun.Tuple3[String, String, Long]], IndexRecord => String)](
+    (byRcptEmail, (r: IndexRecord) => r.rcptEmail),
+    (byQueueId, (r: IndexRecord) => r.queueId),
+    (byMsgId, (r: IndexRecord) => r.msgId)
+  )
+
+  def isEmpty = records.isEmpty
+
+  def size: Long = records.size
+
+  /**
+   * @return true if record was not indexed yet, secondary indexes are updated only in that case
+   */
+  def addRecord(clientId: String, r: IndexRecord): Boolean = {
+    if (r.stateInfo ne null) dictionary.intern(r.stateInfo)
+    val added = records.add(Fun.t3(clientId, r.date, r))
+    if (added)
+      addSecondaries(clientId, r)
+    added
+  }
+
+  private def addSecondaries(clientId: String, r: IndexRecord) {
+    secondaries.foreach { case (secondary, property) =>
+      val value = property(r)
+      if (value ne null)
+        secondary.add(Fun.t3(clientId, value, r.date))
+    }
+  }
+
+  /**
+   * @return lazy view of all tuple[clientId, record]
+   * @note that you can iterate it only once
+   */
+  def getClientIdRecordTuples: IterableView[(String, IndexRecord), Iterable[(String, IndexRecord)]] =
+    new Iterable[(String, IndexRecord)] {
+      def iterator: Iterator[(String, IndexRecord)] = records.iterator.asScala.map(t => (t.a, t.c))
+    }.view
+
+  /**
+   * @return lazy view of all records for particular clientId constrained by interval, see Index.getRecordsFor
+   */
+  def getRecordsFor(clientId: String, interval: Interval, reverse: Boolean, after: Option[IndexRecord]): IterableView[IndexRecord, Iterable[IndexRecord]] = {
+    new Iterable[IndexRecord] {
+      def iterator: Iterator[IndexRecord] = {
+        new Iterator[IndexRecord] {
+          val upper = Fun.t3(clientId, if (interval.to.isEmpty) Fun.HI[Long] else interval.to.get, Fun.HI[IndexRecord])
+          val iter = (after match {
+                              case Some(r) => records.subSet(Fun.t3(clientId, r.date, r), false, upper, false)
+                              case None => records.subSet(Fun.t3(clientId, interval.from.getOrElse(0L), null), true, upper, false)
+                          }) match {
+                              case ss if reverse => ss.descendingIterator()
+                              case ss => ss.iterator()
+                          }
+          def hasNext: Boolean = iter.hasNext
+          def next(): IndexRecord = iter.next.c
+        }
+      }
+    }.view
+  }
+
+  def getRecordsByRcptEmail(clientId: String, rcptEmail: String, interval: Interval, reverse: Boolean, after: Option[IndexRecord]): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    getRecordsBy(byRcptEmail, _.rcptEmail, clientId, rcptEmail, interval, reverse, after)
+
+  def getRecordsByQueueId(clientId: String, queueId: String, interval: Interval, reverse: Boolean, after: Option[IndexRecord]): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    getRecordsBy(byQueueId, _.queueId, clientId, queueId, interval, reverse, after)
+
+  def getRecordsByMsgId(clientId: String, msgId: String, interval: Interval, reverse: Boolean, after: Option[IndexRecord]): IterableView[IndexRecord, Iterable[IndexRecord]] =
+    getRecordsBy(byMsgId, _.msgId, clientId, msgId, interval, reverse, after)
+
+  /**
+   * Secondary index yields distinct dates of records with the property value, only records of these dates are read from the primary index.
+   * Records of cursor's date are read from the one right after cursor's record
+   */
+  private def getRecordsBy(secondary: NavigableSet[Fun.Tuple3[String, String, Long]], property: IndexRecord => String,
+                           clientId: String, value: String, interval: Interval, reverse: Boolean, after: Option[IndexRecord]): IterableView[IndexRecord, Iterable[IndexRecord]] = {
+    new Iterable[IndexRecord] {
+      def iterator: Iterator[IndexRecord] = {
+        val keys = secondary.subSet(
+                            Fun.t3(clientId, value, after.fold(interval.from.getOrElse(0L))(_.date)), true,
+                            Fun.t3(clientId, value, if (interval.to.isEmpty) Fun.HI[Long] else interval.to.get), true
+                        )
+        (if (reverse) keys.descendingIterator() else keys.iterator()).asScala.flatMap { key =>
+          val sameDate = after.filter(_.date == key.c) match {
+            case Some(r) => records.subSet(Fun.t3(clientId, key.c, r), false, Fun.t3(clientId, key.c, Fun.HI[IndexRecord]), true)
+            case None => records.subSet(Fun.t3(clientId, key.c, null), true, Fun.t3(clientId, key.c, Fun.HI[IndexRecord]), true)
+          }
+          (if (reverse) sameDate.descendingIterator() else sameDate.iterator()).asScala.map(_.c).filter(r => property(r) == value)
+        }
+      }
+    }.view
+  }
+
+  /** @return date of the oldest record of client in this partition */
+  def firstDateOf(clientId: String): Option[Long] =
+    Option(records.ceiling(Fun.t3(clientId, 0L, null))).filter(_.a == clientId).map(_.b)
+
+  /** @return true if client has a record of recipient in this partition, it is looked up by secondary index */
+  def hasRcptEmail(clientId: String, rcptEmail: String): Boolean =
+    Option(byRcptEmail.ceiling(Fun.t3(clientId, rcptEmail, Long.MinValue))).exists(t => t.a == clientId && t.b == rcptEmail)
+
+  /** @return distinct clients of partition, it skips to the next client by lookup instead of iterating records */
+  def getClientIds: Iterator[String] =
+    Iterator.iterate(if (records.isEmpty) None else Some(records.first.a)) {
+      _.flatMap(clientId => Option(records.higher(Fun.t3(clientId, Fun.HI[Long], Fun.HI[IndexRecord]))).map(_.a))
+    }.takeWhile(_.isDefined).map(_.get)
+
+  /** @return count of records by client, it iterates all records of partition */
+  def countsByClient: Map[String, Long] =
+    records.asScala.foldLeft(Map[String, Long]()) { case (acc, t) => acc.updated(t.a, acc.getOrElse(t.a, 0L) + 1) }
+
+  def keySerializer = new IndexKeySerializer(dictionary.id)
+
+  /**
+   * Records from the beginning of partition are serialized in chunks of node size by both current and former format, sizes are extrapolated to all records
+   *
+   * @return tuple (estimated size of records in current format, estimated size of records in former format) in bytes
+   */
+  def estimateSerializedSize(sampleSize: Int): (Long, Long) = {
+    val sample = records.asScala.iterator.take(sampleSize).toArray[AnyRef]
+    if (sample.isEmpty) {
+      (0L, 0L)
+    } else {
+      def sizeOf(serializer: BTreeKeySerializer[_]): Long =
+        sample.grouped(Index.nodeSize).map { keys =>
+          val out = new DataOutput2()
+          serializer.serialize(out, 0, keys.length, keys)
+          out.pos.toLong
+        }.sum
+      val total = records.size.toLong
+      (sizeOf(keySerializer) * total / sample.length, sizeOf(Index.legacySerializer) * total / sample.length)
+    }
+  }
+
+}
+
+object IndexPartition {
+  import Index._
+
+  /** partition that has a dictionary of its own in its db */
+  def apply(db: DB, name: String): IndexPartition = apply(db, name, Dictionary(db, name + "StateInfos"))
+
+  def apply(db: DB, name: String, dictionary: Dictionary): IndexPartition = {
+    migrate(db, name, dictionary)
+    val records = db.createTreeSet(name).counterEnable().nodeSize(nodeSize).serializer(new IndexKeySerializer(dictionary.id)).makeOrGet[Fun.Tuple3[String, Long, IndexRecord]]()
+    new IndexPartition(
+      records,
+      secondary(db, name + "ByRcptEmail", records, _.rcptEmail),
+      secondary(db, name + "ByQueueId", records, _.queueId),
+      secondary(db, name + "ByMsgId", records, _.msgId),
+      dictionary
+    )
+  }
+
+  /**
+   * Secondary index that does not exist yet is bulk loaded from records by MapDB pump, keys are presorted in batches because
+   * they are not in order of records. It is much faster than inserting keys one by one into BTree.
+   * Existing secondary index is never rebuilt, even if it is empty because no record has the property, so that start does not scan records.
+   * Secondary index that was built but not committed does not exist after restart, it is built again then
+   */
+  private def secondary(db: DB, name: String, records: NavigableSet[Fun.Tuple3[String, Long, IndexRecord]], property: IndexRecord => String): NavigableSet[Fun.Tuple3[String, String, Long]] =
+    if (db.exists(name) || records.isEmpty) {
+      db.createTreeSet(name).serializer(secondarySerializer).makeOrGet()
+    } else {
+      val start = System.currentTimeMillis()
+      val keys = records.iterator.asScala.filter(t => property(t.c) ne null).map(t => Fun.t3(t.a, property(t.c), t.b))
+      val secondary = db.createTreeSet(name).pumpSource(keys.asJava).pumpPresort(pumpPresortSize).pumpIgnoreDuplicates().serializer(secondarySerializer).make[Fun.Tuple3[String, String, Long]]()
+      log.info(s"Secondary index $name built from ${records.size} records in ${System.currentTimeMillis() - start} ms")
+      secondary
+    }
+
+  /** names of collections of partition in db */
+  def collectionNames(name: String) = Seq(name, name + "ByRcptEmail", name + "ByQueueId", name + "ByMsgId")
+
+  /**
+   * Records of former format are bulk loaded by MapDB pump to a new collection of IndexKeySerializer format that replaces the former one.
+   * Pump takes keys in descending order which is how former collection is iterated backwards.
+   * Migration that was interrupted is started over because the former collection is deleted only after all records were copied.
+   */
+  private def migrate(db: DB, name: String, dictionary: Dictionary) {
+    val migrating = name + "Migrating"
+    if (db.exists(migrating)) {
+      if (db.exists(name)) db.delete(migrating) else db.rename(migrating, name)
+    }
+    if (db.exists(name) && !db.getCatalog.get(name + ".keySerializer").isInstanceOf[IndexKeySerializer]) {
+      val start = System.currentTimeMillis()
+      val legacy = db.getTreeSet[Fun.Tuple3[String, Long, IndexRecord]](name)
+      log.info(s"Migrating ${legacy.size} records to compact format...")
+      val descending = legacy.descendingIterator().asScala.map { t =>
+        if (t.c.stateInfo ne null) dictionary.intern(t.c.stateInfo)
+        t
+      }
+      db.createTreeSet(migrating).pumpSource(descending.asJava).counterEnable().nodeSize(nodeSize).serializer(new IndexKeySerializer(dictionary.id)).make[Fun.Tuple3[String, Long, IndexRecord]]()
+      db.commit()
+      db.delete(name)
+      db.rename(migrating, name)
+      db.commit()
+      log.info(s"Records migrated in ${System.currentTimeMillis() - start} ms")
+    }
+  }
+
+}
@@ -5,41 +5,31 @@ import com.fg.mail.smtp._
 import com.fg.mail.smtp.tail.TailingReader
 import com.fg.mail.smtp.notification.MailClient
 import akka.pattern.ask
-import com.fg.mail.smtp.rest.{Controller, Server}
-import com.fg.mail.smtp.util.{ServerInfoService, Profilable}
+import com.fg.mail.smtp.rest.Server
+import com.fg.mail.smtp.util.{Metrics, Profilable}
 import java.io.File
 import akka.dispatch.{BoundedDequeBasedMessageQueueSemantics, RequiresMessageQueue}
-import com.fg.mail.smtp.stats.{LastIndexingStatus, GetCountStatus}
-import com.fg.mail.smtp.rest.Dispatcher._
-import com.fg.mail.smtp.stats.CountClientRequest
-import com.fg.mail.smtp.RcptAddresses
+import com.fg.mail.smtp.stats.{CountIngestedRecords, LastIndexingStatus, GetCountStatus}
 import com.fg.mail.smtp.RestartAgent
 import com.fg.mail.smtp.ShutdownAgent
-import com.fg.mail.smtp.UnknownBounces
 import com.fg.mail.smtp.RefreshBounceList
-import com.fg.mail.smtp.IndexQuery
 import scala.Some
-import com.fg.mail.smtp.IndexAge
 import com.fg.mail.smtp.Options
 import com.fg.mail.smtp.ReadBackup
 import com.fg.mail.smtp.IndexTailedRecords
-import com.fg.mail.smtp.Client
-import com.fg.mail.smtp.Html
-import com.fg.mail.smtp.MemoryUsage
-import com.fg.mail.smtp.IndexedLogFiles
 import com.fg.mail.smtp.RestartIndexer
-import com.fg.mail.smtp.GetDisposableRecordsByClientId
-import com.fg.mail.smtp.IndexMemoryFootprint
-import com.fg.mail.smtp.IndexFilter
 import com.fg.mail.smtp.ShutSystemDown
 import com.fg.mail.smtp.IndexBackupRecords
-import com.fg.mail.smtp.RcptAddressCounts
 import com.fg.mail.smtp.ReindexAgent
-import scala.collection.immutable.HashSet
 import akka.event.LoggingReceive
+import akka.routing.SmallestMailboxPool
+import scala.concurrent.duration._
 
 /**
- * An Akka actor responsible for indexing back up log files and listening to Tailer actor for upcoming log entries to be indexed
+ * An Akka actor responsible for indexing back up log files and listening to Tailer actor for upcoming log entries to be indexed.
+ * Read-only queries are served by a pool of Querier actors so that they don't delay indexing.
+ * Indexed records are committed in groups by size and time, see groupCommit. How long indexing of tailed records took is reported back
+ * to tailer that adapts size of batches to it. Checkpoints of tailed log file are committed with records so that tailing continues from the last one after restart.
  *
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 6/24/13 5:29 PM u_jli Exp $
@@ -47,26 +37,44 @@ import akka.event.LoggingReceive
 class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends Actor with UnrestrictedStash with RequiresMessageQueue[BoundedDequeBasedMessageQueueSemantics] with ActorLogging with Profilable {
 
   var timer: Long = System.currentTimeMillis()
-  val multipleGroupingRegex = """([a-zA-z]{2,10})-and-([a-zA-z]{2,10})""".r
-  val serverInfoService: ServerInfoService = new ServerInfoService(o)
-  val controller: Controller = new Controller(serverInfoService, o)
   var tailer: ActorRef = context.system.deadLetters
+  var querier: ActorRef = context.system.deadLetters
   var index: Index = _
+  var rollups: Rollups = _
   var digestor: Digestor = _
 
+  /* records indexed since the last commit, when the first of them was indexed and how long indexing and committing them took */
+  var uncommitted: Long = 0
+  var uncommittedSince: Long = 0
+  var ingestingNanos: Long = 0
+  var commitTick: Cancellable = _
+  val indexedRecords = Metrics.counter("indexed_records")
+
   import context.dispatcher
   lazy implicit val timeout = o.askTimeout
 
   override def preStart() {
     log.info(" is starting")
-    index = Index(dbManager.indexDb, "records")
-    digestor = Digestor(dbManager.indexDb, "digests", o)
+    val ahead = dbManager.partitionsAheadOfIndexDb
+    if (ahead.nonEmpty)
+      log.warning(s"Partitions ${ahead.map(dbManager.partitionName).mkString(", ")} were committed without index db, rebuilding client catalog and rollups...")
+    index = Index(dbManager, "records", ahead.nonEmpty)
+    rollups = Rollups(dbManager.indexDb, "rollups", index, o.unknownBouncesLimit, ahead.nonEmpty)
+    expire()
+    digestor = Digestor(dbManager.indexDb, Digestor.name, o)
+    querier = context.actorOf(
+      SmallestMailboxPool(o.queryParallelism).props(Props(new Querier(counter, dbManager, index, rollups, digestor, o)).withDispatcher("query-dispatcher")),
+      "querier"
+    )
     tailer = context.actorOf(Props(new TailingReader(counter, dbManager, o)), "tailer")
-    tailer ! ReadBackup(digestor.getDigests)
+    tailer ! ReadBackup(digestor.getDigests, digestor.getCheckpoint)
+    commitTick = context.system.scheduler.schedule(o.commitInterval.millis, o.commitInterval.millis, self, CommitIndex)
   }
 
   override def postStop() {
     log.info(" is stopping")
+    if (commitTick ne null)
+      commitTick.cancel()
     dbManager.commit()
   }
 
@@ -76,25 +84,37 @@ class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends A
     case m: Indexing => m match {
 
       case IndexTailedRecords(records) =>
-        indexRecords(records, index)
+        val start = System.currentTimeMillis()
+        indexRecords(records)
+        groupCommit()
+        tailer ! TailedRecordsIndexed(records.size, System.currentTimeMillis() - start)
 
       case IndexBackupRecords(records, file, digest, isLast) =>
-        indexRecords(records, index)
+        indexRecords(records)
         digest match {
           case Some(md5) =>
             val lasted = System.currentTimeMillis() - timer
             timer = System.currentTimeMillis()
-            log.info(s"Index of file ${file.getName} successfully persisted in $lasted ms")
+            log.info(s"Index of file ${file.getName} successfully built in $lasted ms")
             digestor.store(md5, file.getName)
-            if (isLast) tailer ! StartTailing
+            if (isLast) {
+              groupCommit(force = true)
+              tailer ! StartTailing
+            }
           case _ =>
         }
-        dbManager.commit()
+        groupCommit()
+
+      case CommitIndex =>
+        groupCommit()
+
+      case CheckpointTail(checkpoint) =>
+        digestor.checkpoint(checkpoint)
 
       case ParsingBackupFinished =>
+        groupCommit(force = true)
         timer = System.currentTimeMillis()
         logResultString
-        dbManager.logResultString
         if (index.isEmpty)
           log.warning("No backup files were parsed !")
 
@@ -102,19 +122,20 @@ class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends A
         log.info("Indexing of current log file finished, tailing initialized")
         if (o.httpServerStart) {
           log.info("Creating http server...")
-          val httpServer = context.actorOf(Props(new Server(self, counter, o)), "server")
+          val httpServer = context.actorOf(Props(new Server(self, querier, counter, o)), "server")
           httpServer ! StartHttpServer
         }
         context.become(combining)
         log.debug("Unstashing messages")
         unstashAll()
         log.info("Committing db transaction")
-        dbManager.commit()
+        groupCommit(force = true)
 
       case LogFileRotated =>
         log.info(s"Log file successfully rotated")
         digestor.store(new File(o.logDir + o.rotatedFileName))
-        dbManager.commit()
+        expire()
+        groupCommit(force = true)
 
       case GetTailer =>
         sender ! tailer
@@ -122,6 +143,9 @@ class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends A
       case GetCouter =>
         sender ! counter
 
+      case GetQuerier =>
+        sender ! querier
+
       case RestartIndexer(why, ex) =>
         ex match {
           case Some(e) => counter ? GetCountStatus onSuccess {
@@ -136,20 +160,12 @@ class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends A
     }
   }
 
+  /** queries are served by querier pool, http server sends them there directly */
   def requesting: Receive = LoggingReceive {
-    case r: Request => r match {
-
-      case c@Client(filter, q) =>
-        log.info(s"Client request for filter $filter and query $q processing !")
-        counter ! CountClientRequest(c)
-        sender ! getEntries(index, filter, q)
+    case q: Query =>
+      querier forward q
 
-      case GetDisposableRecordsByClientId(_) =>
-        log.info("GetIndex request processing !")
-        sender ! Option(index.getAsMapWithDisposableValues(Interval(None,None)))
-
-      case hr: View =>
-        sender ! Some(Html(controller.dispatch(hr, index)))
+    case r: Request => r match {
 
       case ReindexAgent(_) | RestartAgent(_) =>
         sender ! Some("Agent is restarting and reindexing, it might take a while !")
@@ -164,36 +180,6 @@ class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends A
         Thread.sleep(300)
         context.parent ! ShutSystemDown("Shutting agent down based on http request !")
 
-      /* reading operations */
-
-      case MemoryUsage(_) =>
-        log.info("MemoryUsage request processing !")
-        sender ! Option(serverInfoService.getMemoryUsage)
-
-      case IndexMemoryFootprint(_) =>
-        log.info("IndexMemoryFootprint request processing !")
-        sender ! Option(serverInfoService.getIndexFootprint(dbManager, index))
-
-      case IndexedLogFiles(_) =>
-        log.info("IndexedLogFiles request processing !")
-        sender ! Option(digestor.getDigestedFiles.map(_.getName))
-
-      case RcptAddressCounts(_) =>
-        log.info("RcptAddressCounts request processing !")
-        sender ! getRecipientAddressCounts(index)
-
-      case IndexAge(_) =>
-        log.info("IndexAge request processing !")
-        sender ! getIndexAge(index)
-
-      case UnknownBounces(_) =>
-        log.info("UnknownBounces request processing !")
-        sender ! getUnknownBounces(index)
-
-      case RcptAddresses(_) =>
-        log.info("RcptAddresses request processing !")
-        sender ! getRecipientAddresses(index)
-
     }
   }
 
@@ -204,87 +190,44 @@ class Indexer(counter: ActorRef, dbManager: DbManager, val o: Options) extends A
       stash()
   }
 
-  private def getRecipientAddressCounts(index: Index) =
-    Option(
-      profile(1000, "Getting rcpt address counts") {
-        index.getAsMapWithDisposableValues(Interval(None,None)).mapValues(records => records.foldLeft(HashSet[String]()) ((acc, r) => if (r.rcptEmail ne null) acc + r.rcptEmail else acc).size)
-      }
-    )
-
-  private def getRecipientAddresses(index: Index) =
-    Option(
-      profile(1000, "Getting rcpt addresses") {
-        index.getAsMapWithDisposableValues(Interval(None,None)).mapValues(col => HashSet[String]() ++ col.map(_.rcptEmail))
-      }
-    )
-
-  private def getIndexAge(index: Index): Option[Long] =
-    Option(if(index.records.iterator().hasNext) index.records.iterator().next().b else System.currentTimeMillis())
-
-  private def getUnknownBounces(index: Index) = profile(600, "Getting unknown bounces") {
-    Option(index.getAsMapWithDisposableValues(Interval(None,None)).mapValues(col => col.filter(_.state == 2)))
+  /**
+   * Partitions are expired on startup and with log rotation which happens daily, it is frequent enough for retention in days.
+   * Client catalog and rollups are adjusted and committed with removal of partitions, their dbs are dropped by the next expiration
+   * when queries that were reading them are over
+   */
+  private def expire() = profile(1000, "Expiring partitions") {
+    val dropped = dbManager.dropRemovedPartitions()
+    val expired = index.expire()
+    expired.foreach(rollups.expire(_, index))
+    if (dropped.nonEmpty || expired.nonEmpty)
+      dbManager.commit()
   }
 
-  private def getEntries(i: Index, f: IndexFilter, q: Option[IndexQuery]) = profile(1000, "Getting entries") {
-    f match {
-      case IndexFilter(clientId, None, None, None) =>
-        filterIndex(i, clientId, q, (r: IndexRecord) => r.state != 3)
-      case IndexFilter(clientId, Some(email), None, None) =>
-        filterIndex(i, clientId, q, (r: IndexRecord) => email == r.rcptEmail && r.state != 3)
-      case IndexFilter(clientId, None, Some(queueId), None) =>
-        filterIndex(i, clientId, q, (r: IndexRecord) => queueId == r.queueId && r.state != 3)
-      case IndexFilter(clientId, None, None, Some(msgId)) =>
-        filterIndex(i, clientId, q, (r: IndexRecord) => msgId == r.msgId && r.state != 3)
-    }
-  }
-
-  private def indexRecords(r: Iterable[ClientIndexRecord], index: Index) = profile(500, s"Indexing records") {
-    r.foreach(cir => index.addRecord(cir))
+  /** rollups are updated only with records that were not indexed yet */
+  private def indexRecords(r: Iterable[ClientIndexRecord]) = profile(500, s"Indexing records") {
+    val start = System.nanoTime()
+    rollups.update(index.addRecords(r))
+    indexedRecords.add(r.size)
+    if (uncommitted == 0)
+      uncommittedSince = System.currentTimeMillis()
+    uncommitted += r.size
+    ingestingNanos += System.nanoTime() - start
   }
 
-  private def filterIndex(index: Index, clientId: String, q: Option[IndexQuery], filter: (IndexRecord) => Boolean): Option[Any] = {
-    log.info(s"building result for query string : $q")
-    q match {
-      case Some(query) =>
-        query match {
-          case IndexQuery(f, t, None, None) =>
-            log.info(s"building result for query string : $q")
-            Some(index.getRecordsFor(clientId, Interval(f,t)).filter(filter))
-
-          case IndexQuery(f, t, None, Some(gb)) =>
-            gb match {
-              case multipleGroupingRegex(outer, inner) =>
-                Some(index.getRecordsFor(clientId, Interval(f,t)).filter(filter).groupBy(property(inner)).mapValues(_.groupBy(property(outer))))
-              case _ =>
-                Some(index.getRecordsFor(clientId, Interval(f,t)).filter(filter).groupBy(property(gb)))
-            }
-
-          case IndexQuery(f, t, Some(l), None) =>
-            Some(index.getRecordsFor(clientId, Interval(f, t), l).find(filter).getOrElse(null))
-
-          case IndexQuery(f, t, Some(l), Some(gb)) =>
-            gb match {
-              case multipleGroupingRegex(outer, inner) =>
-                Some(index.getRecordsFor(clientId, Interval(f,t), l).filter(filter).groupBy(property(inner)).mapValues(all => all.groupBy(property(outer)).mapValues(_.headOption.getOrElse(null))))
-              case _ =>
-                Some(index.getRecordsFor(clientId, Interval(f,t), l).filter(filter).groupBy(property(gb)).mapValues(_.headOption.getOrElse(null)))
-            }
-
-          case _ =>
-            log.warning(s"Invalid request query : $q, returning None")
-            None
-        }
-      case None =>
-        log.warning(s"building data structure for request without query")
-        Some(index.getRecordsFor(clientId, Interval(None,None)).filter(filter))
-    }
-  }
-
-  private def property(p: String): IndexRecord => String = {
-    p match {
-      case `groupBy_rcptEmail` => (e: IndexRecord) => e.rcptEmail
-      case `groupBy_queueId` => (e: IndexRecord) => e.queueId
-      case `groupBy_msgId` => (e: IndexRecord) => e.msgId
+  /**
+   * Committing a transaction after each batch of records would dominate indexing of backup logs, records are therefore committed
+   * when there is enough of them or when the oldest of them waits for too long, the scheduled CommitIndex tick takes care of the latter
+   * if no other records come. Transaction is committed anyway if forced.
+   */
+  private def groupCommit(force: Boolean = false) {
+    if (force || (uncommitted > 0 && (uncommitted >= o.commitRecords || System.currentTimeMillis() - uncommittedSince >= o.commitInterval))) {
+      val start = System.nanoTime()
+      dbManager.commit()
+      if (uncommitted > 0) {
+        counter ! CountIngestedRecords(uncommitted, ingestingNanos + System.nanoTime() - start)
+        uncommitted = 0
+        ingestingNanos = 0
+      }
     }
   }
 
@@ -0,0 +1,536 @@
+package com.fg.mail.smtp.index
+
+import java.io.{RandomAccessFile, File}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{StandardCopyOption, Files}
+import java.util.zip.CRC32
+import org.mapdb.{DataInput2, DataOutput2}
+import org.slf4j.LoggerFactory
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Queue lookup table specialized for postfix queue ids. It is hit a few times for every relevant log line so it avoids
+ * hashing strings and serializing objects :
+ *
+ * Alphanumeric queue id of up to 20 characters is packed into two longs by 6 bits per character. Keys are stored in an off-heap
+ * open-addressing table with linear probing, slot is [packed id, offset and length of value]. Values are stored off-heap in an arena
+ * in compact layout [flags, msgId, client id as an int from a dictionary of clients, rcpt], replaced values are reclaimed when arena grows.
+ * Queue ids that cannot be packed are rare, they are kept in an ordinary map.
+ *
+ * Persistence is a journal of commits. Changes are written to journal as a frame [length, checksum, changes] on commit,
+ * queue is rebuilt by replaying frames on startup. A frame that was not written completely is detected by its checksum and cut off,
+ * so that only committed changes survive a crash which is what transactional queue db provided. Journal is compacted to a single frame
+ * of all entries when it grows too much, the compacted journal replaces the former one by atomic rename.
+ *
+ * Tailer marks checkpoints of tailed log file in journal so that queue can be loaded as it was at the checkpoint that was
+ * committed with index, changes after the mark are discarded because tailed log file is read again from the checkpoint.
+ * Journal that has marks is compacted at a mark so that the compacted journal starts by the state at that mark.
+ *
+ * @param journal file of journal, None means that queue is not persisted
+ * @param until checkpoint whose mark the journal is replayed to, the whole journal is replayed if it has no such mark
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/24/14 3:40 PM u_jli Exp $
+ */
+class PackedQueue(journal: Option[File], until: Option[Checkpoint] = None) extends Queue {
+  import PackedQueue._
+
+  val log = LoggerFactory.getLogger(getClass)
+
+  private var capacity = initialCapacity
+  private var slots = ByteBuffer.allocateDirect(capacity * slotSize)
+  private var packedCount = 0
+
+  private var values = ByteBuffer.allocateDirect(initialArenaSize)
+  private var valuesEnd = 0
+  private var garbage = 0
+
+  private val unpacked = new java.util.HashMap[String, QueueRecord]()
+
+  private val clients = mutable.ArrayBuffer[String]()
+  private val clientIds = mutable.HashMap[String, Int]()
+
+  /* packed id of the last packed queue id */
+  private var hi = 0L
+  private var lo = 0L
+
+  private val value = new DataOutput2()
+
+  /* changes that are not committed yet and count of changes in journal since it was compacted */
+  private val pending = new DataOutput2()
+  private var pendingCount = 0
+  private var journaled = 0L
+  private var channel: FileChannel = _
+
+  /* the last mark and whether there were no changes since then */
+  private var marked: Option[Checkpoint] = None
+  private var unchangedSinceMark = false
+
+  journal.foreach(replay)
+
+  def insert(qid: String, qr: QueueRecord): Option[QueueRecord] = synchronized {
+    unchangedSinceMark = false
+    if (channel ne null) {
+      pending.writeByte(Put)
+      pending.writeUTF(qid)
+      writeRecord(pending, qr)
+      pendingCount += 1
+    }
+    put(qid, qr)
+  }
+
+  def lookup(qid: String): Option[QueueRecord] = synchronized {
+    if (pack(qid)) {
+      val i = find(hi, lo)
+      if (i < 0) None else Some(valueAt(i))
+    } else {
+      Option(unpacked.get(qid))
+    }
+  }
+
+  def invalidate(qid: String): Option[QueueRecord] = synchronized {
+    val previous = remove(qid)
+    if (previous.isDefined)
+      unchangedSinceMark = false
+    if (previous.isDefined && (channel ne null)) {
+      pending.writeByte(Remove)
+      pending.writeUTF(qid)
+      pendingCount += 1
+    }
+    previous
+  }
+
+  def getQueue: Map[String, QueueRecord] = synchronized {
+    val packed = (0 until capacity).filterNot(isEmpty).map(i => unpack(slots.getLong(i * slotSize), slots.getLong(i * slotSize + 8)) -> valueAt(i))
+    packed.toMap ++ unpacked.asScala
+  }
+
+  def size: Int = synchronized(packedCount + unpacked.size)
+
+  /** @return the last checkpoint that was marked or that journal was replayed to */
+  def lastMark: Option[Checkpoint] = synchronized(marked)
+
+  /**
+   * Marks that queue is as it was right after reading tailed log file to the checkpoint, mark is written to journal by the next commit.
+   * Journal is compacted here if it has much more changes than there are entries
+   */
+  def mark(c: Checkpoint) {
+    synchronized {
+      marked = Some(c)
+      unchangedSinceMark = true
+      if (channel ne null) {
+        pending.writeByte(Mark)
+        pending.writeUTF(c.digest)
+        pending.writeLong(c.offset)
+        pendingCount += 1
+        if (compactionDue)
+          compact()
+      }
+    }
+  }
+
+  /**
+   * Changes since the last commit are written to journal, journal is compacted if it has much more changes than there are entries.
+   * Journal that has marks is compacted by mark only unless there were no changes since the last mark
+   */
+  def commit() {
+    synchronized {
+      if (channel ne null) {
+        if (pendingCount > 0) {
+          writeFrame(channel, pending)
+          journaled += pendingCount
+          pending.pos = 0
+          pendingCount = 0
+        }
+        if (compactionDue && (marked.isEmpty || unchangedSinceMark))
+          compact()
+      }
+    }
+  }
+
+  private def compactionDue = journaled + pendingCount > compactionRatio * size + compactionMin
+
+  /** changes that were not committed are discarded */
+  def close() {
+    synchronized {
+      if (channel ne null) {
+        channel.close()
+        channel = null
+      }
+    }
+  }
+
+  private def put(qid: String, qr: QueueRecord): Option[QueueRecord] =
+    if (pack(qid)) {
+      value.pos = 0
+      writeValue(value, qr)
+      val i = find(hi, lo)
+      if (i >= 0) {
+        val previous = valueAt(i)
+        val offset = append(value)
+        garbage += slots.getInt(i * slotSize + 20)
+        slots.putInt(i * slotSize + 16, offset)
+        slots.putInt(i * slotSize + 20, value.pos)
+        Some(previous)
+      } else {
+        val offset = append(value)
+        val b = (-1 - i) * slotSize
+        slots.putLong(b, hi)
+        slots.putLong(b + 8, lo)
+        slots.putInt(b + 16, offset)
+        slots.putInt(b + 20, value.pos)
+        packedCount += 1
+        if (packedCount * 2 > capacity)
+          resize()
+        None
+      }
+    } else {
+      Option(unpacked.put(qid, qr))
+    }
+
+  private def remove(qid: String): Option[QueueRecord] =
+    if (pack(qid)) {
+      val i = find(hi, lo)
+      if (i < 0) {
+        None
+      } else {
+        val previous = valueAt(i)
+        garbage += slots.getInt(i * slotSize + 20)
+        delete(i)
+        packedCount -= 1
+        Some(previous)
+      }
+    } else {
+      Option(unpacked.remove(qid))
+    }
+
+  /**
+   * @return true if qid was packed to hi and lo, it is not packed if it is longer than 20 characters or if it is not alphanumeric
+   */
+  private def pack(qid: String): Boolean = {
+    val length = qid.length
+    if (length == 0 || length > 2 * charsPerLong) {
+      false
+    } else {
+      hi = 0L
+      lo = 0L
+      var packable = true
+      var i = 0
+      while (packable && i < length) {
+        val code = codeOf(qid.charAt(i))
+        if (code < 0)
+          packable = false
+        else if (i < charsPerLong)
+          hi |= code.toLong << (6 * i)
+        else
+          lo |= code.toLong << (6 * (i - charsPerLong))
+        i += 1
+      }
+      packable
+    }
+  }
+
+  private def unpack(h: Long, l: Long): String = {
+    val sb = new StringBuilder(2 * charsPerLong)
+    var i = 0
+    var code = 1
+    while (code != 0 && i < 2 * charsPerLong) {
+      code = (if (i < charsPerLong) h >>> (6 * i) else l >>> (6 * (i - charsPerLong))).toInt & 63
+      if (code != 0)
+        sb.append(alphabet.charAt(code - 1))
+      i += 1
+    }
+    sb.toString()
+  }
+
+  private def home(h: Long, l: Long): Int = {
+    var x = h * 0x9E3779B97F4A7C15L ^ l
+    x ^= x >>> 33
+    x *= 0xFF51AFD7ED558CCDL
+    x ^= x >>> 33
+    x.toInt & (capacity - 1)
+  }
+
+  private def isEmpty(i: Int): Boolean = slots.getLong(i * slotSize) == 0L && slots.getLong(i * slotSize + 8) == 0L
+
+  /**
+   * @return index of slot of packed id or -1 - index of empty slot where it belongs
+   */
+  private def find(h: Long, l: Long): Int = {
+    val mask = capacity - 1
+    var i = home(h, l)
+    var result = Int.MinValue
+    while (result == Int.MinValue) {
+      if (isEmpty(i))
+        result = -1 - i
+      else if (slots.getLong(i * slotSize) == h && slots.getLong(i * slotSize + 8) == l)
+        result = i
+      else
+        i = (i + 1) & mask
+    }
+    result
+  }
+
+  /**
+   * Entries following the deleted one are shifted back to the hole if they can be there so that there are no tombstones
+   */
+  private def delete(slot: Int) {
+    val mask = capacity - 1
+    var hole = slot
+    var i = (slot + 1) & mask
+    while (!isEmpty(i)) {
+      val h = home(slots.getLong(i * slotSize), slots.getLong(i * slotSize + 8))
+      if (((i - h) & mask) >= ((i - hole) & mask)) {
+        copySlot(slots, i, slots, hole)
+        hole = i
+      }
+      i = (i + 1) & mask
+    }
+    slots.putLong(hole * slotSize, 0L)
+    slots.putLong(hole * slotSize + 8, 0L)
+  }
+
+  private def copySlot(from: ByteBuffer, i: Int, to: ByteBuffer, j: Int) {
+    to.putLong(j * slotSize, from.getLong(i * slotSize))
+    to.putLong(j * slotSize + 8, from.getLong(i * slotSize + 8))
+    to.putLong(j * slotSize + 16, from.getLong(i * slotSize + 16))
+  }
+
+  private def resize() {
+    val former = slots
+    val formerCapacity = capacity
+    capacity *= 2
+    slots = ByteBuffer.allocateDirect(capacity * slotSize)
+    var i = 0
+    while (i < formerCapacity) {
+      val h = former.getLong(i * slotSize)
+      val l = former.getLong(i * slotSize + 8)
+      if (h != 0L || l != 0L)
+        copySlot(former, i, slots, -1 - find(h, l))
+      i += 1
+    }
+  }
+
+  /**
+   * Arena that is full is replaced by a bigger one with only live values
+   *
+   * @return offset of value in arena
+   */
+  private def append(out: DataOutput2): Int = {
+    if (valuesEnd + out.pos > values.capacity) {
+      val arena = ByteBuffer.allocateDirect(Math.max(initialArenaSize, (valuesEnd - garbage + out.pos) * 2))
+      var i = 0
+      while (i < capacity) {
+        if (!isEmpty(i)) {
+          val offset = slots.getInt(i * slotSize + 16)
+          val length = slots.getInt(i * slotSize + 20)
+          slots.putInt(i * slotSize + 16, arena.position())
+          val live = values.duplicate()
+          live.limit(offset + length).position(offset)
+          arena.put(live)
+        }
+        i += 1
+      }
+      values = arena
+      valuesEnd = arena.position()
+      garbage = 0
+    }
+    val offset = valuesEnd
+    values.position(offset)
+    values.put(out.buf, 0, out.pos)
+    valuesEnd += out.pos
+    offset
+  }
+
+  private def valueAt(i: Int): QueueRecord = {
+    val in = new DataInput2(values, slots.getInt(i * slotSize + 16))
+    val flags = in.readUnsignedByte()
+    QueueRecord(
+      if ((flags & HasMsgId) != 0) in.readUTF() else null,
+      if ((flags & HasClient) != 0) clients(DataInput2.unpackInt(in)) else null,
+      if ((flags & HasRcpt) != 0) in.readUTF() else null,
+      (flags & Deferred) != 0
+    )
+  }
+
+  private def writeValue(out: DataOutput2, qr: QueueRecord) {
+    out.writeByte(flagsOf(qr))
+    if (qr.msgId ne null) out.writeUTF(qr.msgId)
+    if (qr.cid ne null) DataOutput2.packInt(out, clientIds.getOrElseUpdate(qr.cid, { clients += qr.cid; clients.size - 1 }))
+    if (qr.rcpt ne null) out.writeUTF(qr.rcpt)
+  }
+
+  /* journal stores client ids as they are because dictionary of clients is not persisted */
+  private def writeRecord(out: DataOutput2, qr: QueueRecord) {
+    out.writeByte(flagsOf(qr))
+    if (qr.msgId ne null) out.writeUTF(qr.msgId)
+    if (qr.cid ne null) out.writeUTF(qr.cid)
+    if (qr.rcpt ne null) out.writeUTF(qr.rcpt)
+  }
+
+  private def readRecord(in: DataInput2): QueueRecord = {
+    val flags = in.readUnsignedByte()
+    QueueRecord(
+      if ((flags & HasMsgId) != 0) in.readUTF() else null,
+      if ((flags & HasClient) != 0) in.readUTF() else null,
+      if ((flags & HasRcpt) != 0) in.readUTF() else null,
+      (flags & Deferred) != 0
+    )
+  }
+
+  private def flagsOf(qr: QueueRecord): Int =
+    (if (qr.hasBeenDeferred) Deferred else 0) | (if (qr.msgId ne null) HasMsgId else 0) | (if (qr.cid ne null) HasClient else 0) | (if (qr.rcpt ne null) HasRcpt else 0)
+
+  private def writeFrame(ch: FileChannel, changes: DataOutput2) {
+    val checksum = new CRC32
+    checksum.update(changes.buf, 0, changes.pos)
+    val frame = ByteBuffer.allocate(frameHeaderSize + changes.pos)
+    frame.putInt(changes.pos).putInt(checksum.getValue.toInt).put(changes.buf, 0, changes.pos)
+    frame.flip()
+    while (frame.hasRemaining)
+      ch.write(frame)
+  }
+
+  private def readFully(ch: FileChannel, buffer: ByteBuffer, position: Long) {
+    while (buffer.hasRemaining && ch.read(buffer, position + buffer.position()) >= 0) {}
+    buffer.flip()
+  }
+
+  /**
+   * Frames are replayed until the end of journal or until a frame that is incomplete or corrupted, journal is cut off there.
+   * If journal has a mark of the checkpoint to replay to, replaying stops at the mark and journal is compacted without the rest
+   */
+  private def replay(file: File) {
+    val start = System.currentTimeMillis()
+    channel = new RandomAccessFile(file, "rw").getChannel
+    val length = channel.size()
+    var position = 0L
+    var valid = true
+    var reached = false
+    var discarded = false
+    while (valid && !reached && position + frameHeaderSize <= length) {
+      val header = ByteBuffer.allocate(frameHeaderSize)
+      readFully(channel, header, position)
+      val frameLength = header.getInt
+      val frameChecksum = header.getInt
+      if (frameLength < 0 || position + frameHeaderSize + frameLength > length) {
+        valid = false
+      } else {
+        val frame = ByteBuffer.allocate(frameLength)
+        readFully(channel, frame, position + frameHeaderSize)
+        val checksum = new CRC32
+        checksum.update(frame.array, 0, frameLength)
+        if (checksum.getValue.toInt != frameChecksum) {
+          valid = false
+        } else {
+          val in = new DataInput2(frame.array)
+          while (!reached && in.pos < frameLength) {
+            in.readUnsignedByte() match {
+              case Put =>
+                put(in.readUTF(), readRecord(in))
+                unchangedSinceMark = false
+              case Remove =>
+                remove(in.readUTF())
+                unchangedSinceMark = false
+              case Mark =>
+                marked = Some(Checkpoint(in.readUTF(), in.readLong()))
+                unchangedSinceMark = true
+                reached = marked == until
+            }
+            journaled += 1
+          }
+          discarded = in.pos < frameLength
+          position += frameHeaderSize + frameLength
+        }
+      }
+    }
+    if (reached && (discarded || position < length)) {
+      log.info(s"Queue journal ${file.getName} is replayed to checkpoint ${until.get}, changes after it are discarded")
+      channel.position(length)
+      compact()
+    } else {
+      if (position < length) {
+        log.warn(s"Queue journal ${file.getName} has an incomplete commit at $position of $length bytes, it is cut off")
+        channel.truncate(position)
+      }
+      channel.position(position)
+    }
+    log.info(s"Queue of $size entries loaded from journal in ${System.currentTimeMillis() - start} ms")
+  }
+
+  /** uncommitted changes are part of the snapshot, it ends by the last mark if there were no changes since then */
+  private def compact() {
+    val file = journal.get
+    val compacted = new File(file.getPath + ".compacted")
+    val snapshot = new DataOutput2()
+    getQueue.foreach { case (qid, qr) =>
+      snapshot.writeByte(Put)
+      snapshot.writeUTF(qid)
+      writeRecord(snapshot, qr)
+    }
+    if (unchangedSinceMark)
+      marked.foreach { c =>
+        snapshot.writeByte(Mark)
+        snapshot.writeUTF(c.digest)
+        snapshot.writeLong(c.offset)
+      }
+    val ch = new RandomAccessFile(compacted, "rw").getChannel
+    try {
+      ch.truncate(0)
+      writeFrame(ch, snapshot)
+    } finally {
+      ch.close()
+    }
+    channel.close()
+    Files.move(compacted.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    channel = new RandomAccessFile(file, "rw").getChannel
+    channel.position(channel.size())
+    pending.pos = 0
+    pendingCount = 0
+    journaled = size
+    log.info(s"Queue journal ${file.getName} compacted to $size entries")
+  }
+
+}
+
+object PackedQueue {
+
+  /** [packed id hi, packed id lo, value offset, value length] */
+  val slotSize = 24
+
+  val initialCapacity = 1 << 14
+
+  val initialArenaSize = 1 << 20
+
+  val charsPerLong = 10
+
+  /** journal is compacted when it has more changes than this ratio of entries plus minimum */
+  val compactionRatio = 4
+  val compactionMin = 100000
+
+  private val frameHeaderSize = 8
+
+  private val alphabet = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+
+  /** @return code 1 - 62 of alphanumeric character, -1 otherwise, 0 means no character */
+  private def codeOf(c: Char): Int =
+    if (c >= '0' && c <= '9') c - '0' + 1
+    else if (c >= 'A' && c <= 'Z') c - 'A' + 11
+    else if (c >= 'a' && c <= 'z') c - 'a' + 37
+    else -1
+
+  private val Put = 1
+  private val Remove = 2
+  private val Mark = 3
+
+  private val Deferred = 1
+  private val HasMsgId = 2
+  private val HasClient = 4
+  private val HasRcpt = 8
+
+  def apply(journal: File, until: Option[Checkpoint] = None): PackedQueue = new PackedQueue(Some(journal), until)
+
+  def inMemory: PackedQueue = new PackedQueue(None)
+
+}
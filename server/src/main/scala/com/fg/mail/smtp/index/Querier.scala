@@ -0,0 +1,210 @@
+package com.fg.mail.smtp.index
+
+import akka.actor.{ActorRef, ActorLogging, Actor}
+import akka.event.LoggingReceive
+import com.fg.mail.smtp._
+import com.fg.mail.smtp.rest.Controller
+import com.fg.mail.smtp.rest.Dispatcher._
+import com.fg.mail.smtp.stats.CountClientRequest
+import com.fg.mail.smtp.util.{Metrics, ServerInfoService, Profilable}
+import scala.collection.IterableView
+import java.util.TimeZone
+
+/**
+ * An Akka actor responsible for serving read-only queries. A pool of them reads index concurrently with Indexer that is writing into it
+ * (MapDB collections are thread safe) so that a slow query neither blocks indexing nor fills Indexer's bounded mailbox.
+ * Each of them runs on its own thread (pinned dispatcher) because queries block.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/21/14 9:30 AM u_jli Exp $
+ */
+class Querier(counter: ActorRef, dbManager: DbManager, index: Index, rollups: Rollups, digestor: Digestor, val o: Options) extends Actor with ActorLogging with Profilable {
+
+  val multipleGroupingRegex = """([a-zA-z]{2,10})-and-([a-zA-z]{2,10})""".r
+  val serverInfoService: ServerInfoService = new ServerInfoService(o)
+  val controller: Controller = new Controller(serverInfoService, o)
+
+  def receive = LoggingReceive {
+    case q: Query => q match {
+
+      case c@Client(filter, query) =>
+        log.info(s"Client request for filter $filter and query $query processing !")
+        counter ! CountClientRequest(c)
+        sender ! getEntries(index, filter, query)
+
+      case c@ClientPage(filter, from, to, limit, after) =>
+        log.info(s"Client page request for filter $filter, interval $from - $to and limit $limit processing !")
+        counter ! CountClientRequest(Client(filter, None)(c.ctx))
+        sender ! getPage(index, filter, Interval(from, to), limit, after)
+
+      case a@ClientAggregate(clientId, from, to, by) =>
+        log.info(s"Client aggregate request for client $clientId, interval $from - $to and dimensions ${by.map(_.name)} processing !")
+        counter ! CountClientRequest(Client(IndexFilter(clientId, None, None, None), None)(a.ctx))
+        sender ! getAggregate(index, clientId, Interval(from, to), by)
+
+      case GetDisposableRecordsByClientId(_) =>
+        log.info("GetIndex request processing !")
+        sender ! Option(index.getAsMapWithDisposableValues(Interval(None,None)))
+
+      case hr: View =>
+        sender ! Some(Html(controller.dispatch(hr, index)))
+
+      case AgentMetrics(_) =>
+        sender ! Some(PrometheusText(Metrics.prometheus))
+
+      case MemoryUsage(_) =>
+        log.info("MemoryUsage request processing !")
+        sender ! Option(serverInfoService.getMemoryUsage)
+
+      case IndexMemoryFootprint(_) =>
+        log.info("IndexMemoryFootprint request processing !")
+        sender ! Option(serverInfoService.getIndexFootprint(dbManager, index))
+
+      case IndexedLogFiles(_) =>
+        log.info("IndexedLogFiles request processing !")
+        sender ! Option(digestor.getDigestedFiles.map(_.getName))
+
+      case RcptAddressCounts(_, approximate) =>
+        log.info(s"RcptAddressCounts request processing, approximate : $approximate !")
+        sender ! getRecipientAddressCounts(index, approximate)
+
+      case IndexAge(_) =>
+        log.info("IndexAge request processing !")
+        sender ! getIndexAge(index)
+
+      case ClientSummaries(_) =>
+        log.info("ClientSummaries request processing !")
+        sender ! Option(index.getClientSummaries)
+
+      case UnknownBounces(_) =>
+        log.info("UnknownBounces request processing !")
+        sender ! getUnknownBounces(index)
+
+      case StateCounts(_) =>
+        log.info("StateCounts request processing !")
+        sender ! Option(rollups.getStateCounts(index.getClientIds))
+
+      case RcptAddresses(_) =>
+        log.info("RcptAddresses request processing !")
+        sender ! getRecipientAddresses(index)
+
+    }
+  }
+
+  private def getRecipientAddressCounts(index: Index, approximate: Boolean) =
+    Option(
+      profile(100, "Getting rcpt address counts") {
+        if (approximate)
+          rollups.getApproximateRcptAddressCounts(index.getClientIds)
+        else
+          rollups.getRcptAddressCounts(index.getClientIds)
+      }
+    )
+
+  private def getRecipientAddresses(index: Index) =
+    Option(
+      profile(1000, "Getting rcpt addresses") {
+        rollups.getRcptAddresses(index.getClientIds)
+      }
+    )
+
+  private def getIndexAge(index: Index): Option[Long] =
+    Option(index.firstDate.getOrElse(System.currentTimeMillis()))
+
+  private def getUnknownBounces(index: Index) = profile(100, "Getting unknown bounces") {
+    Option(rollups.getUnknownBounces(index.getClientIds))
+  }
+
+  /** rcptEmail, queueId and msgId filters are looked up by secondary indexes instead of scanning all records of the client */
+  private def getEntries(i: Index, f: IndexFilter, q: Option[IndexQuery]) = profile(1000, "Getting entries") {
+    val notOk = (r: IndexRecord) => r.state != 3
+    f match {
+      case IndexFilter(clientId, None, None, None) =>
+        filterIndex(i.getRecordsFor(clientId, _, _), q, notOk)
+      case IndexFilter(clientId, Some(email), None, None) =>
+        filterIndex(i.getRecordsByRcptEmail(clientId, email, _, _), q, notOk)
+      case IndexFilter(clientId, None, Some(queueId), None) =>
+        filterIndex(i.getRecordsByQueueId(clientId, queueId, _, _), q, notOk)
+      case IndexFilter(clientId, None, None, Some(msgId)) =>
+        filterIndex(i.getRecordsByMsgId(clientId, msgId, _, _), q, notOk)
+    }
+  }
+
+  /**
+   * Records are counted while they are iterated, none of them is retained. Unlike getEntries and getPage, it counts all records
+   * including sent ones (state 3) so that counts add up to all delivery attempts of the client, see Aggregation
+   */
+  private def getAggregate(i: Index, clientId: String, interval: Interval, by: Seq[Dimension]) = profile(1000, "Aggregating entries") {
+    val aggregation = new Aggregation(by, TimeZone.getDefault)
+    i.getRecordsFor(clientId, interval).foreach(aggregation.add)
+    Some(aggregation.result)
+  }
+
+  /**
+   * One record more than limit is read so that the last page is recognized without another request
+   */
+  private def getPage(i: Index, f: IndexFilter, interval: Interval, limit: Int, after: Option[IndexRecord]) = profile(1000, "Getting page of entries") {
+    val records = f match {
+      case IndexFilter(clientId, None, None, None) =>
+        i.getRecordsFor(clientId, interval, after = after)
+      case IndexFilter(clientId, Some(email), None, None) =>
+        i.getRecordsByRcptEmail(clientId, email, interval, after = after)
+      case IndexFilter(clientId, None, Some(queueId), None) =>
+        i.getRecordsByQueueId(clientId, queueId, interval, after = after)
+      case IndexFilter(clientId, None, None, Some(msgId)) =>
+        i.getRecordsByMsgId(clientId, msgId, interval, after = after)
+    }
+    val page = records.filter(_.state != 3).take(limit + 1).toVector
+    Some(RecordPage(page.take(limit), if (page.size > limit) Some(Cursor.encode(page(limit - 1))) else None))
+  }
+
+  /**
+   * @param records source of records constrained by interval and ordered descending if true
+   */
+  private def filterIndex(records: (Interval, Boolean) => IterableView[IndexRecord, Iterable[IndexRecord]], q: Option[IndexQuery], filter: (IndexRecord) => Boolean): Option[Any] = {
+    log.info(s"building result for query string : $q")
+    q match {
+      case Some(query) =>
+        query match {
+          case IndexQuery(f, t, None, None) =>
+            log.info(s"building result for query string : $q")
+            Some(records(Interval(f,t), false).filter(filter))
+
+          case IndexQuery(f, t, None, Some(gb)) =>
+            gb match {
+              case multipleGroupingRegex(outer, inner) =>
+                Some(records(Interval(f,t), false).filter(filter).groupBy(property(inner)).mapValues(_.groupBy(property(outer))))
+              case _ =>
+                Some(records(Interval(f,t), false).filter(filter).groupBy(property(gb)))
+            }
+
+          case IndexQuery(f, t, Some(l), None) =>
+            Some(records(Interval(f, t), l).find(filter).getOrElse(null))
+
+          case IndexQuery(f, t, Some(l), Some(gb)) =>
+            gb match {
+              case multipleGroupingRegex(outer, inner) =>
+                Some(records(Interval(f,t), l).filter(filter).groupBy(property(inner)).mapValues(all => all.groupBy(property(outer)).mapValues(_.headOption.getOrElse(null))))
+              case _ =>
+                Some(records(Interval(f,t), l).filter(filter).groupBy(property(gb)).mapValues(_.headOption.getOrElse(null)))
+            }
+
+          case _ =>
+            log.warning(s"Invalid request query : $q, returning None")
+            None
+        }
+      case None =>
+        log.warning(s"building data structure for request without query")
+        Some(records(Interval(None,None), false).filter(filter))
+    }
+  }
+
+  private def property(p: String): IndexRecord => String = {
+    p match {
+      case `groupBy_rcptEmail` => (e: IndexRecord) => e.rcptEmail
+      case `groupBy_queueId` => (e: IndexRecord) => e.queueId
+      case `groupBy_msgId` => (e: IndexRecord) => e.msgId
+    }
+  }
+
+}
@@ -11,7 +11,21 @@ import scala.collection.JavaConverters._
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 10/28/13 8:24 PM u_jli Exp $
  */
-class Queue(val records: java.util.Map[String, QueueRecord]) {
+trait Queue {
+
+  def insert(qid: String, msgIdClientId: QueueRecord): Option[QueueRecord]
+
+  def lookup(qid: String): Option[QueueRecord]
+
+  def invalidate(qid: String): Option[QueueRecord]
+
+  def getQueue: Map[String, QueueRecord]
+}
+
+/**
+ * Queue of a map in MapDb, it is the former queue store which is migrated to PackedQueue on startup
+ */
+class MapDbQueue(val records: java.util.Map[String, QueueRecord]) extends Queue {
 
   def insert(qid: String, msgIdClientId: QueueRecord): Option[QueueRecord] = Option(records.put(qid, msgIdClientId))
 
@@ -26,8 +40,8 @@ case class QueueRecord(msgId: String, cid: String, rcpt: String, hasBeenDeferred
 
 object Queue {
 
-  def apply(db: DB): Queue = {
-    new Queue(db.createHashMap("queue").makeOrGet())
+  def apply(db: DB): MapDbQueue = {
+    new MapDbQueue(db.createHashMap("queue").makeOrGet())
   }
 
 }
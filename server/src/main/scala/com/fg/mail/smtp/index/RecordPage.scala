@@ -0,0 +1,55 @@
+package com.fg.mail.smtp.index
+
+import java.io._
+import org.apache.commons.codec.binary.Base64
+import scala.util.Try
+
+/**
+ * A page of records ordered by date
+ *
+ * @param entries at most limit records
+ * @param cursor of the last record if there are more records to be read, None if this is the last page
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/21/14 3:10 PM u_jli Exp $
+ */
+case class RecordPage(entries: Seq[IndexRecord], cursor: Option[String])
+
+/**
+ * Opaque cursor is the last record of a page encoded into url safe string. Record is the exact key of index tree so that the next page
+ * continues right after it even if records of the same date were added meanwhile.
+ */
+object Cursor {
+
+  def encode(r: IndexRecord): String = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new DataOutputStream(bytes)
+    out.writeLong(r.date)
+    out.writeUTF(r.queueId)
+    out.writeUTF(r.msgId)
+    out.writeUTF(r.rcptEmail)
+    writeNullable(out, r.senderEmail)
+    out.writeUTF(r.status)
+    writeNullable(out, r.info)
+    out.writeInt(r.state)
+    writeNullable(out, r.stateInfo)
+    out.close()
+    Base64.encodeBase64URLSafeString(bytes.toByteArray)
+  }
+
+  /**
+   * @return record of cursor or None if cursor is not valid
+   */
+  def decode(cursor: String): Option[IndexRecord] =
+    Try {
+      val in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(cursor)))
+      IndexRecord(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(), readNullable(in), in.readUTF(), readNullable(in), in.readInt(), readNullable(in))
+    }.toOption
+
+  private def writeNullable(out: DataOutput, value: String) {
+    out.writeBoolean(value ne null)
+    if (value ne null) out.writeUTF(value)
+  }
+
+  private def readNullable(in: DataInput): String = if (in.readBoolean()) in.readUTF() else null
+}
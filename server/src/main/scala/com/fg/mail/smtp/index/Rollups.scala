@@ -0,0 +1,195 @@
+package com.fg.mail.smtp.index
+
+import org.mapdb._
+import java.util.NavigableSet
+import java.util.concurrent.ConcurrentNavigableMap
+import java.io.{DataInput, DataOutput}
+import scala.collection.JavaConverters._
+import org.slf4j.LoggerFactory
+import com.fg.mail.smtp.util.HyperLogLog
+
+/**
+ * Per client aggregates that are maintained incrementally as records are being indexed so that agent-status requests
+ * do not have to iterate over all records of all clients which takes seconds for millions of records :
+ *
+ * recipients - set of [clientId, rcptEmail] for exact distinct recipient counts and recipient addresses
+ * rollups - [clientId, ClientRollup] with distinct recipient count, HyperLogLog sketch of recipients and record counts by state
+ * unknownBounces - set of [clientId, date, indexRecord] of state 2 records, only the newest unknownBouncesLimit records per client are kept
+ *
+ * They are aggregates of records that index retains, records of an expired partition are subtracted when the partition is removed.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/14/14 8:40 PM u_jli Exp $
+ */
+class Rollups(val recipients: NavigableSet[Fun.Tuple2[String, String]],
+              val rollups: ConcurrentNavigableMap[String, ClientRollup],
+              val unknownBounces: NavigableSet[Fun.Tuple3[String, Long, IndexRecord]],
+              unknownBouncesLimit: Int) {
+  val log = LoggerFactory.getLogger(getClass)
+
+  /**
+   * @param records that were not indexed yet, otherwise they would be counted twice
+   */
+  def update(records: Iterable[ClientIndexRecord]) {
+    records.groupBy(_.clientId).foreach { case (clientId, cirs) =>
+      val rollup = Option(rollups.get(clientId)).getOrElse(ClientRollup.empty)
+      val hll = new HyperLogLog(rollup.rcptSketch.clone())
+      val stateCounts = rollup.stateCounts.clone()
+      var rcptCount = rollup.rcptCount
+      cirs.foreach { cir =>
+        val r = cir.ir
+        if (r.rcptEmail ne null) {
+          hll.offer(r.rcptEmail)
+          if (recipients.add(Fun.t2(clientId, r.rcptEmail)))
+            rcptCount += 1
+        }
+        if (r.state >= 0 && r.state < stateCounts.length)
+          stateCounts(r.state) += 1
+        if (r.state == 2)
+          addUnknownBounce(clientId, r, stateCounts(2))
+      }
+      rollups.put(clientId, ClientRollup(rcptCount, stateCounts, hll.registers))
+    }
+  }
+
+  /**
+   * Rollups are derived from records, they are built in one pass if index was created before rollups existed
+   */
+  def backfill(index: Index) {
+    if (rollups.isEmpty && !index.isEmpty) {
+      log.info("Rollups are empty, building them from indexed records...")
+      val start = System.currentTimeMillis()
+      index.getClientIdRecordTuples.grouped(10000).foreach { batch =>
+        update(batch.map { case (clientId, r) => ClientIndexRecord(clientId, r, false) })
+      }
+      log.info(s"Rollups of ${rollups.size} clients built in ${System.currentTimeMillis() - start} ms")
+    }
+  }
+
+  /**
+   * Recipient is removed if client has no record of it in partitions that remain, sketch of recipients cannot subtract
+   * so that it is built again from exact recipients. Unknown bounces of partition are the oldest ones (those that were evicted are even older),
+   * the rest of them are still the newest ones.
+   *
+   * @param partition that was removed from index already
+   */
+  def expire(partition: IndexPartition, index: Index) {
+    partition.getClientIds.foreach { clientId =>
+      val rollup = getRollup(clientId)
+      val stateCounts = rollup.stateCounts.clone()
+      var rcptEmails = Set[String]()
+      var lastDate = Long.MinValue
+      partition.getRecordsFor(clientId, Interval(None, None), reverse = false, None).foreach { r =>
+        if (r.state >= 0 && r.state < stateCounts.length)
+          stateCounts(r.state) = math.max(0L, stateCounts(r.state) - 1)
+        if (r.rcptEmail ne null)
+          rcptEmails += r.rcptEmail
+        lastDate = r.date
+      }
+      val removed = rcptEmails.filterNot(index.hasRcptEmail(clientId, _))
+      removed.foreach(rcptEmail => recipients.remove(Fun.t2(clientId, rcptEmail)))
+      unknownBounces.subSet(Fun.t3(clientId, Long.MinValue, null), true, Fun.t3(clientId, lastDate, Fun.HI[IndexRecord]), true).asScala.toList.foreach(unknownBounces.remove)
+      val rcptCount = math.max(0L, rollup.rcptCount - removed.size)
+      if (rcptCount == 0 && stateCounts.forall(_ == 0))
+        rollups.remove(clientId)
+      else
+        rollups.put(clientId, ClientRollup(rcptCount, stateCounts, if (removed.isEmpty) rollup.rcptSketch else sketchOf(clientId)))
+    }
+  }
+
+  private def sketchOf(clientId: String): Array[Byte] = {
+    val hll = HyperLogLog()
+    Fun.filter(recipients, clientId).asScala.foreach(hll.offer)
+    hll.registers
+  }
+
+  def getRcptAddressCounts(clientIds: Iterable[String]): Map[String, Int] =
+    clientIds.map(clientId => clientId -> getRollup(clientId).rcptCount.toInt).toMap
+
+  def getApproximateRcptAddressCounts(clientIds: Iterable[String]): Map[String, Int] =
+    clientIds.map(clientId => clientId -> new HyperLogLog(getRollup(clientId).rcptSketch).cardinality.toInt).toMap
+
+  def getRcptAddresses(clientIds: Iterable[String]): Map[String, Set[String]] =
+    clientIds.map(clientId => clientId -> Fun.filter(recipients, clientId).asScala.toSet).toMap
+
+  def getStateCounts(clientIds: Iterable[String]): Map[String, Map[Int, Long]] =
+    clientIds.map(clientId => clientId -> getRollup(clientId).stateCounts.zipWithIndex.map(_.swap).toMap).toMap
+
+  def getUnknownBounces(clientIds: Iterable[String]): Map[String, Set[IndexRecord]] =
+    clientIds.map(clientId => clientId -> unknownBouncesOf(clientId).asScala.map(_.c).toSet).toMap
+
+  private def getRollup(clientId: String) = Option(rollups.get(clientId)).getOrElse(ClientRollup.empty)
+
+  private def unknownBouncesOf(clientId: String) =
+    unknownBounces.subSet(Fun.t3(clientId, 0L, null), Fun.t3(clientId, Fun.HI[Long], Fun.HI[IndexRecord]))
+
+  /** the oldest unknown bounce of a client is evicted when limit is exceeded */
+  private def addUnknownBounce(clientId: String, r: IndexRecord, unknownBounceCount: Long) {
+    if (unknownBounces.add(Fun.t3(clientId, r.date, r)) && unknownBounceCount > unknownBouncesLimit) {
+      val it = unknownBouncesOf(clientId).iterator()
+      if (it.hasNext)
+        unknownBounces.remove(it.next())
+    }
+  }
+}
+
+/**
+ * @param rcptCount count of distinct recipient email addresses
+ * @param stateCounts count of records by state (index is state)
+ * @param rcptSketch registers of HyperLogLog estimator of distinct recipient email addresses
+ */
+case class ClientRollup(rcptCount: Long, stateCounts: Array[Long], rcptSketch: Array[Byte])
+
+object ClientRollup {
+
+  /** states 0 - 4 */
+  val stateCount = 5
+
+  def empty = ClientRollup(0, new Array[Long](stateCount), HyperLogLog().registers)
+}
+
+class ClientRollupSerializer extends Serializer[ClientRollup] with Serializable {
+
+  def serialize(out: DataOutput, r: ClientRollup) {
+    out.writeLong(r.rcptCount)
+    out.writeInt(r.stateCounts.length)
+    r.stateCounts.foreach(out.writeLong)
+    out.writeInt(r.rcptSketch.length)
+    out.write(r.rcptSketch)
+  }
+
+  def deserialize(in: DataInput, available: Int): ClientRollup = {
+    val rcptCount = in.readLong()
+    val stateCounts = Array.fill(in.readInt())(in.readLong())
+    val rcptSketch = new Array[Byte](in.readInt())
+    in.readFully(rcptSketch)
+    ClientRollup(rcptCount, stateCounts, rcptSketch)
+  }
+
+  def fixedSize(): Int = -1
+}
+
+object Rollups {
+
+  val rcptSerializer = new BTreeKeySerializer.Tuple2KeySerializer[String, String](null, Serializer.STRING, Serializer.STRING)
+
+  /**
+   * @param rebuild rollups are built again from records, they don't count records of partitions that were committed without index db
+   */
+  def apply(db: DB, name: String, index: Index, unknownBouncesLimit: Int, rebuild: Boolean = false) = {
+    val rollups = new Rollups(
+      db.createTreeSet(name + "Rcpts").serializer(rcptSerializer).makeOrGet(),
+      db.createTreeMap(name).keySerializer(BTreeKeySerializer.STRING).valueSerializer(new ClientRollupSerializer).makeOrGet(),
+      db.createTreeSet(name + "UnknownBounces").nodeSize(Index.nodeSize).serializer(index.keySerializer).makeOrGet(),
+      unknownBouncesLimit
+    )
+    if (rebuild) {
+      rollups.recipients.clear()
+      rollups.rollups.clear()
+      rollups.unknownBounces.clear()
+    }
+    rollups.backfill(index)
+    rollups
+  }
+
+}
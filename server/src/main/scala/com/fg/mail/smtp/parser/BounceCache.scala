@@ -0,0 +1,162 @@
+package com.fg.mail.smtp.parser
+
+import java.util
+import java.util.Map.Entry
+
+/**
+ * Size bounded LRU cache of bounce classifications keyed on lower cased bounce message. Many deferrals carry identical message
+ * (eq. greylisting of one provider for thousands of recipients) so that they don't need to be classified again and again.
+ *
+ * Optionally email addresses, IP addresses and long numbers (ids, timestamps) are masked in the key so that messages differing only in them
+ * share an entry, smtp status codes are left intact because categories depend on them. Masking is a single pass over message but it is
+ * paid by every lookup including hits, that is why it is disabled by default.
+ *
+ * Message is classified outside of cache lock so that lookups of other threads do not wait for it, a message that is classified
+ * by two threads at once is put to cache by the first of them.
+ *
+ * Cache is to be invalidated whenever bounce regex list is reloaded. Hit, miss and eviction counters are cumulative.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/19/14 10:40 AM u_jli Exp $
+ */
+class BounceCache(maxSize: Int, maskVariables: Boolean) {
+
+  private var hitCount = 0L
+  private var missCount = 0L
+  private var evictionCount = 0L
+
+  private val entries = new util.LinkedHashMap[String, Integer](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: Entry[String, Integer]): Boolean = {
+      val evict = size() > maxSize
+      if (evict) evictionCount += 1
+      evict
+    }
+  }
+
+  def key(message: String): String = if (maskVariables) BounceCache.mask(message) else message
+
+  /**
+   * @param compute classification of a message that is not cached yet
+   * @return cached or computed classification
+   */
+  def getOrElseUpdate(message: String)(compute: => Int): Int = {
+    val k = key(message)
+    val cached = synchronized {
+      val classification = entries.get(k)
+      if (classification ne null) hitCount += 1 else missCount += 1
+      classification
+    }
+    if (cached ne null) {
+      cached
+    } else {
+      val result = compute
+      if (maxSize > 0) {
+        synchronized {
+          if (!entries.containsKey(k))
+            entries.put(k, result)
+        }
+      }
+      result
+    }
+  }
+
+  def invalidate() {
+    synchronized {
+      entries.clear()
+    }
+  }
+
+  def size: Int = synchronized(entries.size())
+
+  /**
+   * @return tuple (hits, misses, evictions)
+   */
+  def counts: (Long, Long, Long) = synchronized((hitCount, missCount, evictionCount))
+
+}
+
+object BounceCache {
+
+  private val Email = "<email>"
+  private val Ip = "<ip>"
+  private val Number = "<n>"
+
+  /**
+   * Tokens are runs of characters between delimiters of email addresses, a token with '@' inside is an email address.
+   * Digits of other tokens are an IP address if they are 4 groups of 1 - 3 digits separated by dots or a number if they are longer than 4 digits
+   *
+   * @return message with email addresses, IP addresses and numbers replaced by placeholders
+   */
+  def mask(message: String): String = {
+    val length = message.length
+    val sb = new java.lang.StringBuilder(length)
+    var i = 0
+    while (i < length) {
+      if (isDelimiter(message.charAt(i))) {
+        sb.append(message.charAt(i))
+        i += 1
+      } else {
+        var end = i
+        var at = -1
+        while (end < length && !isDelimiter(message.charAt(end))) {
+          if (at < 0 && end > i && message.charAt(end) == '@')
+            at = end
+          end += 1
+        }
+        if (at > 0 && at < end - 1) sb.append(Email) else maskDigits(message, i, end, sb)
+        i = end
+      }
+    }
+    sb.toString
+  }
+
+  private def maskDigits(s: String, from: Int, to: Int, sb: java.lang.StringBuilder) {
+    var i = from
+    while (i < to) {
+      if (isDigit(s.charAt(i))) {
+        var end = i
+        while (end < to && isDigit(s.charAt(end))) end += 1
+        // IP address might start within a longer run of digits
+        var ipStart = Math.max(i, end - 3)
+        var ip = -1
+        while (ip < 0 && ipStart < end) {
+          ip = ipEnd(s, ipStart, to)
+          if (ip < 0) ipStart += 1
+        }
+        val digits = if (ip < 0) end else ipStart
+        if (digits - i > 4) sb.append(Number) else sb.append(s, i, digits)
+        if (ip < 0) {
+          i = end
+        } else {
+          sb.append(Ip)
+          i = ip
+        }
+      } else {
+        sb.append(s.charAt(i))
+        i += 1
+      }
+    }
+  }
+
+  /** @return end of IP address that starts at from, -1 if there is none */
+  private def ipEnd(s: String, from: Int, to: Int): Int = {
+    var i = from
+    var group = 0
+    while (group < 4) {
+      val start = i
+      while (i < to && i - start < 3 && isDigit(s.charAt(i))) i += 1
+      if (i == start || (group < 3 && (i == to || s.charAt(i) != '.')))
+        return -1
+      if (group < 3) i += 1
+      group += 1
+    }
+    i
+  }
+
+  private def isDigit(c: Char) = c >= '0' && c <= '9'
+
+  private def isDelimiter(c: Char) = c match {
+    case ' ' | '\t' | '\n' | '\u000B' | '\f' | '\r' | '<' | '>' | '(' | ')' | '[' | ']' | '"' | '\'' | ',' | ';' | ':' => true
+    case _ => false
+  }
+}
@@ -0,0 +1,296 @@
+package com.fg.mail.smtp.parser
+
+import scala.util.matching.Regex
+import java.util.concurrent.atomic.AtomicLongArray
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Category of bounce messages from bounce regex list
+ *
+ * @param bounceType soft or hard
+ * @param defaultOrder the first category in bounce regex list has the highest one, 1 is the last
+ * @param category human readable description of bounce reason
+ * @param ors regular expressions of the category, a message belongs to the category if any of them is found in it
+ */
+case class BounceCategory(bounceType: String, defaultOrder: Long, category: String, ors: Seq[String]) {
+  val regex = new Regex("(" + ors.map("(" + _ + ")").reduceLeft[String]((ac, g) => ac + "|" + g) + ")")
+}
+
+/**
+ * Bounce classification engine built from bounce regex list. Categories are prioritized by type (soft first), hit count and default order,
+ * the first category in this order whose regex is found in bounce message wins and its hit count is incremented.
+ *
+ * Instead of trying regular expressions of all categories one by one, literals that must be present in a message for a regex to match
+ * are extracted from each 'or' pattern and combined into a single Aho-Corasick automaton. One pass of the automaton over a message
+ * yields candidate categories, only their regular expressions are tried in priority order. Patterns without such literals are always candidates.
+ *
+ * Hit counts are kept in a lock-free array, categories themselves are immutable.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/18/14 2:15 PM u_jli Exp $
+ */
+class BounceClassifier(val categories: IndexedSeq[BounceCategory]) {
+
+  private val hits = new AtomicLongArray(categories.size)
+
+  /** literals of categories, None if category has an 'or' pattern without required literals */
+  private val literals: IndexedSeq[Option[Set[String]]] =
+    categories.map { c =>
+      c.ors.map(RequiredLiterals.of).foldLeft[Option[Set[String]]](Some(Set())) {
+        case (Some(acc), Some(ls)) => Some(acc ++ ls)
+        case _ => None
+      }
+    }
+
+  private val alwaysCandidates: Array[Int] = literals.indices.filter(literals(_).isEmpty).toArray
+
+  private val automaton = new LiteralAutomaton(for ((ls, i) <- literals.zipWithIndex; l <- ls.getOrElse(Set())) yield (l, i))
+
+  /**
+   * @param message lower cased bounce message
+   * @return the category with the highest priority that matches message
+   */
+  def classify(message: String): Option[BounceCategory] = hit(find(message))
+
+  /**
+   * Classification of a message that is cached is not evaluated again, only hit count of its category is incremented
+   *
+   * @param message lower cased bounce message
+   * @return the category with the highest priority that matched message when it was classified for the first time
+   */
+  def classify(message: String, cache: BounceCache): Option[BounceCategory] = hit(cache.getOrElseUpdate(message)(find(message)))
+
+  private def hit(i: Int): Option[BounceCategory] =
+    if (i < 0) {
+      None
+    } else {
+      hits.incrementAndGet(i)
+      Some(categories(i))
+    }
+
+  /** @return index of the matching category with the highest priority or -1 */
+  private def find(message: String): Int = {
+    val candidates = new Array[Boolean](categories.size)
+    alwaysCandidates.foreach(candidates(_) = true)
+    automaton.find(message, candidates)
+
+    val snapshot = new Array[Long](categories.size)
+    val ordered = candidates.indices.filter(i => candidates(i)).map { i => snapshot(i) = hits.get(i); i }.sortWith(higherPriority(snapshot))
+    ordered.find(i => categories(i).regex.pattern.matcher(message).find()).getOrElse(-1)
+  }
+
+  /** soft bounces first, then the most frequent ones, then by order in bounce regex list */
+  private def higherPriority(hitCounts: Array[Long])(a: Int, b: Int): Boolean = {
+    val (ca, cb) = (categories(a), categories(b))
+    if (ca.bounceType != cb.bounceType)
+      ca.bounceType > cb.bounceType
+    else if (hitCounts(a) != hitCounts(b))
+      hitCounts(a) > hitCounts(b)
+    else
+      ca.defaultOrder > cb.defaultOrder
+  }
+
+  def hitCount(category: BounceCategory): Long = hits.get(categories.indexOf(category))
+
+  /**
+   * @return tuples (type, hit count, default order, category, regex) in current priority order
+   */
+  def prioritized: Seq[(String, Long, Long, String, Regex)] = {
+    val snapshot = Array.tabulate(categories.size)(hits.get)
+    categories.indices.sortWith(higherPriority(snapshot)).map { i =>
+      val c = categories(i)
+      (c.bounceType, snapshot(i), c.defaultOrder, c.category, c.regex)
+    }
+  }
+
+  def isEmpty = categories.isEmpty
+}
+
+/**
+ * Aho-Corasick automaton of ASCII literals with complete transition table, it marks categories whose literal is found in a text.
+ * Non ASCII characters reset the automaton, literals containing them are not accepted
+ */
+private class LiteralAutomaton(literals: Seq[(String, Int)]) {
+  private val alphabet = 128
+
+  private val (delta, outputs) = build()
+
+  private def build(): (Array[Array[Int]], Array[Array[Int]]) = {
+    val goto = ArrayBuffer(Array.fill(alphabet)(-1))
+    val out = ArrayBuffer(Set[Int]())
+    literals.foreach { case (literal, category) =>
+      require(literal.nonEmpty && literal.forall(_ < alphabet), s"Literal '$literal' must be a non empty ASCII string")
+      val state = literal.foldLeft(0) { (s, c) =>
+        if (goto(s)(c) < 0) {
+          goto(s)(c) = goto.size
+          goto += Array.fill(alphabet)(-1)
+          out += Set[Int]()
+        }
+        goto(s)(c)
+      }
+      out(state) += category
+    }
+    val fail = new Array[Int](goto.size)
+    val queue = scala.collection.mutable.Queue[Int]()
+    (0 until alphabet).foreach { c =>
+      if (goto(0)(c) < 0) goto(0)(c) = 0 else queue += goto(0)(c)
+    }
+    while (queue.nonEmpty) {
+      val r = queue.dequeue()
+      (0 until alphabet).foreach { c =>
+        val s = goto(r)(c)
+        if (s < 0) {
+          goto(r)(c) = goto(fail(r))(c)
+        } else {
+          fail(s) = goto(fail(r))(c)
+          out(s) ++= out(fail(s))
+          queue += s
+        }
+      }
+    }
+    (goto.toArray, out.map(_.toArray).toArray)
+  }
+
+  def find(text: String, found: Array[Boolean]) {
+    var state = 0
+    var i = 0
+    while (i < text.length) {
+      val c = text.charAt(i)
+      state = if (c < alphabet) delta(state)(c) else 0
+      val o = outputs(state)
+      var j = 0
+      while (j < o.length) {
+        found(o(j)) = true
+        j += 1
+      }
+      i += 1
+    }
+  }
+}
+
+/**
+ * Extraction of literals from a regular expression such that any match contains at least one of them.
+ * It understands literals, escapes, character classes, groups, alternations and quantifiers. Anything else (eq. lookarounds)
+ * leads to None which means that the pattern can not be prefiltered.
+ */
+private[parser] object RequiredLiterals {
+
+  private class Unsupported extends RuntimeException
+
+  /** escapes that are followed by characters which are their arguments (hex, octal, control, named group or property, quotation), not literals */
+  private val escapesWithArguments = Set('x', 'u', '0', 'c', 'k', 'N', 'Q', 'p', 'P')
+
+  def of(pattern: String): Option[Set[String]] =
+    try {
+      val parser = new Parser(pattern)
+      val result = parser.alternation()
+      if (parser.pos != pattern.length) None else result.filter(_.forall(_.forall(_ < 128)))
+    } catch {
+      case _: Unsupported => None
+    }
+
+  /** the better requirement has longer shortest literal and less literals */
+  private def better(a: Option[Set[String]], b: Option[Set[String]]): Option[Set[String]] = (a, b) match {
+    case (None, _) => b
+    case (_, None) => a
+    case (Some(x), Some(y)) =>
+      val (mx, my) = (x.map(_.length).min, y.map(_.length).min)
+      if (mx > my || (mx == my && x.size <= y.size)) a else b
+  }
+
+  private class Parser(p: String) {
+    var pos = 0
+
+    private def peek: Option[Char] = if (pos < p.length) Some(p.charAt(pos)) else None
+
+    def alternation(): Option[Set[String]] = {
+      var result = concatenation()
+      while (peek == Some('|')) {
+        pos += 1
+        val next = concatenation()
+        result = for (r <- result; n <- next) yield r ++ n
+      }
+      result
+    }
+
+    private def concatenation(): Option[Set[String]] = {
+      var best: Option[Set[String]] = None
+      val run = new StringBuilder
+      def flush() {
+        if (run.nonEmpty) {
+          best = better(best, Some(Set(run.toString())))
+          run.clear()
+        }
+      }
+      while (peek.exists(c => c != '|' && c != ')')) {
+        val atom = this.atom()
+        val min = quantifier()
+        atom match {
+          case Left(Some(c)) if min == 1 => run += c
+          case Left(Some(c)) if min > 1 => run += c; flush()
+          case Right(group) if min >= 1 => flush(); best = better(best, group)
+          case _ => flush()
+        }
+      }
+      flush()
+      best
+    }
+
+    /** @return Left(Some(char)) for a literal character, Left(None) for anything that matches no literal, Right for a group */
+    private def atom(): Either[Option[Char], Option[Set[String]]] = {
+      val c = p.charAt(pos)
+      pos += 1
+      c match {
+        case '(' =>
+          if (peek == Some('?')) {
+            if (pos + 1 < p.length && p.charAt(pos + 1) == ':') pos += 2 else throw new Unsupported
+          }
+          val group = alternation()
+          if (peek != Some(')')) throw new Unsupported
+          pos += 1
+          Right(group)
+        case '[' =>
+          /* nested class or quotation (control character might be ']') would end the class elsewhere than at the first ']' */
+          if (peek == Some('^')) pos += 1
+          if (peek == Some(']')) pos += 1
+          while (peek.exists(_ != ']')) {
+            if (p.charAt(pos) == '[') throw new Unsupported
+            if (p.charAt(pos) == '\\') {
+              pos += 1
+              if (peek == Some('Q') || peek == Some('c')) throw new Unsupported
+            }
+            pos += 1
+          }
+          if (peek != Some(']')) throw new Unsupported
+          pos += 1
+          Left(None)
+        case '\\' =>
+          val escaped = peek.getOrElse(throw new Unsupported)
+          if (escapesWithArguments(escaped)) throw new Unsupported
+          pos += 1
+          if (escaped.isLetterOrDigit) Left(None) else Left(Some(escaped))
+        case '.' | '^' | '$' => Left(None)
+        case '*' | '+' | '?' | '{' => throw new Unsupported
+        case _ => Left(Some(c))
+      }
+    }
+
+    /** @return minimal count of repetitions, 1 if there is no quantifier */
+    private def quantifier(): Int = {
+      val min = peek match {
+        case Some('*') | Some('?') => pos += 1; 0
+        case Some('+') => pos += 1; 2
+        case Some('{') =>
+          val end = p.indexOf('}', pos)
+          if (end < 0) throw new Unsupported
+          val n = p.substring(pos + 1, end).takeWhile(_.isDigit)
+          pos = end + 1
+          if (n.isEmpty || n.toInt == 0) 0 else 2
+        case _ => 1
+      }
+      if (min != 1 && (peek == Some('?') || peek == Some('+'))) pos += 1
+      min
+    }
+  }
+
+}
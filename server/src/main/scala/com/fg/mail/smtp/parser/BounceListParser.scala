@@ -1,17 +1,15 @@
 package com.fg.mail.smtp.parser
 
 import scala.xml.Node
-import scala.util.matching.Regex
 import java.io.InputStream
 import scala.xml.XML
 import scala.util.control.Exception._
 import java.util.regex.{Pattern, PatternSyntaxException}
-import scala.collection.mutable.TreeSet
 import org.slf4j.LoggerFactory
 import com.fg.mail.smtp.util.Commons
 
 /**
- * Parser of regular expressions xml list. It returns either suitable data structure or a xml validation error.
+ * Parser of regular expressions xml list. It returns either bounce classification engine or a xml validation error.
  * There are to types of categories:
  * Soft bounce means that message was deferred and it is to be tried again later on, it is kept in queue
  * Hard bounce means that the reason of not delivering a message was too serious to try to deliver message again, it is removed from queue right away
@@ -22,7 +20,7 @@ import com.fg.mail.smtp.util.Commons
 class BounceListParser {
   val log = LoggerFactory.getLogger(getClass)
 
-  def parse(uriAndCredentials: (String, String)): Either[Throwable, TreeSet[(String, Long, Long, String, Regex)]] = {
+  def parse(uriAndCredentials: (String, String)): Either[Throwable, BounceClassifier] = {
     log.info("Resolving regex bounce list from " + uriAndCredentials._1)
     catching(classOf[Throwable])
       .either(Commons.getInputStream(uriAndCredentials._1, Option(uriAndCredentials._2).filter(_.trim.nonEmpty)))
@@ -32,7 +30,7 @@ class BounceListParser {
         }
   }
 
-  def parse(is: InputStream): Either[Exception, TreeSet[(String, Long, Long, String, Regex)]] = {
+  def parse(is: InputStream): Either[Exception, BounceClassifier] = {
     log.info("parsing regex bounce list")
     /**
      * @param n xml bounces node
@@ -61,26 +59,20 @@ class BounceListParser {
       }
     }
 
-    implicit val regexOrdering = Ordering.by[Regex, String](_.toString())
-    val ordering = Ordering[(String, Long, Long, String, Regex)].on((t: (String, Long, Long, String, Regex)) => (t._1, t._2, t._3, t._4, t._5)).reverse
     getValidNodeOnly(XML.load(is)) match {
       case Right(n) =>
         val regexElements = n \ "regex"
         Right(
-          regexElements.foldLeft(regexElements.size, TreeSet[(String, Long, Long, String, Regex)]()(ordering))(
-            (accumulator, regexElm) => {
-              accumulator._2.add(
-                (
-                  (regexElm \ "@type").text,
-                  0L,
-                  accumulator._1,
-                  (regexElm \ "@category").text,
-                  new Regex("(" + (regexElm \ "or").map("("+_.text+")").reduceLeft[String]((ac, g) => ac+"|"+g)+")")
-                )
+          new BounceClassifier(
+            regexElements.zipWithIndex.map { case (regexElm, i) =>
+              BounceCategory(
+                (regexElm \ "@type").text,
+                regexElements.size - i,
+                (regexElm \ "@category").text,
+                (regexElm \ "or").map(_.text)
               )
-              accumulator.copy(_1 = accumulator._1 - 1)
-            }
-          )._2
+            }.toIndexedSeq
+          )
         )
       case Left(v) => Left(v)
     }
@@ -28,12 +28,16 @@ class Controller(serverInfoService: ServerInfoService, o: Options) {
   lazy val readHrefs = ListMap(
       "Index status (since last start only)"                                                          -> "agent-status",
       "Total count of recipient email addresses"                                                      -> "agent-status/rcpt-address-counts",
+      "Approximate count of recipient email addresses (HyperLogLog, 1.6% error)"                     -> "agent-status/rcpt-address-counts/approximate",
       "Recipient email addresses"                                                                     -> "agent-status/rcpt-addresses",
       "Unclassified bounce messages"                                                                  -> "agent-status/unknown-bounces",
+      "Record counts by state"                                                                        -> "agent-status/state-counts",
+      "Client summaries (record counts and dates of the first and last record)"                       -> "agent-status/client-summaries",
       "Memory info (RAM usage)"                                                                       -> "agent-status/memory-usage",
       "Index and queue size"                                                                          -> "agent-status/index-memory-footprint",
       "Indexed log files"                                                                             -> "agent-status/indexed-log-files",
       "Environment info (memory, threads, GC, variables)"                                             -> "agent-status/server-info",
+      "Latencies of processing stages and counters (Prometheus)"                                      -> "agent-metrics",
       "Querying"                                                                                      -> "agent-read"
   ).mapValues(url + _)
 
@@ -6,6 +6,7 @@ import scala.Some
 import com.fg.mail.smtp.Client
 import com.fg.mail.smtp.IndexQuery
 import com.fg.mail.smtp.stats.GetCountStatus
+import com.fg.mail.smtp.index.{Dimension, Cursor, IndexRecord}
 
 /**
  * A lightweight DSL based router of URIs with query strings
@@ -31,17 +32,44 @@ object Dispatcher {
   val toGroupBy = QueryMatcher(LONG("to"), *("groupBy"))
   val fromToGroupBy = QueryMatcher(LONG("from"), LONG("to"), *("groupBy"))
   val lastOrFirstGroupBy = QueryMatcher(BOOLEAN("lastOrFirst"), *("groupBy"))
+  val fromToLimit = QueryMatcher(LONG("from"), LONG("to"), LONG("limit"))
+
+  /** Some(None) if there is no cursor, None if cursor is not valid */
+  object cursor {
+    def unapply(uriQuery: URIQuery): Option[Option[IndexRecord]] = uriQuery.get("cursor") match {
+      case Some(Seq(c, _*)) => Cursor.decode(c).map(Some(_))
+      case _ => Some(None)
+    }
+  }
+
+  val fromToBy = QueryMatcher(LONG("from"), LONG("to"), *("by"))
+
+  /** Some(Nil) if there is no by, None if any of comma separated dimensions is not valid */
+  object dimensions {
+    def unapply(by: Option[String]): Option[Seq[Dimension]] = by match {
+      case Some(names) =>
+        val dims = names.split(',').map(_.trim).filter(_.nonEmpty).map(Dimension(_))
+        if (dims.forall(_.isDefined)) Some(dims.flatten.toSeq.distinct) else None
+      case None => Some(Nil)
+    }
+  }
 
   def queryDispatch(rc: ReqCtx) = / {
     case "agent-shutdown" => ShutdownAgent(rc)
     case "agent-restart" => RestartAgent(rc)
     case "agent-reindex" => ReindexAgent(rc)
     case "agent-refresh-bouncelist" => RefreshBounceList(rc)
+    case "agent-metrics" => AgentMetrics(rc)
     case "agent-status" => / {
-      case "rcpt-address-counts" => RcptAddressCounts(rc)
+      case "rcpt-address-counts" => / {
+        case $() => RcptAddressCounts(rc)
+        case "approximate" => RcptAddressCounts(rc, approximate = true)
+      }
       case "rcpt-addresses" => RcptAddresses(rc)
       case "unknown-bounces" => UnknownBounces(rc)
+      case "state-counts" => StateCounts(rc)
       case "index-age" => IndexAge(rc)
+      case "client-summaries" => ClientSummaries(rc)
       case "memory-usage" => MemoryUsage(rc)
       case "index-memory-footprint" => IndexMemoryFootprint(rc)
       case "indexed-log-files" => IndexedLogFiles(rc)
@@ -77,10 +105,27 @@ object Dispatcher {
       }
       case $() => QueryPage(rc)
     }
+    case "agent-aggregate" => / {
+      case *(clientId) => / {
+        case $() => ? {
+          case fromToBy(f, t, dimensions(by)) => ClientAggregate(clientId, f, t, by)(rc)
+        }
+      }
+    }
     case $() => HomePage(rc)
   }
 
+  /**
+   * Query with limit is paginated, it is not matched at all if limit or cursor is not valid
+   */
   private def getMatcher(clientId: String, email: Option[String], queue: Option[String], message: Option[String])(rc: ReqCtx): PartialFunction[URIQuery, Request] = {
+    case q@fromToLimit(f, t, Some(l)) if l > 0 && l <= Int.MaxValue && cursor.unapply(q).isDefined =>
+      ClientPage(IndexFilter(clientId, email, queue, message), f, t, l.toInt, cursor.unapply(q).get)(rc)
+    case q if !q.contains("limit") =>
+      getQueryMatcher(clientId, email, queue, message)(rc)(q)
+  }
+
+  private def getQueryMatcher(clientId: String, email: Option[String], queue: Option[String], message: Option[String])(rc: ReqCtx): PartialFunction[URIQuery, Request] = {
     case fromToGroupBy(Some(f), Some(t), Some(gb)) =>
       Client(IndexFilter(clientId, email, queue, message), Some(IndexQuery(Some(f), Some(t), None, Some(gb))))(rc)
     case fromTo(Some(f), Some(t)) =>
@@ -6,9 +6,12 @@ import com.fg.mail.smtp._
 import scala.concurrent._
 import scala.util.control.Exception._
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.core.JsonEncoding
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
 import com.fasterxml.jackson.module.scala.DefaultScalaModule
-import com.sun.net.httpserver.{HttpExchange, HttpHandler}
+import com.sun.net.httpserver.{Headers, HttpExchange, HttpHandler}
 import java.io.{OutputStream, PrintWriter, StringWriter, ByteArrayOutputStream}
+import java.util.zip.{DeflaterOutputStream, GZIPOutputStream}
 import com.fasterxml.jackson.annotation.{JsonCreator, JsonProperty}
 import java.util.concurrent.TimeoutException
 import scala.annotation.meta.{param, getter}
@@ -18,21 +21,35 @@ import com.fg.mail.smtp.notification.MailClient
 import com.fg.mail.smtp.util.Profilable
 import org.slf4j.LoggerFactory
 import com.fg.mail.smtp.stats.GetCountStatus
+import scala.collection.IterableView
 
 /**
  * Handler of incoming Client's requests. It is responsible for serialization of data structures.
  *
+ * Lazy views of records are streamed by JsonGenerator with chunked transfer encoding while they are iterated, so that memory doesn't grow
+ * with the count of records. Response has the same structure as the buffered one, status is written as the last field
+ * because it is not known until all records are written. Other results are buffered.
+ *
+ * Responses are serialized to binary Smile format if it is accepted by client (Accept header), JSON is the default for browsers.
+ * Smile has the same data model, it is just more compact and faster to encode and decode.
+ *
+ * Responses are compressed by gzip or deflate encoding if it is accepted by client (Accept-Encoding header). Buffered ones
+ * only if they are not smaller than compression threshold, streamed ones always because their size is not known in advance.
+ *
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 6/24/13 1:36 PM u_jli Exp $
  */
-class Handler(indexer: ActorRef, counter: ActorRef, val o: Options) extends HttpHandler with Profilable {
+class Handler(indexer: ActorRef, querier: ActorRef, counter: ActorRef, val o: Options) extends HttpHandler with Profilable {
   implicit val timeout = o.askTimeout
 
   val log = LoggerFactory.getLogger(getClass.getName)
 
   val agentVersion = Option(getClass.getPackage.getImplementationVersion).getOrElse("unknown")
-  val writer = new ObjectMapper().registerModule(DefaultScalaModule).writer()
-  val prettyWriter = new ObjectMapper().registerModule(DefaultScalaModule).writer(new DefaultPrettyPrinter())
+  val mapper = new ObjectMapper().registerModule(DefaultScalaModule)
+  val writer = mapper.writer()
+  val prettyWriter = mapper.writer(new DefaultPrettyPrinter())
+  val smileMapper = new ObjectMapper(new SmileFactory()).registerModule(DefaultScalaModule)
+  val smileWriter = smileMapper.writer()
 
   override def handle(exchange: HttpExchange) {
     def woQueryString(qs: String) = if (qs eq null) "without query string" else "with query string : " + qs
@@ -43,7 +60,12 @@ class Handler(indexer: ActorRef, counter: ActorRef, val o: Options) extends Http
     val userAgent = Option(requestHeaders.getFirst("User-Agent")).getOrElse("unknown")
     val rc = ReqCtx(Map[String, String]("client-version" -> clientVersion, "User-Agent" -> userAgent))
     val out = new ByteArrayOutputStream()
+    var responseCode = 200
+    var streamed = false
     val isAgentClient = userAgent == "smtp-agent-http-client"
+    implicit val binary = Option(requestHeaders.getFirst("Accept")).exists(_.contains(ContentType.smile))
+    responseHeaders.set("Content-Type", if (binary) ContentType.smile else ContentType.json)
+    val encoding = acceptedEncoding(Option(requestHeaders.getFirst("Accept-Encoding")))
     val startAt = System.currentTimeMillis()
     exchange.getRequestMethod match {
       case "GET" =>
@@ -60,11 +82,15 @@ class Handler(indexer: ActorRef, counter: ActorRef, val o: Options) extends Http
                 case Left(e) => e match {
                   case ex: TimeoutException =>
                     writeValue(out, null, false, Left(e), isAgentClient, startAt)
-                    exchange.sendResponseHeaders(408, 0)
-                    indexer ! RestartIndexer(s"handling request URI : $uri ${woQueryString(queryString)} failed on response timeout !", Option(ex))
+                    responseCode = 408
+                    // a slow query of querier pool says nothing about the state of indexer
+                    if (selectActor(req) == indexer)
+                      indexer ! RestartIndexer(s"handling request URI : $uri ${woQueryString(queryString)} failed on response timeout !", Option(ex))
+                    else
+                      log.warn(s"handling request URI : $uri ${woQueryString(queryString)} timed out !")
                   case _ =>
                     writeValue(out, null, false, Left(e), isAgentClient, startAt)
-                    exchange.sendResponseHeaders(500, 0)
+                    responseCode = 500
                     MailClient.fail(s"handling request URI : $uri ${woQueryString(queryString)} failed !", Option(e), o)
                 }
                 case Right(Some(result)) =>
@@ -73,68 +99,137 @@ class Handler(indexer: ActorRef, counter: ActorRef, val o: Options) extends Http
                     case Html(html) =>
                       out.write(html.getBytes)
                       responseHeaders.set("Content-Type", ContentType.html)
+                    case PrometheusText(text) =>
+                      out.write(text.getBytes("UTF-8"))
+                      responseHeaders.set("Content-Type", ContentType.prometheus)
+                    case records: IterableView[_, _] =>
+                      encoding.foreach(setEncoding(responseHeaders, _))
+                      exchange.sendResponseHeaders(200, 0)
+                      streamValue(encode(exchange.getResponseBody, encoding), records, isAgentClient, startAt)
+                      streamed = true
                     case _ =>
                       writeValue(out, result, true, Right("OK"), isAgentClient, startAt)
-                      responseHeaders.set("Content-Type", ContentType.json)
                   }
-                  exchange.sendResponseHeaders(200, 0)
                 case Right(None) =>
                   log.info(s"handling request URI : $uri ${woQueryString(queryString)} with empty result")
-                  responseHeaders.set("Content-Type", ContentType.json)
                   writeValue(out, null, true, Right("OK"), isAgentClient, startAt)
-                  exchange.sendResponseHeaders(200, 0)
               }
             case None =>
               log.error(s"request URI : $uri ${woQueryString(queryString)} doesn't exist !")
-              responseHeaders.set("Content-Type", ContentType.json)
               writeValue(out, null, false, Right(s"Invalid request uri $uri or query string: $queryString"), isAgentClient, startAt)
-              exchange.sendResponseHeaders(501, 0)
+              responseCode = 501
           }
         }
       case _ =>
         log.error(s"Agent requested by other http method than GET from ${exchange.getRemoteAddress}")
         writeValue(out, null, false, Right(s"Invalid http request method"), isAgentClient, startAt)
+        responseCode = 405
+    }
+    if (!streamed) {
+      val response = encoding.filter(_ => out.size() >= o.compressionThreshold).fold(out) { e =>
+        setEncoding(responseHeaders, e)
+        compress(out, e)
+      }
+      exchange.sendResponseHeaders(responseCode, if (response.size() == 0) -1 else response.size())
+      val body = exchange.getResponseBody
+      response.writeTo(body)
+      body.close()
     }
-    responseHeaders.set("Content-Length", out.size().toString)
-    val body = exchange.getResponseBody
-    out.writeTo(body)
-    body.close()
     out.close()
     log.info("Response handled")
   }
 
   private def selectActor(req: Request): ActorRef = req match {
     case GetCountStatus(rc) => counter
+    case q: Query => querier
     case _ => indexer
   }
 
-  private def writeValue(out: OutputStream, result: Any, succeeded: Boolean, message: Either[Throwable, String], isAgentClient: Boolean, startedAt: Long)(implicit clientVersion: String) {
-    def chooseWriter = if (isAgentClient) writer else prettyWriter
-    val responseTime = System.currentTimeMillis() - startedAt
-    def stackTrace(e: Throwable) = {
-      val sw = new StringWriter()
-      e.printStackTrace(new PrintWriter(sw))
-      sw.toString
-    }
+  /**
+   * @return gzip or deflate if it is accepted by client and compression is not disabled, gzip is preferred
+   */
+  private def acceptedEncoding(acceptEncoding: Option[String]): Option[String] =
+    if (o.compressionThreshold < 0)
+      None
+    else
+      acceptEncoding.map(_.toLowerCase).flatMap(accepted => Seq("gzip", "deflate").find(accepted.contains))
 
-    def buildMsg(message: Either[Throwable, String]) = message match {
-      case Left(e) => s"${e.getClass.getSimpleName} : ${e.getMessage}\n ${stackTrace(e)}"
-      case Right(m) => m
-    }
+  private def setEncoding(responseHeaders: Headers, encoding: String) {
+    responseHeaders.set("Content-Encoding", encoding)
+    responseHeaders.set("Vary", "Accept-Encoding")
+  }
+
+  private def encode(body: OutputStream, encoding: Option[String]): OutputStream = encoding match {
+    case Some("gzip") => new GZIPOutputStream(body, 8192)
+    case Some("deflate") => new DeflaterOutputStream(body)
+    case _ => body
+  }
+
+  private def compress(out: ByteArrayOutputStream, encoding: String): ByteArrayOutputStream = profile(500, "Response compression", s"$encoding of ${out.size()} bytes") {
+    val result = new ByteArrayOutputStream(out.size() / 4)
+    val encoder = encode(result, Some(encoding))
+    out.writeTo(encoder)
+    encoder.close()
+    result
+  }
+
+  private def stackTrace(e: Throwable) = {
+    val sw = new StringWriter()
+    e.printStackTrace(new PrintWriter(sw))
+    sw.toString
+  }
+
+  private def buildMsg(message: Either[Throwable, String]) = message match {
+    case Left(e) => s"${e.getClass.getSimpleName} : ${e.getMessage}\n ${stackTrace(e)}"
+    case Right(m) => m
+  }
+
+  private def getStatus(success: Boolean, msg: String, timeStamp: Long, version: String, responseTime: Long)(implicit clientVersion: String) = {
+    if (clientVersion == "unknown")
+      new ResponseStatus(success, msg, timeStamp)
+    else
+      new NewResponseStatus(success, msg, timeStamp, version, responseTime)
+  }
 
-    def getStatus(success: Boolean, msg: String, timeStamp: Long, version: String, responseTime: Long) = {
-      if (clientVersion == "unknown")
-        new ResponseStatus(success, msg, timeStamp)
-      else
-        new NewResponseStatus(success, msg, timeStamp, version, responseTime)
+  /**
+   * Records are written one by one as they are read from index, body is closed afterwards. If iteration fails,
+   * response is still completed with status of failure because response code has been already sent
+   */
+  private def streamValue(body: OutputStream, records: IterableView[_, _], isAgentClient: Boolean, startedAt: Long)(implicit clientVersion: String, binary: Boolean) {
+    val generator = (if (binary) smileMapper else mapper).getFactory.createGenerator(body, JsonEncoding.UTF8)
+    if (!isAgentClient && !binary) generator.useDefaultPrettyPrinter()
+    try {
+      profile(2000, if (binary) "Smile streaming" else "Json streaming") {
+        generator.writeStartObject()
+        generator.writeArrayFieldStart("result")
+        val message: Either[Throwable, String] =
+          catching(classOf[Throwable]).either(records.foreach(r => generator.writeObject(r.asInstanceOf[AnyRef]))) match {
+            case Left(e) =>
+              log.error("Json streaming failed", e)
+              Left(e)
+            case Right(_) =>
+              Right("OK")
+          }
+        generator.writeEndArray()
+        generator.writeObjectField("status", getStatus(message.isRight, buildMsg(message), System.currentTimeMillis(), agentVersion, System.currentTimeMillis() - startedAt))
+        generator.writeEndObject()
+      }
+    } finally {
+      generator.close()
+      body.close()
     }
+  }
+
+  private def writeValue(out: OutputStream, result: Any, succeeded: Boolean, message: Either[Throwable, String], isAgentClient: Boolean, startedAt: Long)(implicit clientVersion: String, binary: Boolean) {
+    def chooseWriter = if (binary) smileWriter else if (isAgentClient) writer else prettyWriter
+    val responseTime = System.currentTimeMillis() - startedAt
 
-    profile(2000, "Json serialization") {
+    profile(2000, if (binary) "Smile serialization" else "Json serialization") {
       catching(classOf[Throwable])
       .either(chooseWriter.writeValue(out, new AgentResponse(result, getStatus(succeeded, buildMsg(message), System.currentTimeMillis(), agentVersion, responseTime)))) match {
         case Left(e) =>
           log.error(s"Json serialization failed, result :\n $result", e)
-          writer.writeValue(out, new AgentResponse(null, getStatus(false, "Json serialization error", System.currentTimeMillis(), agentVersion, responseTime)))
+          (if (binary) smileWriter else writer).writeValue(out, new AgentResponse(null, getStatus(false, "Json serialization error", System.currentTimeMillis(), agentVersion, responseTime)))
         case Right(r) =>
           r
       }
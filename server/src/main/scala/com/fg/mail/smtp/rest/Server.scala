@@ -13,9 +13,10 @@ import java.util.concurrent.Executors
  * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
  * @version $Id: 10/13/13 5:47 PM u_jli Exp $
  */
-class Server(indexer: ActorRef, counter: ActorRef, o: Options) extends Actor with ActorLogging {
+class Server(indexer: ActorRef, querier: ActorRef, counter: ActorRef, o: Options) extends Actor with ActorLogging {
 
-  val executorService = Executors.newFixedThreadPool(1)
+  /** as many requests are handled concurrently as there are queriers */
+  val executorService = Executors.newFixedThreadPool(o.queryParallelism)
   var server: HttpServer = _
 
   override def preStart() {
@@ -26,7 +27,7 @@ class Server(indexer: ActorRef, counter: ActorRef, o: Options) extends Actor wit
         context.system.shutdown()
       case Right(s) =>
         s.setExecutor(executorService)
-        val ctx = s.createContext("/", new Handler(indexer, counter, o))
+        val ctx = s.createContext("/", new Handler(indexer, querier, counter, o))
         if (!o.httpServerAuth.isEmpty){
           ctx.setAuthenticator(new SmtpAgentBasicHttpAuthenticator(o))
         }
@@ -39,6 +39,30 @@ case class LastIndexingStatus(
                    @(JsonProperty@field)("Count of indexed log entries (delivery attempts regardless of the status) from backup")
                    var indexedLogEntriesFromBackup: Long = 0,
 
+                   @(JsonProperty@field)("Count of bounce messages classified by cache")
+                   var bounceCacheHits: Long = 0,
+
+                   @(JsonProperty@field)("Count of bounce messages classified by bounce regex list")
+                   var bounceCacheMisses: Long = 0,
+
+                   @(JsonProperty@field)("Count of bounce classifications evicted from cache")
+                   var bounceCacheEvictions: Long = 0,
+
+                   @(JsonProperty@field)("Count of bounce classifications in cache")
+                   var bounceCacheSize: Int = 0,
+
+                   @(JsonProperty@field)("Count of records ingested into index")
+                   var ingestedRecords: Long = 0,
+
+                   @(JsonProperty@field)("Records per second ingested by the last group commit")
+                   var ingestingRate: Long = 0,
+
+                   @(JsonProperty@field)("Current batch size of tailed records")
+                   var tailingBatchSize: Int = 0,
+
+                   @(JsonProperty@field)("Queueing delay of the last batch of tailed records in ms")
+                   var tailingQueueingDelay: Long = 0,
+
                    @(JsonProperty@field)("Client statistics")
                    clientStatistics: mutable.Map[String, Statistics] = mutable.Map[String, Statistics]()
 ) {
@@ -59,6 +83,29 @@ case class LastIndexingStatus(
     lastLineReceivedAt = System.currentTimeMillis()
   }
 
+  def bounceCache(hits: Long, misses: Long, evictions: Long, size: Int) {
+    bounceCacheHits = hits
+    bounceCacheMisses = misses
+    bounceCacheEvictions = evictions
+    bounceCacheSize = size
+  }
+
+  /**
+   * @param nanos how long indexing and committing of records took
+   */
+  def recordsIngested(count: Long, nanos: Long) {
+    ingestedRecords += count
+    ingestingRate = if (nanos > 0) count * 1000000000L / nanos else count
+  }
+
+  /**
+   * @param delay how long the oldest record of the batch waited for the batch to be sent to indexer
+   */
+  def tailingBatch(size: Int, delay: Long) {
+    tailingBatchSize = size
+    tailingQueueingDelay = delay
+  }
+
   def clientRequest(r: Client) {
     val clientVersion = r.ctx.underlying("client-version")
     val clientId = r.filter.clientId
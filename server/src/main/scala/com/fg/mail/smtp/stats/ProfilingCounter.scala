@@ -33,6 +33,15 @@ class ProfilingCounter extends Actor with ActorLogging {
     case CountIndexedMidLine(count) =>
       status.midLineIndexed(count)
 
+    case CountIngestedRecords(count, nanos) =>
+      status.recordsIngested(count, nanos)
+
+    case CountTailingBatch(size, delay) =>
+      status.tailingBatch(size, delay)
+
+    case CountBounceCache(hits, misses, evictions, size) =>
+      status.bounceCache(hits, misses, evictions, size)
+
     case CountClientRequest(c) =>
       status.clientRequest(c)
 
@@ -47,4 +56,7 @@ case class CountRemovedLine(count: Long)
 case class CountClientRequest(c: Client)
 case class CountIndexedMidLine(count: Long)
 case class CountIndexedDeliveryAttemptLine(count: Long)
+case class CountIngestedRecords(count: Long, nanos: Long)
+case class CountTailingBatch(size: Int, delay: Long)
+case class CountBounceCache(hits: Long, misses: Long, evictions: Long, size: Int)
 case class GetCountStatus(ctx: ReqCtx) extends Request
\ No newline at end of file
@@ -0,0 +1,77 @@
+package com.fg.mail.smtp.tail
+
+import com.fg.mail.smtp.index.ClientIndexRecord
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Micro-batching of tailed records. A batch is due when there are as many records as current batch size
+ * or when the oldest of them waited for max delay, so that records don't wait for a batch to fill up during quiet periods.
+ *
+ * Batch size adapts to indexing time that Indexer reports back : if indexing of a batch takes longer than max delay, batch size is halved.
+ * If a full batch is indexed in less than half of max delay, batch size is doubled up to max size. Bursts of lines are then indexed
+ * in big batches with low overhead per record while batches stay small if indexing is slow.
+ *
+ * @param maxSize the biggest batch size
+ * @param maxDelay how many miliseconds the oldest record may wait for a batch to be due
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/25/14 4:30 PM u_jli Exp $
+ */
+class AdaptiveBatcher(maxSize: Int, maxDelay: Long) {
+
+  private var size = Math.min(AdaptiveBatcher.initialSize, maxSize)
+  private var pending = new ArrayBuffer[ClientIndexRecord]()
+  private var oldest = 0L
+
+  def batchSize: Int = synchronized(size)
+
+  def nonEmpty: Boolean = synchronized(pending.nonEmpty)
+
+  def add(records: Iterable[ClientIndexRecord], now: Long = System.currentTimeMillis()) {
+    synchronized {
+      if (pending.isEmpty && records.nonEmpty)
+        oldest = now
+      pending ++= records
+    }
+  }
+
+  /** @return how many miliseconds there is till a batch is due, Long.MaxValue if there are no records */
+  def timeToDue(now: Long = System.currentTimeMillis()): Long = synchronized {
+    if (pending.isEmpty) Long.MaxValue else Math.max(0L, oldest + maxDelay - now)
+  }
+
+  def isDue(now: Long = System.currentTimeMillis()): Boolean = synchronized {
+    pending.size >= size || (pending.nonEmpty && now - oldest >= maxDelay)
+  }
+
+  /**
+   * Records that don't fit into the batch stay pending with the same age because they might be as old as the batch
+   *
+   * @return batch of at most batch size records and how many miliseconds the oldest of them waited
+   */
+  def flush(now: Long = System.currentTimeMillis()): (Seq[ClientIndexRecord], Long) = synchronized {
+    val batch = pending.take(size)
+    pending = pending.drop(size)
+    (batch, now - oldest)
+  }
+
+  /**
+   * @param count of records in indexed batch
+   * @param millis how long indexing of the batch took
+   */
+  def indexed(count: Int, millis: Long) {
+    synchronized {
+      if (millis > maxDelay)
+        size = Math.max(1, size / 2)
+      else if (count >= size && millis < maxDelay / 2)
+        size = Math.min(maxSize, size * 2)
+    }
+  }
+
+}
+
+object AdaptiveBatcher {
+
+  val initialSize = 64
+
+}
@@ -0,0 +1,277 @@
+package com.fg.mail.smtp.tail
+
+import com.fg.mail.smtp.Options
+import com.fg.mail.smtp.index.Checkpoint
+import com.fg.mail.smtp.util.Commons
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.{ClosedChannelException, FileChannel}
+import java.nio.charset.Charset
+import java.nio.file._
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.TimeUnit
+import org.slf4j.LoggerFactory
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Tails a log file that may be rotated, it works like tail -F. File is read by a FileChannel in chunks to a direct buffer
+ * and complete lines are returned, incomplete line at the end stays in buffer until the rest of it is written.
+ *
+ * When the end of file is reached, tailer waits for a modification event of the file's directory by WatchService (inotify on Linux),
+ * so that new lines are read right after they are written and tailer does not wake up while there is nothing to read.
+ * Timeout of waiting is just a safety net for file systems that do not deliver events (eq. NFS).
+ *
+ * File is rotated if there is no file of its name or if the file of its name is another file (file key that is device and inode on Linux).
+ * The rest of rotated file is read and then the new file is opened. File that is truncated (copytruncate) is read from the beginning.
+ * Incomplete line at the end of rotated or truncated file is its last line, it must not prefix the first line of what is read next.
+ *
+ * Checkpoint identifies file by md5 digest of its first line and position by offset of the first byte that was not read yet,
+ * tailing starts at the checkpoint it is given if it is a checkpoint of the same file.
+ *
+ * @param file log file, it must exist
+ * @param from checkpoint to start tailing at, the file is read from the beginning if it is a checkpoint of another file
+ * @param firstEOF executed when the end of file is reached for the first time
+ * @param fileRotation executed when file was rotated and the new file was opened
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/25/14 11:20 AM u_jli Exp $
+ */
+class FileTailer(o: Options, file: File, from: Option[Checkpoint] = None)(firstEOF: () => Unit, fileRotation: () => Unit) {
+  import FileTailer._
+
+  val log = LoggerFactory.getLogger(getClass.getName)
+
+  require(file != null)
+  assume(file.exists, "Attempt to tail a file that doesn't exists, somebody probably moved/removed postfix log file")
+
+  private val path = file.toPath.toAbsolutePath
+  private val charset = Charset.defaultCharset()
+
+  private val watcher = path.getFileSystem.newWatchService()
+  path.getParent.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE)
+
+  private var buffer = ByteBuffer.allocateDirect(chunkSize)
+  private var channel: FileChannel = _
+  private var fileKey: AnyRef = _
+  private var digest: String = _
+  private var firstEofReached = false
+  @volatile private var closed = false
+
+  open()
+  from.foreach(seek)
+
+  /**
+   * It blocks until there are complete lines appended to file or max wait elapses, rotation and truncation of file are handled meanwhile
+   *
+   * @param maxWait how many miliseconds at most to wait for new lines
+   * @return lines appended to file since the last call (empty if max wait elapsed), None if tailing is over because tailer was closed or file disappeared
+   */
+  def readLines(maxWait: Long = Long.MaxValue): Option[Seq[String]] = {
+    val lines = new ArrayBuffer[String]()
+    val start = System.currentTimeMillis()
+    val deadline = if (maxWait > Long.MaxValue - start) Long.MaxValue else start + maxWait
+    def remaining = deadline - System.currentTimeMillis()
+    try {
+      while (lines.isEmpty && !closed && remaining > 0) {
+        if (channel.read(buffer) > 0) {
+          collectLines(lines)
+        } else {
+          if (!firstEofReached) {
+            firstEofReached = true
+            firstEOF()
+          }
+          if (rotated_?) {
+            // lines written to the file right before it was rotated
+            if (channel.read(buffer) > 0)
+              collectLines(lines)
+            else if (!reopen(lines))
+              close()
+          } else if (channel.size < channel.position) {
+            log.info(s"File ${file.getName} was truncated, reading it from the beginning")
+            flushRest(lines)
+            channel.position(0)
+            digest = null
+          } else {
+            awaitModification(Math.min(o.eofWatchTimeout.toLong, remaining))
+          }
+        }
+      }
+    } catch {
+      case _: InterruptedException | _: ClosedWatchServiceException | _: ClosedChannelException =>
+        log.warn("Tailing interrupted while waiting for new input !")
+        close()
+    }
+    if (lines.isEmpty && closed) None else Some(lines)
+  }
+
+  /**
+   * Lines that were returned by readLines are before checkpoint, incomplete line at the end of buffer is after it
+   *
+   * @return checkpoint of the current position, None if no line of the current file was read yet
+   */
+  def checkpoint: Option[Checkpoint] = {
+    val offset = channel.position - buffer.position
+    if (offset > 0) {
+      if (digest eq null)
+        digest = firstLineDigest(offset)
+      Some(Checkpoint(digest, offset))
+    } else {
+      None
+    }
+  }
+
+  def close() {
+    if (!closed)
+      log.warn(s"Closing tailed file ${file.getName}")
+    closed = true
+    watcher.close()
+    channel.close()
+  }
+
+  private def open() {
+    channel = FileChannel.open(path, StandardOpenOption.READ)
+    fileKey = keyOf(path)
+    digest = null
+  }
+
+  private def seek(c: Checkpoint) {
+    if (c.offset <= channel.size && firstLineDigest(c.offset) == c.digest) {
+      log.info(s"Tailing file ${file.getName} from checkpoint at ${c.offset} of ${channel.size} bytes")
+      channel.position(c.offset)
+    } else {
+      log.info(s"Checkpoint is not of file ${file.getName}, it is read from the beginning")
+    }
+  }
+
+  /**
+   * First line is read by positional reads so that position of channel is not changed, it is not read beyond the checkpoint offset
+   * because its file might be rotated, lines longer than a chunk are digested by their beginning
+   */
+  private def firstLineDigest(offset: Long): String = {
+    val head = ByteBuffer.allocate(Math.min(offset, chunkSize.toLong).toInt)
+    while (head.hasRemaining && channel.read(head, head.position()) > 0) {}
+    var end = 0
+    while (end < head.position() && head.get(end) != NewLine) end += 1
+    val line = new String(head.array, 0, if (end > 0 && head.get(end - 1) == CarriageReturn) end - 1 else end, charset)
+    Commons.digest(line)
+  }
+
+  private def keyOf(p: Path): AnyRef = Files.readAttributes(p, classOf[BasicFileAttributes]).fileKey
+
+  /* position beyond the size of file is the last resort if file system doesn't provide file keys */
+  private def rotated_? : Boolean =
+    try {
+      val key = keyOf(path)
+      if ((key ne null) && (fileKey ne null)) key != fileKey else channel.position > Files.size(path)
+    } catch {
+      case _: NoSuchFileException => true
+    }
+
+  /** incomplete line at the end of buffer is taken as a line and buffer is emptied */
+  private def flushRest(lines: ArrayBuffer[String]) {
+    buffer.flip()
+    if (buffer.hasRemaining)
+      lines += decode(0, buffer.limit())
+    buffer.clear()
+  }
+
+  /**
+   * Rest of the rotated file that is not terminated by a new line is its last line
+   *
+   * @return false if there is no new file even after re-open tries
+   */
+  private def reopen(lines: ArrayBuffer[String]): Boolean = {
+    flushRest(lines)
+    channel.close()
+    if (testExists(o, file)) {
+      log.info(s"File ${file.getName} was rotated, tailing the new one")
+      open()
+      fileRotation()
+      true
+    } else {
+      log.warn(s"Tailing is about to stop, file was not found in ${o.reOpenTries} attempts")
+      false
+    }
+  }
+
+  /**
+   * Complete lines are taken from buffer, incomplete line at the end is moved to the beginning of buffer.
+   * Buffer is enlarged if the incomplete line fills it up
+   */
+  private def collectLines(lines: ArrayBuffer[String]) {
+    buffer.flip()
+    val end = buffer.limit()
+    var start = 0
+    var i = 0
+    while (i < end) {
+      if (buffer.get(i) == NewLine) {
+        lines += decode(start, if (i > start && buffer.get(i - 1) == CarriageReturn) i - 1 else i)
+        start = i + 1
+      }
+      i += 1
+    }
+    buffer.position(start)
+    buffer.compact()
+    if (!buffer.hasRemaining) {
+      val enlarged = ByteBuffer.allocateDirect(buffer.capacity * 2)
+      buffer.flip()
+      enlarged.put(buffer)
+      buffer = enlarged
+    }
+  }
+
+  private def decode(from: Int, to: Int): String = {
+    val bytes = new Array[Byte](to - from)
+    val line = buffer.duplicate()
+    line.position(from)
+    line.get(bytes)
+    new String(bytes, charset)
+  }
+
+  /**
+   * Events of other files in the directory are ignored, overflow means that events were lost so that file might have been modified
+   */
+  private def awaitModification(timeout: Long) {
+    val deadline = System.currentTimeMillis() + timeout
+    var remaining = timeout
+    var modified = false
+    while (!modified && remaining > 0) {
+      val key = watcher.poll(remaining, TimeUnit.MILLISECONDS)
+      if (key ne null) {
+        modified = key.pollEvents().asScala.exists(e => e.kind == StandardWatchEventKinds.OVERFLOW || e.context == path.getFileName)
+        key.reset()
+      }
+      remaining = deadline - System.currentTimeMillis()
+    }
+  }
+
+}
+
+object FileTailer {
+
+  /** size of direct buffer that file is read into */
+  val chunkSize = 1024 * 1024
+
+  private val NewLine = '\n'.toByte
+  private val CarriageReturn = '\r'.toByte
+
+  /**
+   * Test file existence N times (reOpenTries), wait between retries (reOpenSleep)
+   *
+   * @return true on success
+   */
+  def testExists(o: Options, file: File): Boolean = {
+    def tryExists(n: Int): Boolean =
+      if (file.exists)
+        true
+      else if (n > o.reOpenTries) {
+        false
+      } else {
+        o.reOpenSleep()
+        tryExists(n+1)
+      }
+
+    tryExists(1)
+  }
+}
@@ -6,16 +6,13 @@ import com.fg.mail.smtp._
 import scala.concurrent.{Future, ExecutionContext}
 import java.util.concurrent._
 import scala._
-import com.fg.mail.smtp.parser.BounceListParser
+import com.fg.mail.smtp.parser.{BounceCache, BounceClassifier, BounceListParser}
 import com.fg.mail.smtp.index._
-import scala.util.matching.Regex
-import com.fg.mail.smtp.util.{ParsingUtils, Profilable, Commons}
+import com.fg.mail.smtp.util.{TimestampParser, LineTokenizer, LogScanner, Metrics, ParsingUtils, Profilable, Commons}
 import com.fg.mail.smtp.notification.MailClient
-import java.util.{Locale, Date}
-import java.text.SimpleDateFormat
 import com.fg.mail.smtp.stats._
 import com.fg.mail.smtp.RefreshBounceList
-import scala.util.Failure
+import scala.util.{Try, Failure}
 import scala.Some
 import com.fg.mail.smtp.ExpiredLine
 import com.fg.mail.smtp.RemovedQueueLine
@@ -42,15 +39,11 @@ import scala.collection.mutable.ArrayBuffer
  * It is recursively sending a message with new line to itself so that it doesn't block for it to be able to listen to
  * messages from the outside.
  *
- * Tail works similar to unix tail utility. There are 3 essential ingredients :
- *
- * <ul>
- *    <li>TailingInputStream : FileInputStream returns -1 on EOF, this one returns -1 only when the underlying file is rotated<br>
- *      otherwise hitting EOF just makes recursively reading and sleeping
- *    <li>Rotation - infinite enumeration of input streams from the same underlying path to a file that may be rotated
- *    <li>{@link java.io.SequenceInputStream} : Used for continuous reading of input streams. It reads next one when it hits EOF of the previous one.<br>
- *      Providing it with Rotation enumeration where each next element is a new TailingInputStream makes it survive infinite number of file rotations
- * <ul>
+ * Tail works similar to unix tail -F utility, see FileTailer. Each ReadLines message reads lines that were appended to the file
+ * since the previous one, it blocks until there are some or until pending records are due to be indexed.
+ * Tailed records are sent to Indexer in micro batches that are bounded by size and delay, see AdaptiveBatcher.
+ * When all records of read lines were sent, checkpoint of tailed file is marked in queue and sent to Indexer to be committed with records,
+ * tailing starts from the committed checkpoint after restart if queue was loaded as it was at that checkpoint.
  *
  * It also interprets provided lines, files or directory of smtp log to build index. It does so using a few regex patterns that identify relevant log lines.
  *
@@ -60,22 +53,24 @@ import scala.collection.mutable.ArrayBuffer
 class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) extends Actor with ActorLogging with Profilable {
 
   var executorService: ExecutorService = _
-  var prioritizedBounceList: scala.collection.mutable.TreeSet[(String, Long, Long, String, Regex)] = _
-  var queue: Queue = _
+  var prioritizedBounceList: BounceClassifier = _
+  val bounceCache = new BounceCache(o.bounceCacheSize, o.bounceCacheMasking)
+  var queue: PackedQueue = _
   var restarted: Boolean = false
+  var tailFrom: Option[Checkpoint] = None
+  var lastCheckpoint: Option[Checkpoint] = None
+  val batcher = new AdaptiveBatcher(o.tailingBatchSize, o.tailingMaxDelay)
 
   lazy implicit val executionContext = ExecutionContext.fromExecutor(executorService)
   lazy implicit val timeout = o.askTimeout
 
-  val dateFormat = new SimpleDateFormat("yyyy MMM dd HH:mm:ss.SSS", Locale.US)
-
   override def postRestart(reason: Throwable) {
     restarted = true
   }
 
   override def preStart() {
     log.info(" is starting")
-    queue = Queue(dbManager.queueDb)
+    queue = dbManager.queue
     executorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue[Runnable], Executors.defaultThreadFactory, new RejectedExecutionHandler{
       def rejectedExecution(r: Runnable, executor: ThreadPoolExecutor) {
         log.warning("Tailer executor is forced to shut down, queued tasks are rejected !")
@@ -93,23 +88,31 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
 
     case msg: Tailing => msg match {
 
-      case ReadLines(reader, batchSize) =>
+      case ReadLines(tailer) =>
         Future {
-          Option(List.fill(batchSize){reader.readLine})
+          // file is read even if pending records are just due
+          tailer.readLines(Math.max(1, batcher.timeToDue()))
         } onComplete {
           case Success(Some(lines)) =>
-            val records = parseLines(lines, true, queue)
-            if (!records.isEmpty) context.parent ! IndexTailedRecords(records)
-            self ! ReadLines(reader, batchSize)
+            tailedLines.add(lines.size)
+            batcher.add(parseLines(lines, true, queue))
+            while (batcher.isDue())
+              flushBatch()
+            if (!batcher.nonEmpty)
+              checkpoint(tailer)
+            self ! ReadLines(tailer)
           case Success(None) =>
-            reader.close()
+            while (batcher.nonEmpty)
+              flushBatch()
+            tailer.close()
             log.warning("Closing tail file input stream, cause tailing file disappeared or system is shutting down", None)
           case Failure(e) =>
-            reader.close()
+            tailer.close()
             context.parent ! RestartIndexer("Closing tail file input stream and restarting indexer due to exception", Option(e))
         }
 
-      case ReadBackup(digests: collection.mutable.Set[String]) =>
+      case ReadBackup(digests: collection.mutable.Set[String], checkpoint) =>
+        tailFrom = checkpoint
         try {
           val logDir = new File(o.logDir)
           assert(logDir.exists(), s"Directory ${logDir.getAbsolutePath} doesn't exist !")
@@ -122,33 +125,29 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
             "Prioritized bounce list - how many times and in what order bounce messages were classified  :\n" +
             Commons.buildTable(
               List("type", "hit count", "default order (1 is the last)", "category"),
-              prioritizedBounceList.toList.map( t => (t._1, t._2, t._3, t._4).productIterator.toList)
+              prioritizedBounceList.prioritized.toList.map( t => (t._1, t._2, t._3, t._4).productIterator.toList)
             )
           )
 
-          logResultString
-
           if (!indexingBackup) self ! StartTailing
         } catch {
           case e: Throwable => context.actorSelection("../../../supervisor") ! ShutSystemDown("Fatal error during reading backup logs", Option(e))
         }
 
+      case TailedRecordsIndexed(count, millis) =>
+        batcher.indexed(count, millis)
+
       case StartTailing =>
         val tailedLogFile = new File(o.logDir + o.tailedLogFileName)
         if (tailedLogFile.createNewFile()) {
           logger.warn(s"File to be tailed ${tailedLogFile.getName} doesn't exist, it was created...")
         }
-        val length = tailedLogFile.length()
-        val tailingBatchSize = if (length < (1024 * 1024)) 1 else length / (1024 * 1024)
-        log.info("Preparing for tailing file " + tailedLogFile.getName + " with batch size " + tailingBatchSize + " MB")
-        val reader = new BufferedReader(
-                        new InputStreamReader(
-                          new SequenceInputStream(
-                            new Rotation( o, tailedLogFile )( () => context.parent ! IndexingTailFinished, () => context.parent ! LogFileRotated )
-                          )
-                        )
-                      )
-        self ! ReadLines(reader, tailingBatchSize.toInt)
+        log.info("Preparing for tailing file " + tailedLogFile.getName)
+        val from = tailFrom.filter(c => queue.lastMark == Some(c))
+        if (tailFrom.isDefined && from.isEmpty)
+          log.warning(s"Queue was not loaded as it was at checkpoint ${tailFrom.get}, tailed file is going to be read from the beginning")
+        val tailer = new FileTailer(o, tailedLogFile, from)( () => context.parent ! IndexingTailFinished, () => context.parent ! LogFileRotated )
+        self ! ReadLines(tailer)
 
     }
 
@@ -173,7 +172,12 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
 
   /**
    * When building index from log files in a directory, we want to first filter only relevant files,
-   * collect the newest ones that fit in max-file-size-to-index limit and parse them in reverse alphabetical order
+   * collect the newest ones that fit in max-file-size-to-index limit and parse them in reverse alphabetical order.
+   *
+   * If backup parsing parallelism is greater than 1, files are gunzipped and their lines are recognized concurrently by a pool of workers
+   * within a sliding window of files, but recognized lines are still applied to Queue and Index sequentially in the rotation order
+   * because queueId/clientId correlation spans over files. Workers hand lines over in bounded chunks so that at most a few chunks
+   * of each file in the window are held in memory
    *
    * @param d directory
    * @return Index build from log files in a directory
@@ -181,38 +185,73 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
   private def parseAndIndexRotatedLogFiles(queue: Queue, d: File, digests: collection.mutable.Set[String], batchCallback: (Iterable[ClientIndexRecord], File, Option[String], Boolean) => Any ): Boolean = {
     assert(d.isDirectory)
 
-    def indexFileIfNeeded(f: File, isLast: Boolean): Boolean = {
-      val md5 = Commons.digestFirstLine(f)
-      if (!digests.contains(md5)) {
-        indexLogFile(queue, f, md5, isLast, false)
-        true
-      } else {
-        false
-      }
-    }
+    /* only lines that are candidates of relevant lines are decoded, see LogScanner */
+    def recognizeLogFile[T](file: File)(f: Iterator[Line] => T): T =
+      LogScanner.scan(file)(lines => f(lines.flatMap(recognizeLine)))
 
-    def indexLogFile(queue: Queue, file: File, digest: String, isLast: Boolean, fromTailing: Boolean) {
-      val source = Commons.getSource(file)
+    def indexLines(lines: Iterator[Line], file: File, digest: String, isLast: Boolean) {
       try {
-        val remaining = source.getLines().foldLeft(new ArrayBuffer[ClientIndexRecord](o.indexBatchSize))( (acc, line) => {
-          recognizeLine(line).fold(acc) {
-            parseLine(_, fromTailing, queue).fold(acc) {
-              record =>
-                if (acc.size < o.indexBatchSize) {
-                  acc :+ record
-                } else {
-                  batchCallback(acc :+ record, file, None, isLast)
-                  new ArrayBuffer(o.indexBatchSize)
-                }
-            }
+        val remaining = lines.foldLeft(new ArrayBuffer[ClientIndexRecord](o.indexBatchSize))( (acc, line) => {
+          parseLine(line, false, queue).fold(acc) {
+            record =>
+              if (acc.size < o.indexBatchSize) {
+                acc :+ record
+              } else {
+                batchCallback(acc :+ record, file, None, isLast)
+                new ArrayBuffer(o.indexBatchSize)
+              }
           }
         })
         batchCallback(remaining, file, Some(digest), isLast)
       } finally {
-        source.close()
         counter ! CountIndexedMidLine(midCount)
         counter ! CountIndexedCidLine(cidCount)
         counter ! CountRemovedLine(removedCount)
+        countBounceCache()
+      }
+    }
+
+    def indexSequentially(files: IndexedSeq[(File, String, Boolean)]) {
+      files.foreach { case (file, digest, isLast) =>
+        recognizeLogFile(file)(indexLines(_, file, digest, isLast))
+      }
+    }
+
+    /* each worker hands recognized lines of its file over in chunks through a bounded queue, it blocks when the queue is full */
+    def indexInParallel(files: IndexedSeq[(File, String, Boolean)], parallelism: Int) {
+      val chunkSize = 4096
+      val chunksPerFile = 4
+      val workers = Executors.newFixedThreadPool(parallelism)
+      val workerContext = ExecutionContext.fromExecutorService(workers)
+      try {
+        val recognized = new Array[BlockingQueue[Try[Vector[Line]]]](files.size)
+        def submit(i: Int) {
+          if (i < files.size) {
+            val chunks = new ArrayBlockingQueue[Try[Vector[Line]]](chunksPerFile)
+            recognized(i) = chunks
+            Future {
+              try {
+                recognizeLogFile(files(i)._1)(_.grouped(chunkSize).foreach(chunk => chunks.put(Success(chunk.toVector))))
+                chunks.put(Success(Vector.empty))
+              } catch {
+                case e: Throwable =>
+                  /* only this worker puts chunks into the queue so that failure is always accepted */
+                  chunks.clear()
+                  chunks.offer(Failure(e))
+              }
+            }(workerContext)
+          }
+        }
+        (0 until parallelism).foreach(submit)
+        files.indices.foreach { i =>
+          val chunks = recognized(i)
+          recognized(i) = null
+          submit(i + parallelism)
+          val (file, digest, isLast) = files(i)
+          indexLines(Iterator.continually(chunks.take().get).takeWhile(_.nonEmpty).flatten, file, digest, isLast)
+        }
+      } finally {
+        workers.shutdownNow()
       }
     }
 
@@ -224,11 +263,15 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
       log.info("There are no backup files to index...")
       false
     } else {
-      val indexedFiles = arbiter.toIndexInit.filter(indexFileIfNeeded(_, false))
-      if (indexFileIfNeeded(arbiter.toIndex.last, true))
-        true
-      else
-        !indexedFiles.isEmpty
+      val lastFile = arbiter.toIndex.last
+      val toIndex = arbiter.toIndex.toIndexedSeq.map( f => (f, Commons.digestFirstLine(f), f == lastFile) ).filterNot( t => digests.contains(t._2) )
+      if (o.backupParsingParallelism > 1 && toIndex.size > 1) {
+        log.info(s"Parsing ${toIndex.size} backup files by ${o.backupParsingParallelism} workers")
+        indexInParallel(toIndex, o.backupParsingParallelism)
+      } else {
+        indexSequentially(toIndex)
+      }
+      !toIndex.isEmpty
     }
   }
 
@@ -287,9 +330,7 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
               //    hasBeenDeferred - for flagging possible 'sent' deliveries that were previously deferred - performance enhancement
               queue.insert(queueId, t.copy(rcpt = recipient, hasBeenDeferred = true))
             }
-            val (state, errorMessage) = profile(100, "categorizing error", info) {
-              ParsingUtils.resolveState(info, status, hasBeenDeferred, prioritizedBounceList)
-            }
+            val (state, errorMessage) = resolveState(info, status, hasBeenDeferred)
             deliveryAttemptCount += 1
             Some(ClientIndexRecord(clientId, IndexRecord(date, queueId, msgId, recipient, "unknown", status, info, state, errorMessage), fromTailing))
 
@@ -303,7 +344,7 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
         queue.lookup(queueId)
         match {
           case Some(QueueRecord(msgId: String, clientId: String, rcpt: String, true)) =>
-            val (state, errorMessage) = ParsingUtils.resolveState(info, status, true, prioritizedBounceList)
+            val (state, errorMessage) = resolveState(info, status, true)
             deliveryAttemptCount += 1
             Some(ClientIndexRecord(clientId, IndexRecord(date, queueId, msgId, rcpt, sender, status, info, state, errorMessage), fromTailing))
 
@@ -331,17 +372,18 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
     }
   }
 
-  private def recognizeLine(line: String): Option[Line] = {
-    def toDate(d: String): Date = { dateFormat.parse(d) }
-    line match {
-      case ParsingUtils.deliveryAttempt(date, queueId, recipient, status, info) => Some(DeliveryAttemptLine(toDate(date).getTime, queueId, recipient, status, info))
-      case ParsingUtils.midRegex(queueId: String, msgId: String) => Some(MessageLine(queueId, msgId))
-      case ParsingUtils.cidRegex(queueId: String, clientId: String) => Some(ClientLine(queueId, clientId))
-      case ParsingUtils.expiredRegex(date, queueId, sender, status, info) => Some(ExpiredLine(toDate(date).getTime, queueId, sender, status, info))
-      case ParsingUtils.removedQueueRegex(queueId: String) => Some(RemovedQueueLine(queueId))
-      case _ => None
-    }
-  }
+  /** lines are recognized concurrently when backup files are parsed in parallel, timestamp parser is thread safe */
+  private val toTime = (d: String) => TimestampParser.default.parse(d)
+
+  /** a line is recognized and its state is resolved in about a microsecond, timing every call would slow them down noticeably */
+  private val recognizing = Metrics.timer("Recognizing line", sampling = 16)
+  private val resolving = Metrics.timer("Resolving state", sampling = 4)
+  private val tailedLines = Metrics.counter("tailed_lines")
+
+  private def recognizeLine(line: String): Option[Line] = recognizing.time(LineTokenizer.recognize(line, toTime))
+
+  private def resolveState(info: String, status: String, hasBeenDeferred: Boolean): (Int, String) =
+    resolving.time(ParsingUtils.resolveState(info, status, hasBeenDeferred, prioritizedBounceList, Some(bounceCache)))
 
   private def refreshBounceList() =
     prioritizedBounceList = new BounceListParser().parse(o.bounceListUrlAndAuth).fold (
@@ -350,7 +392,31 @@ class TailingReader(counter: ActorRef, dbManager: DbManager, val o: Options) ext
         MailClient.info(errorMsg, o)
         prioritizedBounceList
       },
-      newBounceMap => newBounceMap
+      newBounceMap => {
+        bounceCache.invalidate()
+        newBounceMap
+      }
     )
 
+  private def flushBatch() {
+    val (records, delay) = batcher.flush()
+    context.parent ! IndexTailedRecords(records)
+    counter ! CountTailingBatch(batcher.batchSize, delay)
+    countBounceCache()
+  }
+
+  /** checkpoint is marked in queue as it is after parsing lines before it, Indexer receives it after records of those lines */
+  private def checkpoint(tailer: FileTailer) {
+    tailer.checkpoint.filter(c => lastCheckpoint != Some(c)).foreach { c =>
+      queue.mark(c)
+      context.parent ! CheckpointTail(c)
+      lastCheckpoint = Some(c)
+    }
+  }
+
+  private def countBounceCache() {
+    val (hits, misses, evictions) = bounceCache.counts
+    counter ! CountBounceCache(hits, misses, evictions, bounceCache.size)
+  }
+
 }
\ No newline at end of file
@@ -53,7 +53,7 @@ object Commons {
     } else
       Source.fromFile(file)
 
-  def gunzipFileSafely(file: File): InputStream = {
+  def gunzipFileSafely(file: File, bufferSize: Int = 32768): InputStream = {
 
     def throwAndClose(msg: String, e: Throwable, in: InputStream) {
       if (in != null) in.close()
@@ -62,7 +62,7 @@ object Commons {
 
     var in: InputStream = null
     try {
-      in = new GZIPInputStream(new FileInputStream(file), 32768)
+      in = new GZIPInputStream(new FileInputStream(file), bufferSize)
     } catch {
       case fnf: FileNotFoundException =>
         throwAndClose(s"Unable to find file ${file.getAbsolutePath}", fnf, in)
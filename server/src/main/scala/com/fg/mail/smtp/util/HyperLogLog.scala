@@ -0,0 +1,57 @@
+package com.fg.mail.smtp.util
+
+import scala.util.hashing.MurmurHash3
+
+/**
+ * HyperLogLog cardinality estimator. It is used for approximate counting of distinct values (eq. recipient email addresses)
+ * in constant memory - 2^precision registers of one byte, standard error is about 1.04 / sqrt(2^precision)
+ *
+ * @param registers are exposed for the estimator to be persisted
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/14/14 9:12 PM u_jli Exp $
+ */
+class HyperLogLog(val registers: Array[Byte]) {
+  require(Integer.bitCount(registers.length) == 1, "Count of HyperLogLog registers must be a power of two")
+
+  private val precision = Integer.numberOfTrailingZeros(registers.length)
+
+  def offer(value: String) {
+    val hash = HyperLogLog.hash64(value)
+    val index = (hash >>> (64 - precision)).toInt
+    val rest = hash << precision
+    val rank = (if (rest == 0) 64 - precision else java.lang.Long.numberOfLeadingZeros(rest)) + 1
+    if (registers(index) < rank)
+      registers(index) = rank.toByte
+  }
+
+  def cardinality: Long = {
+    val m = registers.length.toDouble
+    var sum = 0D
+    var zeros = 0
+    var i = 0
+    while (i < registers.length) {
+      sum += 1D / (1L << registers(i))
+      if (registers(i) == 0) zeros += 1
+      i += 1
+    }
+    val estimate = (0.7213D / (1D + 1.079D / m)) * m * m / sum
+    if (estimate <= 2.5D * m && zeros > 0)
+      math.round(m * math.log(m / zeros))
+    else
+      math.round(estimate)
+  }
+
+  def copy: HyperLogLog = new HyperLogLog(registers.clone())
+}
+
+object HyperLogLog {
+
+  /** 4096 registers, 4 KB per estimator, standard error 1.6% */
+  val defaultPrecision = 12
+
+  def apply(precision: Int = defaultPrecision): HyperLogLog = new HyperLogLog(new Array[Byte](1 << precision))
+
+  def hash64(value: String): Long =
+    (MurmurHash3.stringHash(value, 0x9747b28c).toLong << 32) | (MurmurHash3.stringHash(value, 0x5bd1e995).toLong & 0xffffffffL)
+}
@@ -0,0 +1,139 @@
+package com.fg.mail.smtp.util
+
+import com.fg.mail.smtp.{Line, DeliveryAttemptLine, ExpiredLine, MessageLine, ClientLine, RemovedQueueLine}
+import java.nio.ByteBuffer
+
+/**
+ * Single pass classifier of smtp log lines. Most of log lines are irrelevant and trying five regular expressions with leading
+ * '.*?' on each of them is expensive. Tokenizer looks for ': ' followed by 15 characters long queue id and ': ' and it dispatches
+ * on the keyword that follows. Regular expressions of ParsingUtils run only on candidate delivery attempt and expired lines,
+ * message-id, client-id and removed lines are extracted directly.
+ *
+ * Lines of backup files are pre-filtered by isCandidate on raw bytes so that irrelevant lines are not even decoded, see LogScanner.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/16/14 6:20 PM u_jli Exp $
+ */
+object LineTokenizer {
+
+  val queueIdLength = 15
+
+  private val to = "to=<"
+  private val from = "from=<"
+  private val messageId = "message-id="
+  private val clientId = "info: header client-id: "
+  private val removed = "removed"
+  private val expired = "status=expired"
+
+  private val keywords = Array(to, messageId, clientId).map(_.getBytes("US-ASCII"))
+  private val fromBytes = from.getBytes("US-ASCII")
+  private val removedBytes = removed.getBytes("US-ASCII")
+  private val expiredBytes = expired.getBytes("US-ASCII")
+
+  /**
+   * @param toDate parses log entry date
+   * @return Line if log line is relevant, None otherwise
+   */
+  def recognize(line: String, toDate: String => Long): Option[Line] = {
+    var result: Option[Line] = None
+    var i = line.indexOf(": ")
+    while (result.isEmpty && i >= 0) {
+      val queueIdStart = i + 2
+      if (isQueueIdAt(line, queueIdStart))
+        result = recognizeKeyword(line, queueIdStart, queueIdStart + queueIdLength + 2, toDate)
+      i = line.indexOf(": ", i + 1)
+    }
+    result
+  }
+
+  /**
+   * The same structure as recognize looks for but on ASCII bytes of a line, bytes are read by absolute gets so buffer's position is not changed.
+   * Line might still be irrelevant if it is a candidate but it is always a candidate if it is relevant
+   *
+   * @param from index of the first byte of line
+   * @param to index after the last byte of line
+   * @return true if line has a queue id followed by a keyword of relevant line
+   */
+  def isCandidate(bytes: ByteBuffer, from: Int, to: Int): Boolean = {
+    var candidate = false
+    var i = from
+    while (!candidate && i + 1 < to) {
+      if (bytes.get(i) == ':' && bytes.get(i + 1) == ' ' && isQueueIdAt(bytes, i + 2, to)) {
+        val keywordStart = i + 2 + queueIdLength + 2
+        candidate =
+          keywords.exists(startsWith(bytes, _, keywordStart, to)) ||
+          (startsWith(bytes, fromBytes, keywordStart, to) && contains(bytes, expiredBytes, keywordStart, to)) ||
+          (to - keywordStart == removedBytes.length && startsWith(bytes, removedBytes, keywordStart, to))
+      }
+      i += 1
+    }
+    candidate
+  }
+
+  private def isQueueIdAt(bytes: ByteBuffer, start: Int, to: Int): Boolean = {
+    val end = start + queueIdLength
+    if (end + 2 > to || bytes.get(end) != ':' || bytes.get(end + 1) != ' ') {
+      false
+    } else {
+      var i = start
+      while (i < end && isAlphanumeric(bytes.get(i).toChar)) i += 1
+      i == end
+    }
+  }
+
+  private def startsWith(bytes: ByteBuffer, prefix: Array[Byte], start: Int, to: Int): Boolean = {
+    if (start + prefix.length > to) {
+      false
+    } else {
+      var i = 0
+      while (i < prefix.length && bytes.get(start + i) == prefix(i)) i += 1
+      i == prefix.length
+    }
+  }
+
+  private def contains(bytes: ByteBuffer, part: Array[Byte], start: Int, to: Int): Boolean = {
+    var i = start
+    while (i + part.length <= to && !startsWith(bytes, part, i, to)) i += 1
+    i + part.length <= to
+  }
+
+  /** queue id consists of 15 alphanumeric characters and it is followed by ': ' */
+  private def isQueueIdAt(line: String, start: Int): Boolean = {
+    val end = start + queueIdLength
+    if (end + 2 > line.length || line.charAt(end) != ':' || line.charAt(end + 1) != ' ') {
+      false
+    } else {
+      var i = start
+      while (i < end && isAlphanumeric(line.charAt(i))) i += 1
+      i == end
+    }
+  }
+
+  private def isAlphanumeric(c: Char) = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+
+  private def recognizeKeyword(line: String, queueIdStart: Int, keywordStart: Int, toDate: String => Long): Option[Line] = {
+    def queueId = line.substring(queueIdStart, queueIdStart + queueIdLength)
+    if (line.startsWith(to, keywordStart)) {
+      line match {
+        case ParsingUtils.deliveryAttempt(date, qId, recipient, status, info) => Some(DeliveryAttemptLine(toDate(date), qId, recipient, status, info))
+        case _ => None
+      }
+    } else if (line.startsWith(from, keywordStart) && line.indexOf(expired, keywordStart) > 0) {
+      line match {
+        case ParsingUtils.expiredRegex(date, qId, sender, status, info) => Some(ExpiredLine(toDate(date), qId, sender, status, info))
+        case _ => None
+      }
+    } else if (line.startsWith(messageId, keywordStart)) {
+      Some(MessageLine(queueId, line.substring(keywordStart + messageId.length)))
+    } else if (line.startsWith(clientId, keywordStart)) {
+      val start = keywordStart + clientId.length
+      val end = line.indexOf(' ', start)
+      if (end < 0) None else Some(ClientLine(queueId, line.substring(start, end)))
+    } else if (line.length == keywordStart + removed.length && line.startsWith(removed, keywordStart)) {
+      Some(RemovedQueueLine(queueId))
+    } else {
+      None
+    }
+  }
+
+}
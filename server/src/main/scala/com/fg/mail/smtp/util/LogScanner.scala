@@ -0,0 +1,160 @@
+package com.fg.mail.smtp.util
+
+import java.io.{InputStream, File}
+import java.nio.{MappedByteBuffer, ByteBuffer}
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.StandardOpenOption
+
+/**
+ * Reads lines of backup log files that are candidates of relevant lines, see LineTokenizer.isCandidate. Line boundaries are found
+ * on raw bytes and irrelevant lines, which are most of them, are skipped without decoding them to Strings.
+ *
+ * Uncompressed files are memory mapped in windows so that they are not copied to heap at all, gzipped files are inflated
+ * to a big heap buffer. Lines are terminated by '\n', a trailing '\r' is stripped.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/26/14 10:40 AM u_jli Exp $
+ */
+object LogScanner {
+
+  /** how many bytes of uncompressed file are mapped at once */
+  val mapWindow = 256 * 1024 * 1024
+
+  /** size of buffers of compressed and inflated bytes of gzipped file */
+  val gzipBuffer = 1024 * 1024
+
+  /**
+   * @param f function that consumes candidate lines of file, lines are not available after it returns
+   * @param window how many bytes of uncompressed file are mapped at once
+   */
+  def scan[T](file: File, window: Int = mapWindow)(f: Iterator[String] => T): T = {
+    val lines = if (file.getName.endsWith(".gz")) new GzipLines(Commons.gunzipFileSafely(file, gzipBuffer)) else new MappedLines(file, window)
+    try {
+      f(lines)
+    } finally {
+      lines.close()
+    }
+  }
+
+  /**
+   * Scans bytes between buffer's position and limit, position is the start of the line that is not scanned yet
+   */
+  private abstract class CandidateLines extends Iterator[String] {
+    private val charset = Charset.defaultCharset()
+    private var nextLine: String = _
+    private var eof = false
+
+    protected def buffer: ByteBuffer
+
+    /**
+     * Makes more bytes available after the unscanned ones
+     *
+     * @return false if there are no more bytes
+     */
+    protected def refill(): Boolean
+
+    def close()
+
+    def hasNext: Boolean = {
+      if (nextLine eq null)
+        nextLine = advance()
+      nextLine ne null
+    }
+
+    def next(): String = {
+      if (!hasNext)
+        throw new NoSuchElementException("There are no more candidate lines")
+      val line = nextLine
+      nextLine = null
+      line
+    }
+
+    private def advance(): String = {
+      var line: String = null
+      while ((line eq null) && (buffer.hasRemaining || !eof)) {
+        val start = buffer.position()
+        val newLine = indexOfNewLine(start, buffer.limit())
+        if (newLine >= 0) {
+          buffer.position(newLine + 1)
+          line = candidate(start, if (newLine > start && buffer.get(newLine - 1) == '\r') newLine - 1 else newLine)
+        } else if (!eof) {
+          eof = !refill()
+        } else {
+          // the last line is not terminated by a new line
+          buffer.position(buffer.limit())
+          line = candidate(start, buffer.limit())
+        }
+      }
+      line
+    }
+
+    private def indexOfNewLine(from: Int, to: Int): Int = {
+      var i = from
+      while (i < to && buffer.get(i) != '\n') i += 1
+      if (i < to) i else -1
+    }
+
+    private def candidate(from: Int, to: Int): String =
+      if (LineTokenizer.isCandidate(buffer, from, to)) {
+        val bytes = new Array[Byte](to - from)
+        val line = buffer.duplicate()
+        line.position(from)
+        line.get(bytes)
+        new String(bytes, charset)
+      } else {
+        null
+      }
+  }
+
+  /** window is remapped from the start of the first unscanned line, it is enlarged if a line doesn't fit in it */
+  private class MappedLines(file: File, window: Int) extends CandidateLines {
+    private val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+    private val size = channel.size()
+    private var windowStart = 0L
+    protected var buffer: ByteBuffer = map(0L, window)
+
+    private def map(start: Long, length: Long): MappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, length))
+
+    protected def refill(): Boolean = {
+      if (windowStart + buffer.limit() >= size) {
+        false
+      } else {
+        val unscanned = buffer.remaining()
+        windowStart += buffer.position()
+        buffer = map(windowStart, Math.min(Int.MaxValue.toLong, Math.max(window.toLong, 2L * unscanned)))
+        true
+      }
+    }
+
+    def close() {
+      channel.close()
+    }
+  }
+
+  /** unscanned bytes are moved to the beginning of buffer before inflating more bytes, buffer is enlarged if a line doesn't fit in it */
+  private class GzipLines(in: InputStream) extends CandidateLines {
+    protected var buffer: ByteBuffer = ByteBuffer.allocate(gzipBuffer)
+    buffer.limit(0)
+
+    protected def refill(): Boolean = {
+      buffer.compact()
+      if (!buffer.hasRemaining) {
+        val enlarged = ByteBuffer.allocate(buffer.capacity * 2)
+        buffer.flip()
+        enlarged.put(buffer)
+        buffer = enlarged
+      }
+      val read = in.read(buffer.array(), buffer.position(), buffer.remaining())
+      if (read > 0)
+        buffer.position(buffer.position() + read)
+      buffer.flip()
+      read >= 0
+    }
+
+    def close() {
+      in.close()
+    }
+  }
+
+}
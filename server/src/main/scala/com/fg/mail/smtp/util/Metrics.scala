@@ -0,0 +1,243 @@
+package com.fg.mail.smtp.util
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+import scala.collection.JavaConverters._
+
+/**
+ * Registry of metrics that are always on, latencies of processing stages are recorded by timers to histograms and events are counted by counters.
+ * Recording is thread safe and lock free, it costs a couple of atomic increments that are mostly not contended.
+ *
+ * Stages that are executed for each log line would be slowed down even by measuring time, their timers therefore measure only every n-th call
+ * and count and sum are extrapolated. Metrics are exported in Prometheus text format at agent-metrics, latencies as summaries in seconds.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/27/14 10:15 AM u_jli Exp $
+ */
+object Metrics {
+
+  /** quantiles of latencies that are exported */
+  val quantiles = Seq(0.5, 0.9, 0.99, 0.999)
+
+  private val timers = new ConcurrentHashMap[String, Timer]()
+  private val counters = new ConcurrentHashMap[String, Counter]()
+
+  /**
+   * @param name of processing stage, it is a label value so it might be any text
+   * @param sampling every n-th call is measured, it applies only to the timer being created
+   */
+  def timer(name: String, sampling: Int = 1): Timer = {
+    val timer = timers.get(name)
+    if (timer ne null) timer else {
+      val created = new Timer(sampling)
+      Option(timers.putIfAbsent(name, created)).getOrElse(created)
+    }
+  }
+
+  /**
+   * @param name of counter, it is a part of metric name so it must consist of [a-z_] only
+   */
+  def counter(name: String): Counter = {
+    val counter = counters.get(name)
+    if (counter ne null) counter else {
+      val created = new Counter
+      Option(counters.putIfAbsent(name, created)).getOrElse(created)
+    }
+  }
+
+  def getTimers: Seq[(String, Timer)] = timers.asScala.toSeq.sortBy(_._1)
+
+  def getCounters: Seq[(String, Counter)] = counters.asScala.toSeq.sortBy(_._1)
+
+  /**
+   * @return metrics in Prometheus text exposition format version 0.0.4
+   */
+  def prometheus: String = {
+    val sb = new StringBuilder
+    val stages = "agent_stage_seconds"
+    sb.append("# HELP ").append(stages).append(" Latency of processing stages\n")
+    sb.append("# TYPE ").append(stages).append(" summary\n")
+    getTimers.foreach { case (name, timer) =>
+      val stage = "stage=\"" + escape(name) + "\""
+      val snapshot = timer.snapshot
+      quantiles.foreach { q =>
+        sb.append(stages).append('{').append(stage).append(",quantile=\"").append(q).append("\"} ").append(seconds(snapshot.percentile(q))).append('\n')
+      }
+      sb.append(stages).append("_sum{").append(stage).append("} ").append(seconds(snapshot.sum)).append('\n')
+      sb.append(stages).append("_count{").append(stage).append("} ").append(snapshot.count).append('\n')
+    }
+    getCounters.foreach { case (name, counter) =>
+      val total = "agent_" + name + "_total"
+      sb.append("# TYPE ").append(total).append(" counter\n")
+      sb.append(total).append(' ').append(counter.sum).append('\n')
+    }
+    sb.toString()
+  }
+
+  /**
+   * @return a line per stage with count of calls, percentiles and total time, for logging
+   */
+  def summary: String =
+    getTimers.foldLeft("\n") { case (acc, (name, timer)) =>
+      val s = timer.snapshot
+      acc + f" --- overall --- $name : ${s.count} calls, p50 ${s.percentile(0.5) / 1000} us, p99 ${s.percentile(0.99) / 1000} us, max ${s.max / 1000} us, total ${seconds(s.sum)}%.3f seconds\n"
+    }
+
+  private def seconds(nanos: Long): Double = nanos / 1000000000D
+
+  private def escape(labelValue: String) = labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+}
+
+/**
+ * Measures latency of a stage in nanoseconds. Calls are sampled by a tick that is not synchronized on purpose,
+ * a lost tick just shifts the sample
+ *
+ * @param sampling every n-th call is measured
+ */
+final class Timer(val sampling: Int) {
+  require(sampling > 0, "Sampling must be positive")
+
+  private val histogram = new Histogram
+  private var tick = 0
+
+  def time[R](block: => R): R = {
+    tick += 1
+    if (tick % sampling != 0) {
+      block
+    } else {
+      val start = System.nanoTime()
+      val result = block
+      histogram.record(System.nanoTime() - start)
+      result
+    }
+  }
+
+  /** records latency of a call that was measured by caller regardless of sampling */
+  def record(nanos: Long) {
+    histogram.record(nanos)
+  }
+
+  /** count and sum are extrapolated by sampling */
+  def snapshot: Snapshot = histogram.snapshot(sampling)
+}
+
+/**
+ * Histogram of non-negative values with buckets of log-linear width like HdrHistogram has. Values lower than 32 have a bucket each,
+ * each power of two range of higher values is split to 32 buckets so that relative error of percentiles is at most 1/32 (~3%).
+ * There are fewer than 2000 buckets for the whole range of long.
+ */
+final class Histogram {
+  import Histogram._
+
+  private val counts = new AtomicLongArray(bucketCount)
+  private val total = new Counter
+
+  def record(value: Long) {
+    val v = Math.max(0L, value)
+    counts.incrementAndGet(indexOf(v))
+    total.add(v)
+  }
+
+  /**
+   * Buckets are read one by one while recording goes on, so that snapshot is not exactly consistent
+   *
+   * @param scale every count and sum is multiplied by
+   */
+  def snapshot(scale: Int = 1): Snapshot = {
+    val copy = new Array[Long](bucketCount)
+    var i = 0
+    while (i < bucketCount) {
+      copy(i) = counts.get(i) * scale
+      i += 1
+    }
+    new Snapshot(copy, total.sum * scale)
+  }
+}
+
+object Histogram {
+  private val subBits = 5
+  private val subCount = 1 << subBits
+
+  val bucketCount = (64 - subBits) * subCount
+
+  def indexOf(value: Long): Int =
+    if (value < subCount) {
+      value.toInt
+    } else {
+      val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      (magnitude - subBits + 1) * subCount + ((value >>> (magnitude - subBits)).toInt & (subCount - 1))
+    }
+
+  /** @return the highest value that falls in bucket of index */
+  def highestValueOf(index: Int): Long =
+    if (index < subCount) {
+      index
+    } else {
+      val shift = index / subCount - 1
+      ((subCount + index % subCount).toLong << shift) + (1L << shift) - 1
+    }
+}
+
+/**
+ * Counts of histogram buckets at a point in time
+ */
+final class Snapshot(counts: Array[Long], val sum: Long) {
+  val count: Long = counts.sum
+
+  /** @return the highest value of bucket that the q-quantile falls in, 0 if there are no values */
+  def percentile(q: Double): Long =
+    if (count == 0) {
+      0
+    } else {
+      val rank = Math.max(1L, Math.ceil(q * count).toLong)
+      var i = 0
+      var seen = counts(0)
+      while (seen < rank) {
+        i += 1
+        seen += counts(i)
+      }
+      Histogram.highestValueOf(i)
+    }
+
+  def max: Long = {
+    val last = counts.lastIndexWhere(_ > 0)
+    if (last < 0) 0 else Histogram.highestValueOf(last)
+  }
+}
+
+/**
+ * Counter striped over cells so that threads do not contend for the same cache line, cell is chosen by thread id
+ * because threads of a pool have consecutive ids. Sum is not an atomic snapshot while counting goes on.
+ */
+final class Counter {
+  import Counter._
+
+  private val cells = new AtomicLongArray(stripes * padding)
+
+  def add(n: Long) {
+    cells.addAndGet((Thread.currentThread().getId.toInt & (stripes - 1)) * padding, n)
+  }
+
+  def increment() {
+    add(1)
+  }
+
+  def sum: Long = {
+    var result = 0L
+    var i = 0
+    while (i < stripes) {
+      result += cells.get(i * padding)
+      i += 1
+    }
+    result
+  }
+}
+
+object Counter {
+
+  /** power of two that is at least twice the number of processors */
+  private val stripes = Integer.highestOneBit(Runtime.getRuntime.availableProcessors * 2 - 1) << 1
+
+  /** longs per cell, 64 bytes is the size of cache line */
+  private val padding = 8
+}
@@ -1,12 +1,12 @@
 package com.fg.mail.smtp.util
 
-import scala.util.matching.Regex
 import java.io.File
 import java.math.BigDecimal
 import scala.collection.immutable.TreeSet
 import org.slf4j.LoggerFactory
 import scala.Some
 import com.fg.mail.smtp.Options
+import com.fg.mail.smtp.parser.{BounceCache, BounceClassifier}
 
 /**
  *
@@ -33,9 +33,10 @@ object ParsingUtils {
    * Decide on type of bounce, soft bounce means that message was deferred and it is to be tried again later on. Hard bounce
    * means that the reason of not delivering a message was too serious to try to deliver message again, it is removed from queue right away
    *
+   * @param cache of classifications of identical bounce messages
    * @return tuple (hard-1/soft-0, bounce reason message)
    */
-  def resolveState(info: String, status: String, hasBeenDeferred: Boolean, prioritizedBounceList: scala.collection.mutable.TreeSet[(String, Long, Long, String, Regex)]): (Int, String) = {
+  def resolveState(info: String, status: String, hasBeenDeferred: Boolean, bounceClassifier: BounceClassifier, cache: Option[BounceCache] = None): (Int, String) = {
 
     def stripPrefix(target: String): String = {
       if (target.startsWith("host ")) {
@@ -56,17 +57,13 @@ object ParsingUtils {
       case "sent" => (3, "OK")
       case "expired" => (0, "expired, returned to sender")
       case _ =>
-        prioritizedBounceList.find {
-          case (bounceType, prioritizedOrder, defaultOrder, bounceCategory, regex) =>
-            regex.pattern.matcher(stripPrefix(info.toLowerCase)).find()
-        } match {
-          case Some(t) =>
-            prioritizedBounceList.remove(t)
-            prioritizedBounceList.add(t.copy(_2 = t._2 + 1L))
-            if (t._1 == "soft")
-              (0, t._4)
+        val message = stripPrefix(info.toLowerCase)
+        cache.fold(bounceClassifier.classify(message))(bounceClassifier.classify(message, _)) match {
+          case Some(c) =>
+            if (c.bounceType == "soft")
+              (0, c.category)
             else
-              (1, t._4)
+              (1, c.category)
           case None =>
             (2, "unable to decide on type of bounce")
         }
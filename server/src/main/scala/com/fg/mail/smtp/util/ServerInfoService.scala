@@ -141,13 +141,19 @@ class ServerInfoService(val o: Options) extends Profilable {
     )
   }
 
+  /** how many records are serialized for estimating index size */
+  val footprintSampleSize = 60000
+
   def getIndexFootprint(dbManager: DbManager, index: Index): IndexFootprint =
     profile(1000, "Measuring index footprint") {
       catching(classOf[Throwable])
-        .either(new IndexFootprint(0, 0, 0, 0)) match { //TODO
+        .either {
+          val (compact, legacy) = index.estimateSerializedSize(footprintSampleSize)
+          new IndexFootprint(compact, legacy, index.size, 0, 0) //TODO queue
+        } match {
           case Left(ex) =>
             log.warn("Unable to measure index size", ex)
-            new IndexFootprint(0, 0, 0, 0)
+            new IndexFootprint(0, 0, 0, 0, 0)
           case Right(v) => v
         }
     }
@@ -229,8 +235,14 @@ class Environment(val underlying: ListMap[String, String]) {
 
 }
 
+/**
+ * @param index estimated size of records in current format
+ * @param legacyIndex estimated size of records in the former format (writeUTF of all fields) for comparison
+ * @param indexSize count of records
+ */
 case class IndexFootprint(
                            @JsonSerialize(using = classOf[NumericSerializer]) index: Long,
+                           @JsonSerialize(using = classOf[NumericSerializer]) legacyIndex: Long,
                            indexSize: Long,
                            @JsonSerialize(using = classOf[NumericSerializer]) queue: Long,
                            queueSize: Long)
@@ -0,0 +1,122 @@
+package com.fg.mail.smtp.util
+
+import java.util.{GregorianCalendar, Calendar, Locale, TimeZone}
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.text.SimpleDateFormat
+
+/**
+ * Parser of smtp log entry timestamps of fixed layout 'yyyy MMM dd HH:mm:ss.SSS' (day might have a single digit) to epoch millis.
+ * It reads characters directly and adds time of day to a cached local midnight, no Date, Calendar or String is created.
+ *
+ * Days of daylight saving time transition (and anything unusual, eq. full month name) are delegated to SimpleDateFormat
+ * so that results are always the same as SimpleDateFormat's. Parser is thread safe.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/17/14 10:02 AM u_jli Exp $
+ */
+class TimestampParser(timeZone: TimeZone) {
+
+  val pattern = "yyyy MMM dd HH:mm:ss.SSS"
+
+  private val months = Array("jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec")
+
+  /** direct mapped cache of days, entries are immutable so that they can be replaced concurrently */
+  private val days = new AtomicReferenceArray[Day](256)
+
+  private val fallback = new ThreadLocal[SimpleDateFormat] {
+    override def initialValue() = {
+      val format = new SimpleDateFormat(pattern, Locale.US)
+      format.setTimeZone(timeZone)
+      format
+    }
+  }
+
+  /**
+   * @throws java.text.ParseException if timestamp cannot be parsed by SimpleDateFormat either
+   */
+  def parse(s: CharSequence): Long = {
+    val dayEnd = if (s.length > 10 && s.charAt(10) == ' ') 10 else 11
+    if (s.length != dayEnd + 13 || s.charAt(4) != ' ' || s.charAt(8) != ' ' || s.charAt(dayEnd + 3) != ':' || s.charAt(dayEnd + 6) != ':' || s.charAt(dayEnd + 9) != '.') {
+      parseByFallback(s)
+    } else {
+      val year = number(s, 0, 4)
+      val month = monthOf(s)
+      val day = number(s, 9, dayEnd)
+      val hour = number(s, dayEnd + 1, dayEnd + 3)
+      val minute = number(s, dayEnd + 4, dayEnd + 6)
+      val second = number(s, dayEnd + 7, dayEnd + 9)
+      val milli = number(s, dayEnd + 10, dayEnd + 13)
+      if (year < 0 || month < 0 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || milli < 0) {
+        parseByFallback(s)
+      } else {
+        val d = dayOf(year, month, day)
+        if (d.withTransition)
+          parseByFallback(s)
+        else
+          d.midnight + hour * 3600000L + minute * 60000L + second * 1000L + milli
+      }
+    }
+  }
+
+  private def parseByFallback(s: CharSequence): Long = fallback.get.parse(s.toString).getTime
+
+  /** @return -1 if there is a non digit character */
+  private def number(s: CharSequence, from: Int, to: Int): Int = {
+    var result = 0
+    var i = from
+    while (i < to) {
+      val c = s.charAt(i)
+      if (c < '0' || c > '9') return -1
+      result = result * 10 + (c - '0')
+      i += 1
+    }
+    result
+  }
+
+  /** @return zero based month index or -1 */
+  private def monthOf(s: CharSequence): Int = {
+    var i = 0
+    while (i < months.length) {
+      val m = months(i)
+      if (Character.toLowerCase(s.charAt(5)) == m.charAt(0) && Character.toLowerCase(s.charAt(6)) == m.charAt(1) && Character.toLowerCase(s.charAt(7)) == m.charAt(2))
+        return i
+      i += 1
+    }
+    -1
+  }
+
+  private def dayOf(year: Int, month: Int, day: Int): Day = {
+    val key = (year * 12 + month) * 32 + day
+    val slot = key & (days.length - 1)
+    val cached = days.get(slot)
+    if ((cached ne null) && cached.key == key) {
+      cached
+    } else {
+      val computed = computeDay(key, year, month, day)
+      days.set(slot, computed)
+      computed
+    }
+  }
+
+  /** a day is of transition if it doesn't have 24 hours or offset changes during it */
+  private def computeDay(key: Int, year: Int, month: Int, day: Int): Day = {
+    val calendar = new GregorianCalendar(timeZone, Locale.US)
+    calendar.clear()
+    calendar.set(year, month, day)
+    val midnight = calendar.getTimeInMillis
+    calendar.add(Calendar.DAY_OF_MONTH, 1)
+    val nextMidnight = calendar.getTimeInMillis
+    val withTransition = nextMidnight - midnight != 86400000L || timeZone.getOffset(midnight) != timeZone.getOffset(nextMidnight - 1)
+    Day(key, midnight, withTransition)
+  }
+
+  private case class Day(key: Int, midnight: Long, withTransition: Boolean)
+
+}
+
+object TimestampParser {
+
+  /** parser of default time zone which is the one SimpleDateFormat uses */
+  lazy val default = new TimestampParser(TimeZone.getDefault)
+
+}
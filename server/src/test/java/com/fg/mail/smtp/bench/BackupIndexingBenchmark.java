@@ -0,0 +1,148 @@
+package com.fg.mail.smtp.bench;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import com.fg.mail.smtp.GetIndexer$;
+import com.fg.mail.smtp.IndexAge;
+import com.fg.mail.smtp.Options;
+import com.fg.mail.smtp.ReqCtx;
+import com.fg.mail.smtp.Settings;
+import com.fg.mail.smtp.Supervisor;
+import com.fg.mail.smtp.index.DbManager;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.collection.immutable.Map$;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wall-clock time of indexing backup log files on startup sequentially and by a worker per processor (s/op), from start of Supervisor
+ * until indexer answers a query which it stashes until backup logs are indexed. Synthetic log set is generated for each parameter combination.
+ * Run it by main method from test classpath.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/15/14 7:40 PM u_jli Exp $
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BackupIndexingBenchmark {
+
+    private static final int fileCount = 8;
+    private static final FiniteDuration timeout = Duration.create(2, TimeUnit.HOURS);
+
+    /** size of uncompressed logs */
+    @Param({"1024"})
+    private int sizeInMb;
+
+    /** 1 means sequentially, 0 means a worker per processor */
+    @Param({"1", "0"})
+    private int parallelism;
+
+    private final File workDir = new File(System.getProperty("java.io.tmpdir"), "backup-indexing-benchmark");
+    private final File logDir = new File(workDir, "logs");
+    private final File dbDir = new File(workDir, "db");
+
+    private Options options;
+    private ActorSystem system;
+
+    @Setup(Level.Trial)
+    public void generateLogs() throws Exception {
+        delete(workDir);
+        logDir.mkdirs();
+        new File(logDir, "mail.log").createNewFile();
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("app.http-server.start", false);
+        overrides.put("app.timing.request-timeout", (int) timeout.toSeconds());
+        overrides.put("app.logs.max-file-size-to-index", sizeInMb * 10D);
+        overrides.put("app.logs.dir", logDir.getAbsolutePath() + "/");
+        overrides.put("app.logs.tailed-log-file", "mail.log");
+        overrides.put("app.logs.rotated-file", "mail.log.1");
+        overrides.put("app.logs.rotated-file-pattern", "mail\\.log\\.(\\d{1,3}).*");
+        overrides.put("app.logs.backup-parsing-parallelism", parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        overrides.put("app.db.dir", dbDir.getAbsolutePath() + "/");
+        overrides.put("app.db.name", "benchmark");
+        options = Settings.buildOptions(ConfigFactory.parseMap(overrides).withFallback(ConfigFactory.parseResources("application.conf")).resolve());
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy MMM dd HH:mm:ss.SSS", Locale.US);
+        String clientIdHashCode = String.valueOf("cid".hashCode());
+        long messagesPerFile = sizeInMb * 1024L * 1024L / 600 / fileCount;
+        long date = dateFormat.parse("2013 Jun 10 06:50:26.123").getTime();
+        /* each message produces 5 lines of roughly 600 bytes, messages are spread over files in rotation order (mail.log.8.gz is the oldest) */
+        for (int n = fileCount; n >= 1; n--) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(new File(logDir, "mail.log." + n + ".gz")))), "UTF-8"));
+            try {
+                for (long m = 0; m < messagesPerFile; m++) {
+                    String queueId = String.format("Q%02d%012d", n, m);
+                    String d = dateFormat.format(new Date(date));
+                    String status = m % 10 == 0 ? "bounced (host gmail-smtp-in.l.google.com said: 550 5.1.1 The email account that you tried to reach does not exist)" : "sent (250 2.0.0 Ok: queued as 5058FBC3A)";
+                    out.println(d + " gds39d postfix/smtpd[7052]: " + queueId + ": client=gds39k.active24.cz[81.95.110.19]");
+                    out.println(d + " gds39d postfix/cleanup[26547]: " + queueId + ": message-id=<" + clientIdHashCode + "." + n + "." + m + "@client-" + m % 50 + ">");
+                    out.println(d + " gds39d postfix/qmgr[6273]: " + queueId + ": from=<no-reply@directmail.fg.cz>, size=793, nrcpt=1 (queue active)");
+                    out.println(d + " gds39d postfix/smtp[20945]: " + queueId + ": to=<rcpt-" + m % 100000 + "@example.com>, relay=hermes.fg.cz[193.86.74.5]:25, delay=0.16, delays=0.01/0/0.05/0.1, dsn=2.0.0, status=" + status);
+                    out.println(d + " gds39d postfix/qmgr[6273]: " + queueId + ": removed");
+                    date += 100;
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLogs() {
+        delete(workDir);
+    }
+
+    @Setup(Level.Iteration)
+    public void deleteDb() {
+        delete(dbDir);
+        system = ActorSystem.create("benchmark");
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutdown() {
+        system.shutdown();
+        system.awaitTermination(Duration.create(1, TimeUnit.MINUTES));
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    @Benchmark
+    public Object indexBackup() throws Exception {
+        ActorRef supervisor = system.actorOf(Props.create(Supervisor.class, options, new DbManager(options)), "supervisor");
+        ActorRef indexer = (ActorRef) Await.result(Patterns.ask(supervisor, GetIndexer$.MODULE$, new Timeout(timeout)), timeout);
+        return Await.result(Patterns.ask(indexer, new IndexAge(new ReqCtx(Map$.MODULE$.<String, String>empty())), new Timeout(timeout)), timeout);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BackupIndexingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
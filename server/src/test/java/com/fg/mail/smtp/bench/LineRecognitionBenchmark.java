@@ -0,0 +1,110 @@
+package com.fg.mail.smtp.bench;
+
+import com.fg.mail.smtp.*;
+import com.fg.mail.smtp.util.LineTokenizer;
+import com.fg.mail.smtp.util.ParsingUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.Function1;
+import scala.runtime.AbstractFunction1;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Throughput of smtp log line recognition (lines/sec) - single pass tokenizer against the former chain of five regular expressions.
+ * Lines are taken from a real-looking postfix log, most of them are irrelevant. Run it by main method from test classpath.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/16/14 7:05 PM u_jli Exp $
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineRecognitionBenchmark {
+
+    private static final Pattern deliveryAttempt = ParsingUtils.deliveryAttempt().pattern();
+    private static final Pattern midRegex = ParsingUtils.midRegex().pattern();
+    private static final Pattern cidRegex = ParsingUtils.cidRegex().pattern();
+    private static final Pattern expiredRegex = ParsingUtils.expiredRegex().pattern();
+    private static final Pattern removedQueueRegex = ParsingUtils.removedQueueRegex().pattern();
+
+    /** date parsing is not part of recognition */
+    private static final Function1<String, Object> toDate = new AbstractFunction1<String, Object>() {
+        public Object apply(String date) {
+            return 0L;
+        }
+    };
+
+    private String[] lines;
+    private int position;
+
+    @Setup
+    public void loadLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(getClass().getClassLoader().getResourceAsStream("META-INF/logs/real/mail.log.2.gz")), "UTF-8"));
+        try {
+            List<String> result = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                result.add(line);
+            }
+            lines = result.toArray(new String[result.size()]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String nextLine() {
+        if (position == lines.length) {
+            position = 0;
+        }
+        return lines[position++];
+    }
+
+    @Benchmark
+    public Object tokenizer() {
+        return LineTokenizer.recognize(nextLine(), toDate);
+    }
+
+    @Benchmark
+    public Object regex() {
+        String line = nextLine();
+        Matcher m = deliveryAttempt.matcher(line);
+        if (m.matches()) {
+            return new DeliveryAttemptLine(0L, m.group(2), m.group(3), m.group(4), m.group(5));
+        }
+        m = midRegex.matcher(line);
+        if (m.matches()) {
+            return new MessageLine(m.group(1), m.group(2));
+        }
+        m = cidRegex.matcher(line);
+        if (m.matches()) {
+            return new ClientLine(m.group(1), m.group(2));
+        }
+        m = expiredRegex.matcher(line);
+        if (m.matches()) {
+            return new ExpiredLine(0L, m.group(2), m.group(3), m.group(4), m.group(5));
+        }
+        m = removedQueueRegex.matcher(line);
+        if (m.matches()) {
+            return new RemovedQueueLine(m.group(1));
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LineRecognitionBenchmark.class.getSimpleName()).build()).run();
+    }
+}
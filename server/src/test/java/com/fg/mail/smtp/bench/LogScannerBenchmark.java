@@ -0,0 +1,137 @@
+package com.fg.mail.smtp.bench;
+
+import com.fg.mail.smtp.util.Commons;
+import com.fg.mail.smtp.util.LineTokenizer;
+import com.fg.mail.smtp.util.LogScanner;
+import com.fg.mail.smtp.util.TimestampParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.Function1;
+import scala.collection.Iterator;
+import scala.io.Source;
+import scala.runtime.AbstractFunction1;
+
+import java.io.*;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Time of recognizing all lines of a backup log file read by scala.io.Source and by LogScanner (s/op), both uncompressed and gzipped.
+ * Throughput in MB/s is size of uncompressed log that is printed during setup divided by the time. Run it by main method from test classpath.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/26/14 11:50 AM u_jli Exp $
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LogScannerBenchmark {
+
+    private static final TimestampParser timestampParser = new TimestampParser(TimeZone.getDefault());
+
+    private static final Function1<String, Object> toDate = new AbstractFunction1<String, Object>() {
+        public Object apply(String date) {
+            return timestampParser.parse(date);
+        }
+    };
+
+    /** size of uncompressed log */
+    @Param({"512"})
+    private int sizeInMb;
+
+    @Param({"plain", "gzipped"})
+    private String format;
+
+    private File file;
+
+    /** a message has 3 relevant and 5 irrelevant lines of roughly 900 bytes in total */
+    @Setup(Level.Trial)
+    public void generateLog() throws IOException {
+        boolean gzipped = format.equals("gzipped");
+        file = File.createTempFile("mail.log", gzipped ? ".2.gz" : ".1");
+        CountingOutputStream counter = new CountingOutputStream(gzipped ? new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024), 1024 * 1024) : new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(counter, "UTF-8"));
+        try {
+            String d = "2013 Jun 10 06:50:26.123";
+            for (long m = 0; m < sizeInMb * 1024L * 1024L / 900; m++) {
+                String queueId = String.format("Q%014d", m);
+                out.println(d + " gds39d postfix/smtpd[7052]: connect from gds39k.active24.cz[81.95.110.19]");
+                out.println(d + " gds39d postfix/smtpd[7052]: " + queueId + ": client=gds39k.active24.cz[81.95.110.19]");
+                out.println(d + " gds39d postfix/cleanup[26547]: " + queueId + ": message-id=<" + m + "@client-" + m % 50 + ">");
+                out.println(d + " gds39d postfix/qmgr[6273]: " + queueId + ": from=<no-reply@directmail.fg.cz>, size=793, nrcpt=1 (queue active)");
+                out.println(d + " gds39d postfix/smtp[20945]: " + queueId + ": to=<rcpt-" + m % 100000 + "@example.com>, relay=hermes.fg.cz[193.86.74.5]:25, delay=0.16, delays=0.01/0/0.05/0.1, dsn=2.0.0, status=sent (250 2.0.0 Ok: queued as 5058FBC3A)");
+                out.println(d + " gds39d postfix/qmgr[6273]: " + queueId + ": removed");
+                out.println(d + " gds39d postfix/smtpd[7052]: disconnect from gds39k.active24.cz[81.95.110.19]");
+                out.println(d + " gds39d postfix/anvil[7053]: statistics: max connection rate 1/60s for (smtp:81.95.110.19) at Jun 10 06:50:26");
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("\nUncompressed size of " + format + " log : " + counter.count / 1024 / 1024 + " MB");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() {
+        file.delete();
+    }
+
+    private static int countRecognized(Iterator<String> lines) {
+        int recognized = 0;
+        while (lines.hasNext()) {
+            if (LineTokenizer.recognize(lines.next(), toDate).isDefined()) {
+                recognized++;
+            }
+        }
+        return recognized;
+    }
+
+    @Benchmark
+    public int bySource() {
+        Source source = Commons.getSource(file);
+        try {
+            return countRecognized(source.getLines());
+        } finally {
+            source.close();
+        }
+    }
+
+    @Benchmark
+    public int byScanner() {
+        return LogScanner.scan(file, LogScanner.mapWindow(), new AbstractFunction1<Iterator<String>, Integer>() {
+            public Integer apply(Iterator<String> lines) {
+                return countRecognized(lines);
+            }
+        });
+    }
+
+    /** uncompressed size is counted while the log is being generated */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LogScannerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,114 @@
+package com.fg.mail.smtp.bench;
+
+import com.fg.mail.smtp.util.Counter;
+import com.fg.mail.smtp.util.LineTokenizer;
+import com.fg.mail.smtp.util.Metrics;
+import com.fg.mail.smtp.util.Timer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.Function1;
+import scala.runtime.AbstractFunction0;
+import scala.runtime.AbstractFunction1;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Overhead of metrics on the hottest stage which is recognition of a log line (lines/sec) - bare tokenizer against tokenizer timed
+ * by a sampled timer as TailingReader does it and by a timer that measures every call. Sampled one should be within 1% of the bare one.
+ * Threads contending for a counter and a histogram show the cost of recording. Run it by main method from test classpath.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/27/14 2:20 PM u_jli Exp $
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+    /** date parsing is not part of recognition */
+    private static final Function1<String, Object> toDate = new AbstractFunction1<String, Object>() {
+        public Object apply(String date) {
+            return 0L;
+        }
+    };
+
+    private static final Timer sampledTimer = Metrics.timer("Benchmark sampled", 16);
+    private static final Timer everyCallTimer = Metrics.timer("Benchmark every call", 1);
+    private static final Counter counter = Metrics.counter("benchmark");
+
+    private String[] lines;
+    private int position;
+
+    @Setup
+    public void loadLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(getClass().getClassLoader().getResourceAsStream("META-INF/logs/real/mail.log.2.gz")), "UTF-8"));
+        try {
+            List<String> result = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                result.add(line);
+            }
+            lines = result.toArray(new String[result.size()]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String nextLine() {
+        if (position == lines.length) {
+            position = 0;
+        }
+        return lines[position++];
+    }
+
+    private Object timed(Timer timer) {
+        final String line = nextLine();
+        return timer.time(new AbstractFunction0<Object>() {
+            public Object apply() {
+                return LineTokenizer.recognize(line, toDate);
+            }
+        });
+    }
+
+    @Benchmark
+    public Object bare() {
+        return LineTokenizer.recognize(nextLine(), toDate);
+    }
+
+    @Benchmark
+    public Object sampled() {
+        return timed(sampledTimer);
+    }
+
+    @Benchmark
+    public Object everyCall() {
+        return timed(everyCallTimer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedCounter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedRecording() {
+        everyCallTimer.record(position++ & 0xFFFFF);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MetricsOverheadBenchmark.class.getSimpleName()).build()).run();
+    }
+}
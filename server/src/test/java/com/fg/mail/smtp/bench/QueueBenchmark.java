@@ -0,0 +1,125 @@
+package com.fg.mail.smtp.bench;
+
+import com.fg.mail.smtp.index.Checkpoint;
+import com.fg.mail.smtp.index.PackedQueue;
+import com.fg.mail.smtp.index.Queue;
+import com.fg.mail.smtp.index.Queue$;
+import com.fg.mail.smtp.index.QueueRecord;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time it takes PackedQueue and the former queue that is a HashMap in MapDb file db to process a stream of messages (ms/op).
+ * Each message is inserted, looked up and updated as it is by message, client, deferred and removed log lines, both queues are committed
+ * every batch as they are by Indexer. Run it by main method from test classpath.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/24/14 6:10 PM u_jli Exp $
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final int inFlight = 50000;
+    private static final int batchSize = 10000;
+
+    @Param({"1000000"})
+    private int messages;
+
+    @Param({"mapDb", "packed"})
+    private String queueType;
+
+    private File dir;
+    private DB db;
+    private PackedQueue packedQueue;
+    private Queue queue;
+
+    @Setup(Level.Iteration)
+    public void openQueue() throws IOException {
+        dir = Files.createTempDirectory("queue-benchmark").toFile();
+        if (queueType.equals("mapDb")) {
+            db = DBMaker.newFileDB(new File(dir, "queue")).commitFileSyncDisable().make();
+            queue = Queue$.MODULE$.apply(db);
+        } else {
+            packedQueue = PackedQueue.apply(new File(dir, "packed-queue"), Option.<Checkpoint>empty());
+            queue = packedQueue;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeQueue() {
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+        if (packedQueue != null) {
+            packedQueue.close();
+            packedQueue = null;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String queueId(int m) {
+        return String.format("4Lx3zK%09d", m);
+    }
+
+    private void commit() {
+        if (db != null) {
+            db.commit();
+        } else {
+            packedQueue.commit();
+        }
+    }
+
+    @Benchmark
+    public Queue processMessages() {
+        for (int m = 0; m < messages; m++) {
+            String qid = queueId(m);
+            queue.insert(qid, new QueueRecord("<" + m + "@example.com>", null, null, false));
+            Option<QueueRecord> message = queue.lookup(qid);
+            if (message.isDefined()) {
+                QueueRecord qr = message.get();
+                queue.insert(qid, new QueueRecord(qr.msgId(), "client-" + m % 50, qr.rcpt(), qr.hasBeenDeferred()));
+            }
+            Option<QueueRecord> client = queue.lookup(qid);
+            if (client.isDefined()) {
+                QueueRecord qr = client.get();
+                queue.insert(qid, new QueueRecord(qr.msgId(), qr.cid(), "rcpt" + m + "@example.com", true));
+            }
+            if (m >= inFlight) {
+                String removed = queueId(m - inFlight);
+                queue.lookup(removed);
+                queue.invalidate(removed);
+            }
+            if (m % batchSize == 0) {
+                commit();
+            }
+        }
+        commit();
+        return queue;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(QueueBenchmark.class.getSimpleName()).build()).run();
+    }
+}
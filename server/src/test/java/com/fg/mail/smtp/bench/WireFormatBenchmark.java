@@ -0,0 +1,98 @@
+package com.fg.mail.smtp.bench;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fg.mail.smtp.client.model.AgentResponse;
+import com.fg.mail.smtp.client.model.ResponseStatus;
+import com.fg.mail.smtp.client.model.SmtpLogEntry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding time of a response with 1M log entries in JSON and in Smile format (ms/op), bytes on wire are printed during setup.
+ * Run it by main method from test classpath.
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/20/14 4:40 PM u_jli Exp $
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class WireFormatBenchmark {
+
+    private static final TypeReference<AgentResponse<List<SmtpLogEntry>>> typeRef = new TypeReference<AgentResponse<List<SmtpLogEntry>>>() {};
+
+    @Param({"1000000"})
+    private int entryCount;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private AgentResponse<List<SmtpLogEntry>> response;
+    private byte[] json;
+    private byte[] smile;
+
+    @Setup
+    public void prepare() throws IOException {
+        String[] states = {"sent", "deferred", "bounced", "expired"};
+        List<SmtpLogEntry> entries = new ArrayList<SmtpLogEntry>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            SmtpLogEntry entry = new SmtpLogEntry();
+            entry.setDate(new Date(1370000000000L + i * 1000L));
+            entry.setQueueId(String.format("3bYsC%010d", i / 3));
+            entry.setMsgId("<" + i / 3 + ".1370000000@mailer.example.com>");
+            entry.setRcptEmail("rcpt" + i + "@example.com");
+            entry.setSenderEmail("sender@example.com");
+            entry.setStatus(states[i % states.length]);
+            entry.setInfo("host mx" + i % 50 + ".example.com[10.0." + i % 250 + ".1] said: 450 4.7.1 greylisted, try again later");
+            entry.setState(i % 3);
+            entry.setStateInfo("greylisting");
+            entries.add(entry);
+        }
+        response = new AgentResponse<List<SmtpLogEntry>>(entries, new ResponseStatus(true, "OK", System.currentTimeMillis(), "benchmark", 0L));
+        json = encodeJson();
+        smile = encodeSmile();
+        System.out.println("\nBytes on wire for " + entryCount + " entries, JSON : " + json.length + ", Smile : " + smile.length);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jsonMapper.writeValue(out, response);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeSmile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        smileMapper.writeValue(out, response);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Object decodeJson() throws IOException {
+        return jsonMapper.readValue(json, typeRef);
+    }
+
+    @Benchmark
+    public Object decodeSmile() throws IOException {
+        return smileMapper.readValue(smile, typeRef);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WireFormatBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -6,12 +6,16 @@ import scala.collection.JavaConversions._
 import com.fg.mail.smtp.client.{ConnectionConfig, JobCallback, SmtpAgentClient}
 import com.fg.mail.smtp.client.request.filter._
 import com.fg.mail.smtp.client.request.query.{ByTuple, By, BySingle}
+import com.fg.mail.smtp.client.request.query.Aggregating.Dimension
 import com.fg.mail.smtp.client.request.factory.{BatchReqFactory, AgentReq, SingleReqFactory}
 import com.fg.mail.smtp.client.model.SmtpLogEntry
 import java.text.SimpleDateFormat
 import java.util.concurrent.TimeUnit
 import java.lang
 import scala.collection.mutable
+import scala.concurrent.Await
+import akka.pattern.ask
+import com.fg.mail.smtp.index.IndexRecord
 
 /**
  *
@@ -74,6 +78,89 @@ class IntegrationSuite extends TestSupport {
         entries.pollFirst().getDate.after(entries.first().getDate) should be(true)
       }
 
+      it("be streamed with status as the last field") {
+        val json = client.getJsonHttpClient.resolveWithoutDeserialization(new AgentReq(new AppendablePath("agent-read/first-client-id"), null))
+        json should startWith ("{\"result\":[{")
+        json.lastIndexOf("\"status\":{") should be > json.lastIndexOf("\"rcptEmail\"")
+        json should include ("\"succeeded\":true")
+      }
+
+      it("be iterable while they are decoded one by one from stream") {
+        val entries = client.pull(reqFactory.forClientId("first-client-id").queryLess())
+        val iterator = client.stream(reqFactory.forClientId("first-client-id").queryLess())
+        val streamed = try iterator.toList finally iterator.close()
+        streamed should not be 'empty
+        streamed.toSet should be (entries.toSet)
+        iterator.hasNext should be (false)
+      }
+
+      it("be iterable from stream even if there are none") {
+        val iterator = client.stream(reqFactory.forClientId("whatever-that-not-match").queryLess())
+        iterator.hasNext should be (false)
+      }
+
+      it("be iterable page by page with the same result") {
+        val entries = client.pull(reqFactory.forClientId("first-client-id").queryLess())
+        val iterator = client.pullPages(reqFactory.forClientId("first-client-id").forPaging(null, null, 3))
+        val paged = iterator.toList
+        entries.size should be > 3
+        paged.size should be (entries.size)
+        paged.toSet should be (entries.toSet)
+        paged.map(_.getDate) should be (paged.map(_.getDate).sorted)
+        iterator.getNextRequest should be (null)
+
+        val single = client.pull(reqFactory.forClientId("first-client-id").forPaging(null, null, entries.size))
+        single.getEntries.size should be (entries.size)
+        single.getCursor should be (null)
+
+        client.pullPages(reqFactory.forClientId("whatever-that-not-match").forPaging(null, null, 3)).hasNext should be (false)
+      }
+
+      it("be counted by agent from all records of client including sent ones that are not pulled as entries") {
+        val records = Await.result(indexer ? GetDisposableRecordsByClientId(rc), timeout.duration).asInstanceOf[Option[Map[String, Iterable[IndexRecord]]]].get("first-client-id").toList
+        val entries = client.pull(reqFactory.forClientId("first-client-id").queryLess())
+        val byState = client.pullCountsBy("first-client-id", null, null, Dimension.state)
+        val byStatusAndDay = client.pullCountsBy("first-client-id", null, null, Dimension.status, Dimension.day)
+        val dayFormat = new SimpleDateFormat("yyyy-MM-dd")
+
+        records.count(_.state == 3) should be > 0
+        entries.size should be (records.count(_.state != 3))
+        byState.mapValues(_.longValue).toMap should be (records.groupBy(_.state.toString).mapValues(_.size.toLong))
+        byStatusAndDay.mapValues(_.mapValues(_.longValue).toMap).toMap should be (
+          records.groupBy(_.status).mapValues(_.groupBy(r => dayFormat.format(new Date(r.date))).mapValues(_.size.toLong))
+        )
+        client.pull(reqFactory.forCount("first-client-id", null, null)) should be (records.size.toLong)
+        client.pullCountsBy("whatever-that-not-match", null, null, Dimension.state) should be ('empty)
+      }
+
+      it("be the same in binary format") {
+        val binaryConfig = new ConnectionConfig("localhost", 6666, "dummy:1234", 4 * 1000, 6 * 1000)
+        binaryConfig.setBinaryFormat(true)
+        val binaryClient = new SmtpAgentClient(binaryConfig)
+        val entries = client.pull(reqFactory.forClientId("first-client-id").queryLess())
+        binaryClient.pull(reqFactory.forClientId("first-client-id").queryLess()) should be (entries)
+        val iterator = binaryClient.stream(reqFactory.forClientId("first-client-id").queryLess())
+        try iterator.toSet should be (entries.toSet) finally iterator.close()
+        binaryClient.pull(reqFactory.forClientId("first-client-id").forGrouping(null, null, new BySingle(By.Property.rcptEmail))) should be (client.pull(reqFactory.forClientId("first-client-id").forGrouping(null, null, new BySingle(By.Property.rcptEmail))))
+      }
+
+      it("be the same whether compressed or not") {
+        val uncompressedConfig = new ConnectionConfig("localhost", 6666, "dummy:1234", 4 * 1000, 6 * 1000)
+        uncompressedConfig.setCompression(false)
+        val uncompressedClient = new SmtpAgentClient(uncompressedConfig)
+        val compressedConfig = new ConnectionConfig("localhost", 6666, "dummy:1234", 4 * 1000, 6 * 1000)
+
+        def contentEncodingOf(config: ConnectionConfig, path: String) = {
+          val connection = config.configure(new java.net.URL(s"http://localhost:6666/$path").openConnection())
+          try connection.getContentEncoding finally connection.getInputStream.close()
+        }
+        contentEncodingOf(compressedConfig, "agent-read/first-client-id") should be ("gzip")
+        contentEncodingOf(uncompressedConfig, "agent-read/first-client-id") should be (null)
+
+        uncompressedClient.pull(reqFactory.forClientId("first-client-id").queryLess()) should be (client.pull(reqFactory.forClientId("first-client-id").queryLess()))
+        uncompressedClient.pull(reqFactory.forClientId("first-client-id").forGrouping(null, null, new BySingle(By.Property.rcptEmail))) should be (client.pull(reqFactory.forClientId("first-client-id").forGrouping(null, null, new BySingle(By.Property.rcptEmail))))
+      }
+
       it("not contain entries with status sent") {
         val entries = client.pull(reqFactory.forClientId("first-client-id").queryLess())
         entriesShouldNotContainSentOnes(entries)
@@ -448,6 +535,28 @@ class IntegrationSuite extends TestSupport {
       result(("2013 Jun 16 10:00:00.000", "2013 Jun 17 10:00:00.000")) should have size 1
     }
 
+    it("should process jobs concurrently with the same result") {
+      val batchReq = new BatchReqFactory(60 * 60 * 24, TimeUnit.SECONDS).forClientId("test-mail-module").forGrouping(toDate("2013 Jun 10 10:00:00.000").getTime, toDate("2013 Jun 17 10:00:00.000").getTime, new BySingle(By.Property.msgId))
+
+      def pullWith(pull: JobCallback[java.util.Map[String, java.util.TreeSet[SmtpLogEntry]]] => Unit) = {
+        val result = mutable.ListBuffer[(lang.Long, java.util.Map[String, java.util.TreeSet[SmtpLogEntry]])]()
+        pull(new JobCallback[java.util.Map[String, java.util.TreeSet[SmtpLogEntry]]] {
+          def execute(job: java.util.Map[String, java.util.TreeSet[SmtpLogEntry]], from: lang.Long, to: lang.Long) {
+            result += from -> job
+          }
+        })
+        result.toList
+      }
+
+      val sequential = pullWith(client.pull(batchReq, _))
+      val inOrder = pullWith(client.pull(batchReq, _, 3, true))
+      val completionOrder = pullWith(client.pull(batchReq, _, 3, false))
+
+      sequential should have size 7
+      inOrder should be (sequential)
+      completionOrder.sortBy(_._1.longValue) should be (sequential)
+    }
+
   }
 
   def resultShouldBeJavaTreeSetOfLogEntries(entries: Any) = entries match {
@@ -1,9 +1,12 @@
 package com.fg.mail.smtp
 
 import akka.pattern.ask
-import scala.concurrent.Await
+import scala.concurrent.{ExecutionContext, Future, Await}
 import scala.concurrent.duration.Duration
-import com.fg.mail.smtp.index.{DbManager, IndexRecord, QueueRecord}
+import com.fg.mail.smtp.index.{ClientIndexRecord, DbManager, IndexRecord, QueueRecord}
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors}
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.JavaConverters._
 import java.io.File
 import akka.actor.{ActorRef, Props, ActorSystem}
 import scala.collection.IterableView
@@ -28,6 +31,57 @@ class StressSuite extends TestSupport {
 
   describe("Actor system should") {
 
+    describe("keep indexing throughput while clients query in parallel") {
+
+      it("because queries are served by querier pool") {
+        val querier = Await.result(indexer ? GetQuerier, timeout.duration).asInstanceOf[ActorRef]
+        val groupedByEmail = Client(IndexFilter("stress-client-id", None, None, None), Some(IndexQuery(None, None, None, Some("rcptEmail"))))
+
+        def batch(n: Int) = (0 until 500).map { i =>
+          val id = n * 500 + i
+          ClientIndexRecord("stress-client-id", IndexRecord(1390000000000L + id * 1000L, s"STRESS$id", s"<$id@stress.example.com>", s"rcpt${id % 1000}@example.com", "sender@example.com", "deferred", s"info $id", 0, "greylisting"), fromTailing = true)
+        }
+
+        /* indexer handles messages in order, reply to GetTailer means that all preceding batches are indexed */
+        def indexBatches(from: Int, count: Int): (Long, Long) = {
+          val start = System.currentTimeMillis()
+          (from until from + count).foreach(n => indexer ! IndexTailedRecords(batch(n)))
+          Await.result(indexer ? GetTailer, timeout.duration)
+          (start, System.currentTimeMillis())
+        }
+        def recordsPerSecond(window: (Long, Long), count: Int) = count * 500 * 1000L / math.max(1L, window._2 - window._1)
+
+        indexBatches(0, 20)
+        val alone = indexBatches(20, 40)
+
+        val clientPool = Executors.newFixedThreadPool(opt.queryParallelism)
+        implicit val ec = ExecutionContext.fromExecutorService(clientPool)
+        val running = new AtomicBoolean(true)
+        val queries = new ConcurrentLinkedQueue[(Long, Long)]()
+        val clients = (1 to opt.queryParallelism).map { _ =>
+          Future {
+            while (running.get) {
+              val start = System.currentTimeMillis()
+              assert(Await.result(querier ? groupedByEmail, timeout.duration).asInstanceOf[Option[Map[String, Iterable[IndexRecord]]]].get.nonEmpty)
+              queries.add((start, System.currentTimeMillis()))
+            }
+          }
+        }
+        /* indexing starts when every client has had a query served so that all of them are querying during the whole window */
+        while (queries.size < opt.queryParallelism) sleepFor(10)
+        val withQueries = try indexBatches(60, 40) finally running.set(false)
+        clients.foreach(Await.result(_, timeout.duration))
+        clientPool.shutdown()
+
+        val (aloneRate, withQueriesRate) = (recordsPerSecond(alone, 40), recordsPerSecond(withQueries, 40))
+        withClue(s"Indexing throughput is $aloneRate records/s alone and $withQueriesRate records/s with ${queries.size} queries in parallel") {
+          queries.asScala.count { case (start, end) => start < withQueries._2 && end > withQueries._1 } should be >= opt.queryParallelism
+          withQueries._2 - withQueries._1 should be < (alone._2 - alone._1) * 3 / 2 + 200
+        }
+      }
+
+    }
+
     describe("survive restart of supervisor") {
 
       it("without modifying index, queue or status") {
@@ -10,9 +10,13 @@ import java.io.File
  */
 trait AutoCleanUpPersistence extends DbManager {
 
-  override def buildIndexDb = {
+  override def buildIndexDb = buildTestDb(new File(o.dbDir + "/" + o.dbName))
+
+  override def buildPartitionDb(file: File) = buildTestDb(file)
+
+  private def buildTestDb(file: File) = {
     val dbMaker = DBMaker
-                    .newFileDB(new File(o.dbDir + "/" + o.dbName))
+                    .newFileDB(file)
                     .asyncWriteEnable()
                     .mmapFileEnablePartial()
                     .commitFileSyncDisable()
@@ -22,9 +26,14 @@ trait AutoCleanUpPersistence extends DbManager {
     dbMaker.make()
   }
 
-  override lazy val queueDb = DBMaker.newFileDB(new File(o.dbDir + "/queue"))
-    .commitFileSyncDisable()
-    .deleteFilesAfterClose()
-    .make()
+  override def buildQueue = {
+    val journal = new File(o.dbDir + "/" + o.dbName + "-queue")
+    new PackedQueue(Some(journal)) {
+      override def close() {
+        super.close()
+        journal.delete()
+      }
+    }
+  }
 
 }
@@ -0,0 +1,97 @@
+package com.fg.mail.smtp.index
+
+import org.scalatest.{BeforeAndAfter, Matchers, FunSuite}
+import org.mapdb.{Fun, DBMaker, DB}
+import java.io.File
+import scala.collection.JavaConverters._
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/19/14 6:05 PM u_jli Exp $
+ */
+class IndexMigrationSuite extends FunSuite with Matchers with BeforeAndAfter {
+
+  var dbFile: File = _
+
+  before {
+    dbFile = File.createTempFile("migration", "db")
+    dbFile.delete()
+  }
+
+  after {
+    dbFile.getParentFile.listFiles().filter(_.getName.startsWith(dbFile.getName)).foreach(_.delete())
+  }
+
+  def openDb: DB = DBMaker.newFileDB(dbFile).make()
+
+  val records: Seq[ClientIndexRecord] =
+    for {
+      (clientId, c) <- Seq("first-client", "second-client").zipWithIndex
+      i <- 0 until 500
+    } yield {
+      val msgId = s"<${i / 5}@example.com>"
+      val status = Seq("sent", "deferred", "bounced", "expired", "weird")(i % 5)
+      val stateInfo = if (i % 7 == 0) s"category $i" else s"category ${i % 3}"
+      ClientIndexRecord(
+        clientId,
+        IndexRecord(1370000000000L + c * 1000 + (i / 3) * 1000, s"QUEUEID${i / 5}".padTo(15, 'X'), msgId, s"rcpt$i@example.com", if (i % 4 == 0) s"sender$i@example.com" else "unknown", status, s"info $i", i % 5, stateInfo),
+        false
+      )
+    }
+
+  def tuples(index: Index) = index.partitions.get(0L).records.asScala.toList.map(t => (t.a, t.b, t.c))
+
+  test("records of former format should be migrated to compact format") {
+    val legacyDb = openDb
+    val legacy = legacyDb.createTreeSet("records").counterEnable().nodeSize(Index.nodeSize).serializer(Index.legacySerializer).make[Fun.Tuple3[String, Long, IndexRecord]]()
+    records.foreach(r => legacy.add(Fun.t3(r.clientId, r.ir.date, r.ir)))
+    legacyDb.commit()
+    legacyDb.close()
+
+    val db = openDb
+    val index = Index(db, "records")
+    db.getCatalog.get("records.keySerializer").isInstanceOf[IndexKeySerializer] should be (true)
+    db.exists("recordsMigrating") should be (false)
+    index.size should be (records.size)
+    tuples(index) should be (records.map(r => (r.clientId, r.ir.date, r.ir)).sortBy(t => (t._1, t._2, t._3)))
+    index.getClientSummary("first-client").map(_.count) should be (Some(500))
+    db.commit()
+    db.close()
+  }
+
+  test("records should be the same after they are read from compact format") {
+    val db = openDb
+    val index = Index(db, "records")
+    records.foreach(index.addRecord)
+    val expected = tuples(index)
+    db.commit()
+    db.close()
+
+    val reopened = openDb
+    val reopenedIndex = Index(reopened, "records")
+    tuples(reopenedIndex) should be (expected)
+    reopenedIndex.dictionary.size should be < records.size
+    val (compact, legacy) = reopenedIndex.estimateSerializedSize(records.size)
+    compact should be < legacy
+    reopened.close()
+  }
+
+  test("secondary indexes that do not exist should be bulk loaded from records") {
+    val db = openDb
+    val index = Index(db, "records")
+    index.addRecords(records).size should be (records.size)
+    index.addRecords(records) should be ('empty)
+    IndexPartition.collectionNames("records").tail.foreach(db.delete)
+    db.commit()
+    db.close()
+
+    val queueId = "QUEUEID7".padTo(15, 'X')
+    val reopened = openDb
+    val found = Index(reopened, "records").getRecordsByQueueId("first-client", queueId, Interval(None, None)).toList
+    found.toSet should be (records.filter(r => r.clientId == "first-client" && r.ir.queueId == queueId).map(_.ir).toSet)
+    found.map(_.date) should be (found.map(_.date).sorted)
+    reopened.close()
+  }
+
+}
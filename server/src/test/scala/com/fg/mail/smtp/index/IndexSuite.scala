@@ -76,6 +76,31 @@ class IndexSuite extends TestSupport {
         }
       }
 
+      it("approximate email address count") {
+        Await.result(indexer ? RcptAddressCounts(rc, approximate = true), timeout.duration).asInstanceOf[Option[Map[String, Int]]] match {
+          case Some(counts) =>
+            counts.keys should have size 3
+            counts("first-client-id") should be (7346 +- 367)
+            counts("second-client-id") should be (67 +- 3)
+            counts("third-client-id") should be (68 +- 3)
+          case _ =>
+            fail("RcptAddressCounts should always return stuff")
+        }
+      }
+
+      it("record counts by state") {
+        Await.result(indexer ? StateCounts(rc), timeout.duration).asInstanceOf[Option[Map[String, Map[Int, Long]]]] match {
+          case Some(counts) =>
+            counts.keys should have size 3
+            counts("first-client-id").values.sum should be (13512)
+            counts("second-client-id").values.sum should be (97)
+            counts("third-client-id").values.sum should be (73)
+            counts.values.foreach( c => c(2) should be (0) )
+          case _ =>
+            fail("StateCounts should always return stuff")
+        }
+      }
+
       it("email addresses") {
         Await.result(indexer ? RcptAddresses(rc), timeout.duration).asInstanceOf[Option[Map[String, Set[String]]]] match {
           case Some(counts) =>
@@ -100,9 +125,54 @@ class IndexSuite extends TestSupport {
         }
       }
 
+      it("only the newest unknown bounces of each client up to the limit") {
+        val m = new DbManager(opt.copy(dbName = "unknown-bounces", unknownBouncesLimit = 5)) with AutoCleanUpPersistence
+        try {
+          val index = Index(m, "records")
+          val rollups = Rollups(m.indexDb, "rollups", index, m.o.unknownBouncesLimit)
+          val start = toDate("2013 Jun 10 08:00:00.123").getTime
+          def record(clientId: String, i: Int, state: Int) =
+            ClientIndexRecord(clientId, IndexRecord(start + i * 1000, s"QUEUEID$i", s"<$i@example.com>", s"rcpt$i@example.com", "sender@example.com", "bounced", s"unknown reason $i", state, "unknown"), false)
+          /* bounces are not indexed in time order so that the newest ones must be kept rather than the last ones */
+          val firstBounces = Seq(3, 11, 0, 7, 5, 9, 1, 10, 2, 8, 4, 6).map(record("first-client-id", _, 2))
+          val secondBounces = (0 until 3).map(record("second-client-id", _, 2))
+          val others = (12 until 16).map(record("first-client-id", _, 0))
+          (firstBounces ++ secondBounces ++ others).grouped(4).foreach(batch => rollups.update(index.addRecords(batch)))
+
+          val clientIds = Seq("first-client-id", "second-client-id")
+          val unknownBounces = rollups.getUnknownBounces(clientIds)
+          unknownBounces("first-client-id") should be (firstBounces.map(_.ir).sortBy(_.date).takeRight(5).toSet)
+          unknownBounces("second-client-id") should be (secondBounces.map(_.ir).toSet)
+
+          val stateCounts = rollups.getStateCounts(clientIds)
+          stateCounts("first-client-id")(2) should be (12)
+          stateCounts("first-client-id")(0) should be (4)
+          stateCounts("first-client-id").values.sum should be (16)
+          stateCounts("second-client-id")(2) should be (3)
+          stateCounts("second-client-id").values.sum should be (3)
+        } finally {
+          m.close()
+        }
+      }
+
+      it("client summaries") {
+        Await.result(indexer ? ClientSummaries(rc), timeout.duration).asInstanceOf[Option[Map[String, ClientSummary]]] match {
+          case Some(summaries) =>
+            summaries.keys should have size 3
+            summaries("first-client-id").count should be (13512)
+            summaries("second-client-id").count should be (97)
+            summaries("third-client-id").count should be (73)
+            summaries.values.foreach( s => assert(s.firstDate <= s.lastDate) )
+          case _ =>
+            fail("ClientSummaries should always return stuff")
+        }
+      }
+
       it("index footprint") {
         Await.result(indexer ? IndexMemoryFootprint(rc), timeout.duration).asInstanceOf[Option[IndexFootprint]] match {
-          case Some(IndexFootprint(_,0,_,0)) =>
+          case Some(IndexFootprint(index, legacyIndex, 13682, _, 0)) =>
+            index should be > 0L
+            index should be < legacyIndex
           case x =>
             fail(s"IndexFootprint $x is not correct")
         }
@@ -302,6 +372,15 @@ class IndexSuite extends TestSupport {
           result should not be null
           result.status should be ("bounced")
         }
+
+        it("looked up by secondary index same as by full scan") {
+          val byQueue = Await.result(indexer ? Client(IndexFilter("first-client-id", None, Some("B90D53FC06DXXXX"), None), None), timeout.duration).asInstanceOf[Option[IterableView[IndexRecord, Iterable[IndexRecord]]]].get.toList
+          val msgId = byQueue.head.msgId
+          val byMsg = Await.result(indexer ? Client(IndexFilter("first-client-id", None, None, Some(msgId)), None), timeout.duration).asInstanceOf[Option[IterableView[IndexRecord, Iterable[IndexRecord]]]].get.toList
+          val scanned = Await.result(indexer ? Client(IndexFilter("first-client-id", None, None, None), None), timeout.duration).asInstanceOf[Option[IterableView[IndexRecord, Iterable[IndexRecord]]]].get.filter(_.msgId == msgId).toList
+          byMsg should not be empty
+          byMsg should be (scanned)
+        }
       }
     }
   }
@@ -1,6 +1,7 @@
 package com.fg.mail.smtp.index
 
 import org.mapdb.DBMaker
+import java.io.File
 
 /**
  *
@@ -10,6 +11,7 @@ import org.mapdb.DBMaker
 trait NoPersistence extends DbManager {
 
   override lazy val indexDb = DBMaker.newMemoryDB().make()
-  override lazy val queueDb = DBMaker.newMemoryDB().make()
+  override def buildQueue = PackedQueue.inMemory
+  override def buildPartitionDb(file: File) = DBMaker.newMemoryDB().make()
 
 }
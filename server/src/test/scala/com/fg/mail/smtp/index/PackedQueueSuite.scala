@@ -0,0 +1,137 @@
+package com.fg.mail.smtp.index
+
+import org.scalatest.{BeforeAndAfter, Matchers, FunSuite}
+import java.io.{RandomAccessFile, File}
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/24/14 5:20 PM u_jli Exp $
+ */
+class PackedQueueSuite extends FunSuite with Matchers with BeforeAndAfter {
+
+  var journal: File = _
+
+  before {
+    journal = File.createTempFile("queue", "journal")
+  }
+
+  after {
+    journal.delete()
+    new File(journal.getPath + ".compacted").delete()
+  }
+
+  def record(i: Int) = QueueRecord(s"<$i@example.com>", if (i % 3 == 0) null else s"client-${i % 7}", if (i % 2 == 0) s"rcpt$i@example.com" else null, i % 2 == 0)
+
+  def queueId(i: Int) = f"3dFjk$i%010d"
+
+  test("queue should behave like a map for both packed and unpacked queue ids") {
+    val queue = PackedQueue.inMemory
+    val expected = scala.collection.mutable.Map[String, QueueRecord]()
+    val ids = (0 until 100000).map(queueId) ++ Seq("A", "zzzzzzzzzzzzzzzzzzzz", "NOT-ALPHANUMERIC", "longer-than-twenty-characters")
+    ids.zipWithIndex.foreach { case (qid, i) =>
+      queue.insert(qid, record(i)) should be (expected.put(qid, record(i)))
+    }
+    ids.zipWithIndex.filter(_._2 % 3 == 0).foreach { case (qid, i) =>
+      queue.insert(qid, record(i).copy(rcpt = "deferred@example.com", hasBeenDeferred = true)) should be (expected.put(qid, record(i).copy(rcpt = "deferred@example.com", hasBeenDeferred = true)))
+    }
+    ids.zipWithIndex.filter(_._2 % 5 == 0).foreach { case (qid, _) =>
+      queue.invalidate(qid) should be (expected.remove(qid))
+    }
+    queue.invalidate("MISSING") should be (None)
+    ids.foreach(qid => queue.lookup(qid) should be (expected.get(qid)))
+    queue.size should be (expected.size)
+    queue.getQueue should be (expected.toMap)
+  }
+
+  test("only committed changes should be loaded from journal") {
+    val queue = PackedQueue(journal)
+    (0 until 1000).foreach(i => queue.insert(queueId(i), record(i)))
+    (0 until 1000 by 4).foreach(i => queue.invalidate(queueId(i)))
+    queue.commit()
+    val committed = queue.getQueue
+    queue.insert("UNCOMMITTED", record(0))
+    queue.close()
+
+    val reopened = PackedQueue(journal)
+    reopened.getQueue should be (committed)
+    reopened.close()
+  }
+
+  test("incomplete commit at the end of journal should be cut off") {
+    val queue = PackedQueue(journal)
+    (0 until 100).foreach(i => queue.insert(queueId(i), record(i)))
+    queue.commit()
+    val committed = queue.getQueue
+    val length = journal.length()
+    (100 until 200).foreach(i => queue.insert(queueId(i), record(i)))
+    queue.commit()
+    queue.close()
+
+    val file = new RandomAccessFile(journal, "rw")
+    file.setLength(length + (journal.length() - length) / 2)
+    file.close()
+
+    val reopened = PackedQueue(journal)
+    reopened.getQueue should be (committed)
+    journal.length() should be (length)
+    reopened.insert(queueId(200), record(200))
+    reopened.commit()
+    reopened.close()
+    PackedQueue(journal).getQueue should be (committed + (queueId(200) -> record(200)))
+  }
+
+  test("journal should be replayed to the mark of checkpoint and changes after it should be discarded") {
+    val queue = PackedQueue(journal)
+    (0 until 100).foreach(i => queue.insert(queueId(i), record(i)))
+    queue.mark(Checkpoint("digest", 100))
+    val marked = queue.getQueue
+    (100 until 200).foreach(i => queue.insert(queueId(i), record(i)))
+    queue.commit()
+    queue.mark(Checkpoint("digest", 200))
+    (0 until 50).foreach(i => queue.invalidate(queueId(i)))
+    queue.commit()
+    val committed = queue.getQueue
+    queue.close()
+
+    val unknown = PackedQueue(journal, Some(Checkpoint("digest", 150)))
+    unknown.getQueue should be (committed)
+    unknown.lastMark should be (Some(Checkpoint("digest", 200)))
+    unknown.close()
+
+    val reopened = PackedQueue(journal, Some(Checkpoint("digest", 100)))
+    reopened.getQueue should be (marked)
+    reopened.lastMark should be (Some(Checkpoint("digest", 100)))
+    reopened.close()
+    PackedQueue(journal, Some(Checkpoint("digest", 100))).getQueue should be (marked)
+  }
+
+  test("journal with marks should be compacted at a mark") {
+    val queue = PackedQueue(journal)
+    (0 until 150000).foreach { i =>
+      queue.insert(queueId(i), record(i))
+      if (i >= 10) queue.invalidate(queueId(i - 10))
+      if (i % 1000 == 999) queue.mark(Checkpoint("digest", i))
+    }
+    queue.commit()
+    queue.close()
+    val reopened = PackedQueue(journal, Some(Checkpoint("digest", 149999)))
+    reopened.lastMark should be (Some(Checkpoint("digest", 149999)))
+    reopened.getQueue should be ((149990 until 150000).map(i => queueId(i) -> record(i)).toMap)
+    reopened.close()
+  }
+
+  test("journal should be compacted when it has much more changes than entries") {
+    val queue = PackedQueue(journal)
+    (0 until 150000).foreach { i =>
+      queue.insert(queueId(i), record(i))
+      if (i >= 10) queue.invalidate(queueId(i - 10))
+    }
+    queue.commit()
+    queue.size should be (10)
+    journal.length() should be < 10000L
+    queue.close()
+    PackedQueue(journal).getQueue should be ((149990 until 150000).map(i => queueId(i) -> record(i)).toMap)
+  }
+
+}
@@ -0,0 +1,218 @@
+package com.fg.mail.smtp.index
+
+import org.scalatest.{BeforeAndAfter, Matchers, FunSuite}
+import java.io.File
+import java.nio.file.Files
+import com.typesafe.config.ConfigFactory
+import com.fg.mail.smtp.Settings
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/22/14 5:10 PM u_jli Exp $
+ */
+class PartitionedIndexSuite extends FunSuite with Matchers with BeforeAndAfter {
+
+  val hour = 60 * 60 * 1000L
+  val now = System.currentTimeMillis()
+
+  var dbDir: File = _
+
+  before {
+    dbDir = Files.createTempDirectory("partitions").toFile
+  }
+
+  after {
+    dbDir.listFiles().foreach(_.delete())
+    dbDir.delete()
+  }
+
+  def dbManager(partitionDays: Int, retentionDays: Int) =
+    new DbManager(
+      Settings.buildOptions(ConfigFactory.parseFile(new File(getClass.getClassLoader.getResource("application-test.conf").toURI)).resolve())
+        .copy(dbDir = dbDir.getAbsolutePath, partitionDays = partitionDays, retentionDays = retentionDays)
+    )
+
+  /** records of the last 10 days, every 6 hours */
+  val records: Seq[ClientIndexRecord] =
+    for {
+      clientId <- Seq("first-client", "second-client")
+      i <- 0 until 40
+    } yield ClientIndexRecord(clientId, IndexRecord(now - i * 6 * hour, s"QUEUEID$i", s"<$i@example.com>", s"rcpt${i % 3}@example.com", "unknown", "deferred", s"info $i", 0, "category"), false)
+
+  def expected(clientId: String, from: Long = 0L) = records.filter(r => r.clientId == clientId && r.ir.date >= from).map(_.ir).sortBy(_.date)
+
+  def indexed(index: Index, m: DbManager) = {
+    records.foreach(index.addRecord)
+    m.commit()
+    index
+  }
+
+  test("records should be stored in partitions of period and read across them in time order") {
+    val m = dbManager(1, 0)
+    val index = indexed(Index(m, "records"), m)
+    index.partitions.size should be >= 10
+    m.partitionStarts.size should be (index.partitions.size)
+    index.size should be (records.size)
+
+    index.getRecordsFor("first-client", Interval(None, None)).toList should be (expected("first-client"))
+    index.getRecordsFor("first-client", Interval(None, None), reverse = true).toList should be (expected("first-client").reverse)
+    index.getRecordsByRcptEmail("second-client", "rcpt1@example.com", Interval(None, None)).toList should be (expected("second-client").filter(_.rcptEmail == "rcpt1@example.com"))
+
+    val (from, to) = (now - 100 * hour, now - 30 * hour)
+    index.getRecordsFor("first-client", Interval(Some(from), Some(to))).toList should be (expected("first-client").filter(r => r.date >= from && r.date <= to))
+
+    val cursor = expected("first-client")(13)
+    index.getRecordsFor("first-client", Interval(None, None), after = Some(cursor)).toList should be (expected("first-client").drop(14))
+    index.getRecordsByQueueId("first-client", "QUEUEID30", Interval(None, None), after = Some(cursor)).toList should be ('empty)
+    m.close()
+  }
+
+  test("partitioned index should be the same after it is reopened") {
+    val m = dbManager(1, 0)
+    val index = indexed(Index(m, "records"), m)
+    val summaries = index.getClientSummaries
+    m.close()
+
+    val reopened = dbManager(1, 0)
+    val reopenedIndex = Index(reopened, "records")
+    reopenedIndex.getClientSummaries should be (summaries)
+    reopenedIndex.getRecordsFor("second-client", Interval(None, None)).toList should be (expected("second-client"))
+    reopened.close()
+  }
+
+  def partitionFileCount = dbDir.listFiles().count(_.getName.contains("-partition-"))
+
+  test("expired partitions should be dropped as a whole with their files and client catalog should be adjusted") {
+    val m = dbManager(1, 0)
+    indexed(Index(m, "records"), m)
+    val partitionCount = m.partitionStarts.size
+    val fileCount = partitionFileCount
+    m.close()
+
+    val expiring = dbManager(1, 3)
+    val index = Index(expiring, "records")
+    val dropped = index.expire()
+    dropped should not be 'empty
+    expiring.partitionStarts.size should be (partitionCount - dropped.size)
+    index.partitions.size should be (partitionCount - dropped.size)
+    partitionFileCount should be (fileCount)
+    expiring.commit()
+    expiring.dropRemovedPartitions().size should be (dropped.size)
+    partitionFileCount should be < fileCount
+
+    val remaining = index.getRecordsFor("first-client", Interval(None, None)).toList
+    remaining.size should be < expected("first-client").size
+    remaining.foreach(_.date should be >= (now - 4 * 24 * hour))
+    index.getClientSummary("first-client").map(s => (s.count, s.firstDate)) should be (Some((remaining.size.toLong, remaining.head.date)))
+
+    index.addRecord(ClientIndexRecord("first-client", IndexRecord(now - 20 * 24 * hour, "OLD", "<old@example.com>", "old@example.com", "unknown", "sent", "info", 3, null), false)) should be (false)
+    expiring.close()
+  }
+
+  test("expiration should be durable only with its commit and removed partitions should be dropped on the next start") {
+    val m = dbManager(1, 0)
+    val summaries = indexed(Index(m, "records"), m).getClientSummaries
+    val partitionCount = m.partitionStarts.size
+    m.close()
+
+    val crashed = dbManager(1, 3)
+    Index(crashed, "records").expire() should not be 'empty
+    crashed.close()
+
+    val notCommitted = dbManager(1, 3)
+    val index = Index(notCommitted, "records")
+    notCommitted.partitionStarts.size should be (partitionCount)
+    index.getClientSummaries should be (summaries)
+    val dropped = index.expire()
+    val expiredSummaries = index.getClientSummaries
+    notCommitted.commit()
+    notCommitted.close()
+
+    val reopened = dbManager(1, 3)
+    reopened.partitionStarts.size should be (partitionCount - dropped.size)
+    val reopenedIndex = Index(reopened, "records")
+    reopenedIndex.getClientSummaries should be (expiredSummaries)
+    reopenedIndex.getRecordsFor("first-client", Interval(None, None)).toList should be (expected("first-client").filter(_.date >= reopenedIndex.partitions.firstKey))
+    val fileCount = partitionFileCount
+    reopened.dropRemovedPartitions().size should be (dropped.size)
+    partitionFileCount should be < fileCount
+    reopened.commit()
+    reopened.dropRemovedPartitions() should be ('empty)
+    reopened.close()
+  }
+
+  test("rollups should not count records of expired partitions") {
+    val bounced = records.map(cir => cir.copy(ir = cir.ir.copy(state = (cir.ir.date / hour % 3).toInt, rcptEmail = s"rcpt-${cir.ir.queueId}@example.com")))
+    val m = dbManager(1, 0)
+    val index = Index(m, "records")
+    Rollups(m.indexDb, "rollups", index, 1000).update(index.addRecords(bounced))
+    m.commit()
+    m.close()
+
+    val expiring = dbManager(1, 3)
+    val expiringIndex = Index(expiring, "records")
+    val rollups = Rollups(expiring.indexDb, "rollups", expiringIndex, 1000)
+    expiringIndex.expire().foreach(rollups.expire(_, expiringIndex))
+    val retained = expiringIndex.getRecordsFor("first-client", Interval(None, None)).toList
+    retained.size should be < records.size / 2
+
+    val rebuilt = Rollups(expiring.indexDb, "rebuiltRollups", expiringIndex, 1000)
+    Seq("first-client", "second-client").foreach { clientId =>
+      val retainedOfClient = expiringIndex.getRecordsFor(clientId, Interval(None, None)).toList
+      rollups.getStateCounts(Seq(clientId))(clientId) should be (rebuilt.getStateCounts(Seq(clientId))(clientId))
+      rollups.getStateCounts(Seq(clientId))(clientId).values.sum should be (retainedOfClient.size)
+      rollups.getRcptAddresses(Seq(clientId))(clientId) should be (retainedOfClient.map(_.rcptEmail).toSet)
+      rollups.getRcptAddressCounts(Seq(clientId))(clientId) should be (retainedOfClient.map(_.rcptEmail).distinct.size)
+      rollups.getApproximateRcptAddressCounts(Seq(clientId)) should be (rebuilt.getApproximateRcptAddressCounts(Seq(clientId)))
+      rollups.getUnknownBounces(Seq(clientId))(clientId) should be (retainedOfClient.filter(_.state == 2).toSet)
+    }
+    expiring.close()
+  }
+
+  test("records of index that is not partitioned should be moved into partitions") {
+    val m = dbManager(0, 0)
+    val index = indexed(Index(m, "records"), m)
+    index.partitions.size should be (1)
+    val summaries = index.getClientSummaries
+    m.close()
+
+    val partitioned = dbManager(7, 0)
+    val partitionedIndex = Index(partitioned, "records")
+    partitioned.indexDb.exists("records") should be (false)
+    partitionedIndex.partitions.size should be >= 2
+    partitionedIndex.size should be (records.size)
+    partitionedIndex.getClientSummaries should be (summaries)
+    partitionedIndex.getRecordsFor("first-client", Interval(None, None)).toList should be (expected("first-client"))
+    partitioned.close()
+  }
+
+  test("client catalog and rollups should be rebuilt if partitions were committed without index db") {
+    val (first, second) = records.partition(_.clientId == "first-client")
+    val m = dbManager(1, 0)
+    val index = Index(m, "records")
+    val rollups = Rollups(m.indexDb, "rollups", index, 1000)
+    rollups.update(index.addRecords(first))
+    m.commit()
+    m.partitionsAheadOfIndexDb should be ('empty)
+
+    rollups.update(index.addRecords(second))
+    val sequence = m.indexDb.getAtomicLong(m.commitSequence).get + 1
+    m.partitionStarts.map(m.partitionDb).foreach { db =>
+      db.getAtomicLong(m.commitSequence).set(sequence)
+      db.commit()
+    }
+    m.close()
+
+    val reopened = dbManager(1, 0)
+    reopened.partitionsAheadOfIndexDb should be (reopened.partitionStarts)
+    val rebuilt = Index(reopened, "records", rebuild = true)
+    rebuilt.getClientSummaries.mapValues(_.count) should be (Map("first-client" -> first.size.toLong, "second-client" -> second.size.toLong))
+    val rebuiltRollups = Rollups(reopened.indexDb, "rollups", rebuilt, 1000, rebuild = true)
+    rebuiltRollups.getStateCounts(Seq("first-client", "second-client")).mapValues(_(0)) should be (Map("first-client" -> first.size.toLong, "second-client" -> second.size.toLong))
+    reopened.commit()
+    reopened.partitionsAheadOfIndexDb should be ('empty)
+    reopened.close()
+  }
+
+}
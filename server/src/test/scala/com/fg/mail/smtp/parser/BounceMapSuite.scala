@@ -7,6 +7,9 @@ import java.net.URL
 import com.sun.xml.internal.messaging.saaj.util.Base64
 import scala.util.matching.Regex
 import com.fg.mail.smtp.util.ParsingUtils
+import java.io.{InputStreamReader, BufferedReader}
+import java.util.zip.GZIPInputStream
+import scala.collection.mutable
 
 /**
  *
@@ -21,11 +24,27 @@ class BounceMapSuite extends FunSpec with Matchers {
   val knownSoftBounce = "network connection timed out"
   val unknownBounce = "nejakej vykonstruovanej duvod v cizim jazyce"
 
-  val prioritizedBounceList = new BounceListParser().parse(getClass.getClassLoader.getResourceAsStream("bounce-regex-list.xml")).fold(
+  def loadClassifier = new BounceListParser().parse(getClass.getClassLoader.getResourceAsStream("bounce-regex-list.xml")).fold(
     left => throw new IllegalStateException(left),
     right => right
   )
 
+  val bounceClassifier = loadClassifier
+
+  val prioritizedBounceList = bounceClassifier.prioritized
+
+  /** bounce messages of deferred and bounced delivery attempts from real log */
+  def bounceMessages: List[String] = {
+    val reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(getClass.getClassLoader.getResourceAsStream("META-INF/logs/real/mail.log.2.gz")), "UTF-8"))
+    try {
+      Iterator.continually(reader.readLine()).takeWhile(_ != null).collect {
+        case ParsingUtils.deliveryAttempt(date, queueId, recipient, status, info) if status == "deferred" || status == "bounced" => info.toLowerCase
+      }.toList
+    } finally {
+      reader.close()
+    }
+  }
+
   describe("parser should return regex map") {
 
     it("valid") {
@@ -54,10 +73,94 @@ class BounceMapSuite extends FunSpec with Matchers {
     }
 
     it("that will resolve states correctly") {
-      ParsingUtils.resolveState(knownSoftBounce, "bounced", false, prioritizedBounceList) should be ((0, "bad domain: connection timeout"))
-      ParsingUtils.resolveState(knownHardBounce, "deferred", true, prioritizedBounceList) should be ((1, "spam detection and blacklisting"))
-      ParsingUtils.resolveState("not important", "sent", false, prioritizedBounceList) should be ((3, "OK"))
-      ParsingUtils.resolveState("not important", "sent", true, prioritizedBounceList) should be ((4, "finally OK"))
+      ParsingUtils.resolveState(knownSoftBounce, "bounced", false, bounceClassifier) should be ((0, "bad domain: connection timeout"))
+      ParsingUtils.resolveState(knownHardBounce, "deferred", true, bounceClassifier) should be ((1, "spam detection and blacklisting"))
+      ParsingUtils.resolveState("not important", "sent", false, bounceClassifier) should be ((3, "OK"))
+      ParsingUtils.resolveState("not important", "sent", true, bounceClassifier) should be ((4, "finally OK"))
+      ParsingUtils.resolveState(unknownBounce, "bounced", false, bounceClassifier) should be ((2, "unable to decide on type of bounce"))
+    }
+
+    it("that classifies the same way as linear search through prioritized categories") {
+      val classifier = loadClassifier
+      val ordering = Ordering[(String, Long, Long)].on((t: (String, Long, Long, BounceCategory)) => (t._1, t._2, t._3)).reverse
+      val legacy = mutable.TreeSet[(String, Long, Long, BounceCategory)]()(ordering)
+      classifier.categories.foreach(c => legacy.add((c.bounceType, 0L, c.defaultOrder, c)))
+
+      val messages = bounceMessages
+      messages should not be 'empty
+      messages.foreach { message =>
+        val expected = legacy.find(_._4.regex.pattern.matcher(message).find())
+        expected.foreach { t =>
+          legacy.remove(t)
+          legacy.add(t.copy(_2 = t._2 + 1L))
+        }
+        withClue(message) {
+          classifier.classify(message) should be (expected.map(_._4))
+        }
+      }
+      classifier.prioritized.map(t => (t._1, t._2, t._3, t._4)) should be (legacy.toList.map(t => (t._1, t._2, t._3, t._4.category)))
+    }
+
+    it("that classifies the same way as linear search for patterns whose escapes and nested classes have no required literals") {
+      val patternsAndMessages = Seq(
+        """mailbox \x66ull""" -> "mailbox full",
+        """quota \u0065xceeded""" -> "quota exceeded",
+        """over \0161uota""" -> "over quota",
+        """tab\cIchar""" -> "tab\tchar",
+        """(?<word>spam)\k<word>""" -> "spamspam",
+        """\Qa.b\E done""" -> "a.b done",
+        """[a-z&&[^x]]ello""" -> "hello"
+      )
+      patternsAndMessages.foreach { case (pattern, _) => RequiredLiterals.of(pattern) should be (None) }
+      val categories = patternsAndMessages.zipWithIndex.map { case ((pattern, _), i) => BounceCategory("hard", i + 1L, s"category $i", Seq(pattern)) }
+      val classifier = new BounceClassifier(categories.toIndexedSeq)
+      (patternsAndMessages.map(_._2) :+ "no bounce category").foreach { message =>
+        withClue(message) {
+          classifier.classify(message) should be (categories.find(_.regex.pattern.matcher(message).find()))
+        }
+      }
+      classifier.classify("mailbox full") should be (Some(categories(0)))
+    }
+  }
+
+  describe("bounce cache") {
+
+    it("should classify the same way as classifier itself") {
+      val classifier = loadClassifier
+      val cachedClassifier = loadClassifier
+      val cache = new BounceCache(100, false)
+      val messages = bounceMessages
+      messages.foreach { message =>
+        cachedClassifier.classify(message, cache) should be (classifier.classify(message))
+      }
+      cachedClassifier.prioritized.map(t => (t._1, t._2, t._3, t._4)) should be (classifier.prioritized.map(t => (t._1, t._2, t._3, t._4)))
+
+      val (hits, misses, evictions) = cache.counts
+      hits + misses should be (messages.size)
+      hits should be > misses
+      cache.size should be <= 100
+      evictions should be (misses - cache.size)
+    }
+
+    it("should be invalidated and it should mask variables") {
+      val cache = new BounceCache(2, true)
+      ParsingUtils.resolveState("550 5.1.1 <john@example.com>: recipient address rejected: user unknown", "bounced", false, bounceClassifier, Some(cache))
+      ParsingUtils.resolveState("550 5.1.1 <jack@example.com>: recipient address rejected: user unknown", "bounced", false, bounceClassifier, Some(cache))
+      cache.counts should be ((1L, 1L, 0L))
+      cache.key("host 10.0.0.1 said: 450 4.7.1 try again in 123456 seconds") should be ("host <ip> said: 450 4.7.1 try again in <n> seconds")
+
+      cache.invalidate()
+      cache.size should be (0)
+      ParsingUtils.resolveState(knownSoftBounce, "bounced", false, bounceClassifier, Some(cache)) should be ((0, "bad domain: connection timeout"))
+      cache.counts should be ((1L, 2L, 0L))
+    }
+
+    it("should mask variables of real messages the same way as regular expressions do") {
+      def byRegex(message: String) =
+        message.replaceAll("""[^\s<>()\[\]"',;:]+@[^\s<>()\[\]"',;:]+""", "<email>").replaceAll("""\d{1,3}(\.\d{1,3}){3}""", "<ip>").replaceAll("""\d{5,}""", "<n>")
+      ("a@ b @c @ x@y@z user@10.0.0.1 host1.2.3.4 10.0.0.1234 1234.5.6.7" :: bounceMessages).foreach { message =>
+        BounceCache.mask(message) should be (byRegex(message))
+      }
     }
   }
 
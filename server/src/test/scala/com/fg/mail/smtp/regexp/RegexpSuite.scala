@@ -4,8 +4,9 @@ import org.scalatest.{Matchers, FunSuite}
 import scala.collection.immutable.HashSet
 import scala.io.Source
 
-import com.fg.mail.smtp.Settings
-import com.fg.mail.smtp.util.ParsingUtils
+import com.fg.mail.smtp._
+import com.fg.mail.smtp.util.{LineTokenizer, ParsingUtils}
+import java.util.zip.GZIPInputStream
 
 /**
  *
@@ -121,4 +122,21 @@ class RegexpSuite extends FunSuite with Matchers {
     )
   }
 
+  test("tokenizer should recognize the same lines as regular expressions") {
+    val toDate = (d: String) => d.hashCode.toLong
+    def byRegex(line: String): Option[Line] = line match {
+      case ParsingUtils.deliveryAttempt(date, queueId, recipient, status, info) => Some(DeliveryAttemptLine(toDate(date), queueId, recipient, status, info))
+      case ParsingUtils.midRegex(queueId, msgId) => Some(MessageLine(queueId, msgId))
+      case ParsingUtils.cidRegex(queueId, clientId) => Some(ClientLine(queueId, clientId))
+      case ParsingUtils.expiredRegex(date, queueId, sender, status, info) => Some(ExpiredLine(toDate(date), queueId, sender, status, info))
+      case ParsingUtils.removedQueueRegex(queueId) => Some(RemovedQueueLine(queueId))
+      case _ => None
+    }
+    val lines = testFile.getLines().toList ++ Source.fromInputStream(new GZIPInputStream(getClass.getClassLoader.getResourceAsStream("META-INF/logs/real/mail.log.2.gz"))).getLines()
+    lines.foreach { line =>
+      LineTokenizer.recognize(line, toDate) should be (byRegex(line))
+    }
+    lines.flatMap(LineTokenizer.recognize(_, toDate)) should not be empty
+  }
+
 }
@@ -143,6 +143,8 @@ class DispatcherSuite extends FunSpec with Matchers {
     it("handle all possible combinations agent api allows") {
       import com.fg.mail.smtp.rest.Dispatcher._
 
+      dispatch("/agent-metrics", null) should be(Some(AgentMetrics(rc)))
+
       dispatch("/agent-read/runczech", "") should be(Some(Client(IndexFilter("runczech", None, None, None), None)))
       dispatch("/agent-read/runczech", null) should be(Some(Client(IndexFilter("runczech", None, None, None), None)))
       dispatch("/agent-read/runczech/", null) should be(Some(Client(IndexFilter("runczech", None, None, None), None)))
@@ -182,6 +184,36 @@ class DispatcherSuite extends FunSpec with Matchers {
       dispatch("/agent-read/runczech/queue/abc123", "lastOrFirst=true") should be(Some(Client(IndexFilter("runczech", None, Some("abc123"), None), Some(IndexQuery(None, None, Some(true), None)))))
     }
 
+    it("handle pagination by limit and cursor") {
+      import com.fg.mail.smtp.rest.Dispatcher._
+      import com.fg.mail.smtp.index.{Cursor, IndexRecord}
+
+      val record = IndexRecord(1370000000000L, "QUEUEID", "<1@example.com>", "liska@fg.cz", null, "sent", "info", 3, null)
+      val cursor = Cursor.encode(record)
+
+      dispatch("/agent-read/runczech", "limit=100") should be(Some(ClientPage(IndexFilter("runczech", None, None, None), None, None, 100, None)))
+      dispatch("/agent-read/runczech", "from=121&to=200&limit=100") should be(Some(ClientPage(IndexFilter("runczech", None, None, None), Some(121), Some(200), 100, None)))
+      dispatch("/agent-read/runczech", s"limit=100&cursor=$cursor") should be(Some(ClientPage(IndexFilter("runczech", None, None, None), None, None, 100, Some(record))))
+      dispatch("/agent-read/runczech/rcptEmail/liska@fg.cz", s"limit=10&cursor=$cursor") should be(Some(ClientPage(IndexFilter("runczech", Some("liska@fg.cz"), None, None), None, None, 10, Some(record))))
+
+      dispatch("/agent-read/runczech", "limit=0") should be(None)
+      dispatch("/agent-read/runczech", "limit=abc") should be(None)
+      dispatch("/agent-read/runczech", "limit=100&cursor=invalid") should be(None)
+    }
+
+    it("handle aggregation by dimensions") {
+      import com.fg.mail.smtp.rest.Dispatcher._
+      import com.fg.mail.smtp.index.Dimension._
+
+      dispatch("/agent-aggregate/runczech", null) should be(Some(ClientAggregate("runczech", None, None, Nil)))
+      dispatch("/agent-aggregate/runczech/", "by=state") should be(Some(ClientAggregate("runczech", None, None, Seq(State))))
+      dispatch("/agent-aggregate/runczech", "from=121&to=200&by=state,day") should be(Some(ClientAggregate("runczech", Some(121), Some(200), Seq(State, Day))))
+      dispatch("/agent-aggregate/runczech", "by=status,status") should be(Some(ClientAggregate("runczech", None, None, Seq(Status))))
+
+      dispatch("/agent-aggregate/runczech", "by=state,weekday") should be(None)
+      dispatch("/agent-aggregate", null) should be(None)
+    }
+
   }
 
 }
@@ -0,0 +1,48 @@
+package com.fg.mail.smtp.tail
+
+import org.scalatest.{Matchers, FunSuite}
+import com.fg.mail.smtp.index.{IndexRecord, ClientIndexRecord}
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/25/14 5:10 PM u_jli Exp $
+ */
+class AdaptiveBatcherSuite extends FunSuite with Matchers {
+
+  def records(count: Int) = (0 until count).map(i => ClientIndexRecord("client", IndexRecord(i, s"qid$i", s"<$i@example.com>", "rcpt@example.com", "unknown", "sent", "250 OK", 3, "OK"), true))
+
+  test("batch should be due when it is full or when its oldest record waited for max delay") {
+    val batcher = new AdaptiveBatcher(1000, 50)
+    batcher.timeToDue(0) should be (Long.MaxValue)
+    batcher.isDue(0) should be (false)
+
+    batcher.add(records(10), 100)
+    batcher.add(records(10), 130)
+    batcher.isDue(130) should be (false)
+    batcher.timeToDue(130) should be (20)
+    batcher.isDue(150) should be (true)
+    batcher.flush(160) should be ((records(10) ++ records(10), 60))
+    batcher.nonEmpty should be (false)
+
+    batcher.add(records(AdaptiveBatcher.initialSize + 1), 200)
+    batcher.isDue(200) should be (true)
+    batcher.flush(200)._1.size should be (AdaptiveBatcher.initialSize)
+    batcher.isDue(200) should be (false)
+    batcher.flush(250) should be ((records(AdaptiveBatcher.initialSize + 1).drop(AdaptiveBatcher.initialSize), 50))
+  }
+
+  test("batch size should grow when full batches are indexed quickly and shrink when indexing is slow") {
+    val batcher = new AdaptiveBatcher(256, 50)
+    batcher.batchSize should be (64)
+    batcher.indexed(10, 1)
+    batcher.batchSize should be (64)
+    (0 until 5).foreach(_ => batcher.indexed(batcher.batchSize, 10))
+    batcher.batchSize should be (256)
+    batcher.indexed(256, 30)
+    batcher.batchSize should be (256)
+    (0 until 10).foreach(_ => batcher.indexed(batcher.batchSize, 100))
+    batcher.batchSize should be (1)
+  }
+
+}
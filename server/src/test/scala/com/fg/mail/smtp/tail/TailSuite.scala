@@ -2,7 +2,12 @@ package com.fg.mail.smtp.tail
 
 import java.io._
 import org.scalatest._
-import scala.concurrent.Await
+import scala.concurrent.{Future, Await}
+import scala.concurrent.duration._
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.collection.mutable.ArrayBuffer
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
 import com.fg.mail.smtp._
 import akka.pattern.ask
 
@@ -17,7 +22,7 @@ class TailSuite extends TestSupport with BeforeAndAfter {
 
   val opt = loadOptions("application-test.conf").copy(
                   httpServerStart = false,
-                  eofNewInputSleep = sleep(25)
+                  eofWatchTimeout = 5000
                 )
 
   val existingFile = new File(testLogDir + "parser/existingFile")
@@ -53,20 +58,20 @@ class TailSuite extends TestSupport with BeforeAndAfter {
 
     it("find existing file") {
       assert(existingFile.exists())
-      assert(new Rotation(opt.copy(reOpenTries = 1), existingFile)(() => Unit, () => Unit).testExists())
-      assert(new Rotation(opt.copy(reOpenTries = 0), existingFile)(() => Unit, () => Unit).testExists())
+      assert(FileTailer.testExists(opt.copy(reOpenTries = 1), existingFile))
+      assert(FileTailer.testExists(opt.copy(reOpenTries = 0), existingFile))
     }
 
     it("fail on absent file") {
       assert(!absentFile.exists())
-      assert(!new Rotation(opt.copy(reOpenTries = 1), absentFile)(() => Unit, () => Unit).testExists())
-      assert(!new Rotation(opt.copy(reOpenTries = 0), absentFile)(() => Unit, () => Unit).testExists())
+      assert(!FileTailer.testExists(opt.copy(reOpenTries = 1), absentFile))
+      assert(!FileTailer.testExists(opt.copy(reOpenTries = 0), absentFile))
     }
 
     it("find existing file after x attempts") {
       def testCreate(f: File, n: Int) = try {
         var count = 0
-        val result = new Rotation(opt.copy(reOpenTries = n, reOpenSleep = () => { count += 1; if (count >= n) f.createNewFile }), f)(() => Unit, () => Unit).testExists()
+        val result = FileTailer.testExists(opt.copy(reOpenTries = n, reOpenSleep = () => { count += 1; if (count >= n) f.createNewFile }), f)
         (result, count)
       } finally {
         f.delete
@@ -100,6 +105,125 @@ class TailSuite extends TestSupport with BeforeAndAfter {
 
       testLine(msgIdLine, 6)
     }
+
+    it("tailer should read all lines written under load to a file that is being rotated") {
+      val dir = Files.createTempDirectory("tailing").toFile
+      val logFile = new File(dir, "mail.log")
+      logFile.createNewFile()
+      val rotations = new AtomicInteger()
+      val tailer = new FileTailer(opt, logFile)(() => Unit, () => rotations.incrementAndGet())
+      val lineCount = 50000
+      val rotateEvery = 10000
+      try {
+        val writer = Future {
+          var out = new FileOutputStream(logFile, true)
+          (0 until lineCount).foreach { i =>
+            out.write(s"${msgIdLine.trim} $i\n".getBytes)
+            if (i % rotateEvery == rotateEvery - 1 && i < lineCount - 1) {
+              out.close()
+              logFile.renameTo(new File(dir, s"mail.log.${i / rotateEvery}")) should be (true)
+              out = new FileOutputStream(logFile, true)
+              /* the next rotation after tailer noticed this one, otherwise it would skip a whole file as tail -F does */
+              while (rotations.get <= i / rotateEvery) Thread.sleep(1)
+            }
+          }
+          out.close()
+        }
+        val lines = new ArrayBuffer[String]()
+        while (lines.size < lineCount)
+          lines ++= tailer.readLines().get
+        Await.result(writer, 10.seconds)
+        lines should be ((0 until lineCount).map(i => s"${msgIdLine.trim} $i"))
+        rotations.get should be (lineCount / rotateEvery - 1)
+      } finally {
+        tailer.close()
+        dir.listFiles().foreach(_.delete())
+        dir.delete()
+      }
+    }
+
+    it("tailer should read a line right after it is written instead of polling the file") {
+      val dir = Files.createTempDirectory("tailing").toFile
+      val logFile = new File(dir, "mail.log")
+      logFile.createNewFile()
+      val tailer = new FileTailer(opt, logFile)(() => Unit, () => Unit)
+      try {
+        val latencies = (0 until 20).map { i =>
+          val written = Future {
+            Thread.sleep(20)
+            val start = System.currentTimeMillis()
+            val out = new FileWriter(logFile, true)
+            out.append(s"line $i\n")
+            out.close()
+            start
+          }
+          tailer.readLines() should be (Some(Seq(s"line $i")))
+          System.currentTimeMillis() - Await.result(written, 1.second)
+        }
+        latencies.sum / latencies.size should be < 100L
+      } finally {
+        tailer.close()
+        dir.listFiles().foreach(_.delete())
+        dir.delete()
+      }
+    }
+
+    it("tailer should start at checkpoint of the same file and at the beginning of another file") {
+      val dir = Files.createTempDirectory("tailing").toFile
+      val logFile = new File(dir, "mail.log")
+      def append(lines: Seq[String]) {
+        val out = new FileWriter(logFile, true)
+        lines.foreach(l => out.append(l + "\n"))
+        out.close()
+      }
+      try {
+        append(Seq("line 0", "line 1"))
+        val first = new FileTailer(opt, logFile)(() => Unit, () => Unit)
+        first.checkpoint should be (None)
+        first.readLines() should be (Some(Seq("line 0", "line 1")))
+        val checkpoint = first.checkpoint.get
+        checkpoint.offset should be (logFile.length())
+        first.close()
+
+        append(Seq("line 2"))
+        val second = new FileTailer(opt, logFile, Some(checkpoint))(() => Unit, () => Unit)
+        second.readLines() should be (Some(Seq("line 2")))
+        second.checkpoint.map(_.digest) should be (Some(checkpoint.digest))
+        second.close()
+
+        logFile.delete()
+        append(Seq("other 0", "other 1", "other 2"))
+        val third = new FileTailer(opt, logFile, Some(checkpoint))(() => Unit, () => Unit)
+        third.readLines() should be (Some(Seq("other 0", "other 1", "other 2")))
+        third.close()
+      } finally {
+        dir.listFiles().foreach(_.delete())
+        dir.delete()
+      }
+    }
+
+    it("tailer should read truncated file from the beginning and not prefix its first line with the incomplete line read before truncation") {
+      val dir = Files.createTempDirectory("tailing").toFile
+      val logFile = new File(dir, "mail.log")
+      def write(s: String, append: Boolean) {
+        val out = new FileWriter(logFile, append)
+        out.append(s)
+        out.close()
+      }
+      try {
+        write("line 0\nincomplete", append = false)
+        val tailer = new FileTailer(opt, logFile)(() => Unit, () => Unit)
+        tailer.readLines() should be (Some(Seq("line 0")))
+        write("new 0\n", append = false)
+        tailer.readLines() should be (Some(Seq("incomplete")))
+        tailer.readLines() should be (Some(Seq("new 0")))
+        tailer.checkpoint.map(_.offset) should be (Some(6L))
+        tailer.close()
+      } finally {
+        dir.listFiles().foreach(_.delete())
+        dir.delete()
+      }
+    }
   }
 
 }
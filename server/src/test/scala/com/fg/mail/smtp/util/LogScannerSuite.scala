@@ -0,0 +1,58 @@
+package com.fg.mail.smtp.util
+
+import org.scalatest.{Matchers, FunSuite}
+import java.io.{PrintWriter, File}
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/26/14 11:30 AM u_jli Exp $
+ */
+class LogScannerSuite extends FunSuite with Matchers {
+
+  val toTime = (d: String) => TimestampParser.default.parse(d)
+
+  def resource(path: String) = new File(getClass.getClassLoader.getResource(path).toURI)
+
+  def recognizedBySource(file: File) = {
+    val source = Commons.getSource(file)
+    try {
+      source.getLines().flatMap(LineTokenizer.recognize(_, toTime)).toList
+    } finally {
+      source.close()
+    }
+  }
+
+  def recognizedByScanner(file: File, window: Int) = LogScanner.scan(file, window)(_.flatMap(LineTokenizer.recognize(_, toTime)).toList)
+
+  test("scanner should recognize the same lines as source does") {
+    Seq("META-INF/logs/real/mail.log.2.gz", "META-INF/logs/parser/backup-multiple-clients.log.2.gz", "META-INF/logs/parser/backup-single-client.log.1").map(resource).foreach { file =>
+      val expected = recognizedBySource(file)
+      expected should not be empty
+      // small windows make lines span over remapped windows
+      Seq(LogScanner.mapWindow, 4096, 7).foreach { window =>
+        withClue(s"${file.getName} $window") {
+          recognizedByScanner(file, window) should be (expected)
+        }
+      }
+    }
+  }
+
+  test("scanner should read the last line without new line and strip carriage returns") {
+    val file = File.createTempFile("scanner", ".log")
+    try {
+      val out = new PrintWriter(file)
+      out.print("2013 Jun 16 16:05:07.123 gds39d postfix/qmgr[6273]: 3bZLDk1V50z37Dv: from=<liska@fg.cz>, size=793, nrcpt=1 (queue active)\r\n")
+      out.print("2013 Jun 16 16:05:07.123 gds39d postfix/cleanup[26547]: 3bZLDk1V50z37Dv: message-id=<98494.123.456@test-mail-module>\r\n")
+      out.print("2013 Jun 16 16:05:07.123 gds39d postfix/qmgr[6273]: 3bZLDk1V50z37Dv: removed")
+      out.close()
+      LogScanner.scan(file)(_.toList) should be (List(
+        "2013 Jun 16 16:05:07.123 gds39d postfix/cleanup[26547]: 3bZLDk1V50z37Dv: message-id=<98494.123.456@test-mail-module>",
+        "2013 Jun 16 16:05:07.123 gds39d postfix/qmgr[6273]: 3bZLDk1V50z37Dv: removed"
+      ))
+    } finally {
+      file.delete()
+    }
+  }
+
+}
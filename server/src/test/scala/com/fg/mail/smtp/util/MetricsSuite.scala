@@ -0,0 +1,70 @@
+package com.fg.mail.smtp.util
+
+import org.scalatest.{Matchers, FunSuite}
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/27/14 11:40 AM u_jli Exp $
+ */
+class MetricsSuite extends FunSuite with Matchers {
+
+  test("percentiles should not be lower than exact ones and their relative error should be at most 1/32") {
+    val histogram = new Histogram
+    (1 to 100000).foreach(i => histogram.record(i * 1000L))
+    val snapshot = histogram.snapshot()
+    snapshot.count should be (100000)
+    snapshot.sum should be ((1 to 100000).map(_ * 1000L).sum)
+    Seq(0.5, 0.9, 0.99, 0.999, 1.0).foreach { q =>
+      val exact = Math.ceil(q * 100000).toLong * 1000L
+      snapshot.percentile(q) should (be >= exact and be <= exact + exact / 32)
+    }
+    snapshot.max should be >= 100000000L
+    new Histogram().snapshot().percentile(0.99) should be (0)
+  }
+
+  test("every value should fall in the bucket of its index") {
+    Seq(0L, 1L, 31L, 32L, 33L, 63L, 64L, 1000L, 123456789L, Long.MaxValue).foreach { value =>
+      val index = Histogram.indexOf(value)
+      index should be < Histogram.bucketCount
+      Histogram.highestValueOf(index) should be >= value
+      if (index > 0)
+        Histogram.highestValueOf(index - 1) should be < value
+    }
+  }
+
+  test("sampled timer should extrapolate count of calls") {
+    val timer = new Timer(4)
+    (1 to 100).foreach(i => timer.time(i * 2))
+    timer.time("result") should be ("result")
+    timer.snapshot.count should be (100)
+  }
+
+  test("counter should not lose increments of concurrent threads") {
+    val counter = new Counter
+    val threads = (1 to 8).map(_ => new Thread(new Runnable {
+      def run() {
+        (1 to 100000).foreach(_ => counter.increment())
+      }
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    counter.sum should be (800000)
+  }
+
+  test("metrics should be exported in Prometheus text format") {
+    val timer = Metrics.timer("Test \"quoted\" stage")
+    Metrics.timer("Test \"quoted\" stage") should be theSameInstanceAs timer
+    (1 to 10).foreach(_ => timer.record(2000000))
+    Metrics.counter("test_events").add(3)
+
+    val lines = Metrics.prometheus.split('\n')
+    lines should contain ("# TYPE agent_stage_seconds summary")
+    lines should contain ("""agent_stage_seconds{stage="Test \"quoted\" stage",quantile="0.99"} 0.002031615""")
+    lines should contain ("""agent_stage_seconds_count{stage="Test \"quoted\" stage"} 10""")
+    lines should contain ("""agent_stage_seconds_sum{stage="Test \"quoted\" stage"} 0.02""")
+    lines should contain ("# TYPE agent_test_events_total counter")
+    lines should contain ("agent_test_events_total 3")
+  }
+
+}
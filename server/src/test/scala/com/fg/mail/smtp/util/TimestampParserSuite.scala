@@ -0,0 +1,71 @@
+package com.fg.mail.smtp.util
+
+import org.scalatest.{Matchers, FunSuite}
+import java.text.SimpleDateFormat
+import java.util.{Date, Locale, TimeZone}
+import scala.util.Random
+
+/**
+ *
+ * @author Jakub Liška (liska@fg.cz), FG Forrest a.s. (c) 2013
+ * @version $Id: 1/17/14 11:30 AM u_jli Exp $
+ */
+class TimestampParserSuite extends FunSuite with Matchers {
+
+  def formatOf(tz: TimeZone) = {
+    val format = new SimpleDateFormat("yyyy MMM dd HH:mm:ss.SSS", Locale.US)
+    format.setTimeZone(tz)
+    format
+  }
+
+  def shouldBeSameAsSimpleDateFormat(zone: String, timestamps: Iterable[String]) {
+    val tz = TimeZone.getTimeZone(zone)
+    val parser = new TimestampParser(tz)
+    val format = formatOf(tz)
+    timestamps.foreach { t =>
+      withClue(s"$zone $t") {
+        parser.parse(t) should be (format.parse(t).getTime)
+      }
+    }
+  }
+
+  /** every 7 - 8 minutes during a year */
+  def timestampsOf(tz: TimeZone): Iterable[String] = {
+    val format = formatOf(tz)
+    val random = new Random(1)
+    val start = format.parse("2013 Jan 01 00:00:00.000").getTime
+    val end = format.parse("2014 Jan 01 00:00:00.000").getTime
+    Iterator.iterate(start)(_ + 7 * 60000L + random.nextInt(60000)).takeWhile(_ < end).map(t => format.format(new Date(t))).toList
+  }
+
+  test("parser should return the same results as SimpleDateFormat during whole year") {
+    List("Europe/Prague", "America/New_York", "Australia/Lord_Howe", "Asia/Kathmandu", "UTC").foreach { zone =>
+      shouldBeSameAsSimpleDateFormat(zone, timestampsOf(TimeZone.getTimeZone(zone)))
+    }
+  }
+
+  test("parser should return the same results as SimpleDateFormat at DST boundaries") {
+    val boundaries = for {
+      day <- List("2013 Mar 30", "2013 Mar 31", "2013 Apr 01", "2013 Oct 26", "2013 Oct 27", "2013 Oct 28")
+      hour <- 0 to 23
+      minute <- List(0, 29, 59)
+    } yield f"$day $hour%02d:$minute%02d:59.999"
+    shouldBeSameAsSimpleDateFormat("Europe/Prague", boundaries)
+  }
+
+  test("parser should handle single digit days, case of month and lenient values the same way SimpleDateFormat does") {
+    shouldBeSameAsSimpleDateFormat(
+      "Europe/Prague",
+      List("2013 Jun 1 06:50:26.123", "2013 JUN 10 06:50:26.123", "2013 June 10 06:50:26.123", "2013 Jun 31 10:00:00.000", "2013 Feb 29 23:59:59.999")
+    )
+  }
+
+  test("parser should be usable concurrently") {
+    val tz = TimeZone.getTimeZone("Europe/Prague")
+    val parser = new TimestampParser(tz)
+    val timestamps = timestampsOf(tz).toVector
+    val expected = timestamps.map(formatOf(tz).parse(_).getTime)
+    timestamps.par.map(parser.parse).seq should be (expected)
+  }
+
+}